@@ -0,0 +1,109 @@
+package com.gregei.potato8.benchmarks;
+
+import com.gregei.potato8.core.cpu.CPU;
+import com.gregei.potato8.core.memory.Memory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of one Dxyn sprite draw and one 00E0 clear, in nanoseconds per instruction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisplayBenchmark {
+    /**
+     * The number of instructions in each loop, not counting the jump back.
+     */
+    private static final int LOOP_LENGTH = 255;
+
+    /**
+     * A cpu looping over Dxyn.
+     */
+    @State(Scope.Thread)
+    public static class DrawState {
+        /**
+         * The sprite height n.
+         */
+        @Param({"1", "8", "15"})
+        public int height;
+
+        /**
+         * The x coordinate, 8 draws on a byte boundary and 3 straddles two bytes.
+         */
+        @Param({"8", "3"})
+        public int x;
+
+        private CPU cpu;
+
+        @Setup
+        public void setup(){
+            // V0 = x, V1 = 4, I = the 0 glyph, then Dxyn in a loop.
+            cpu = start(Programs.loop(new int[]{0x6000 | x, 0x6104, 0xA000}, new int[]{0xD010 | height},
+                    LOOP_LENGTH), 3);
+        }
+    }
+
+    /**
+     * A cpu looping over 00E0.
+     */
+    @State(Scope.Thread)
+    public static class ClearState {
+        private CPU cpu;
+
+        @Setup
+        public void setup(){
+            cpu = start(Programs.loop(new int[]{}, new int[]{0x00E0}, LOOP_LENGTH), 0);
+        }
+    }
+
+    private static CPU start(byte[] rom, int setupLength){
+        Memory memory = new Memory();
+        memory.loadRom(rom);
+
+        CPU cpu = new CPU();
+        cpu.setMemory(memory);
+        cpu.reset();
+        cpu.setCpuRunning(true);
+
+        for (int i = 0; i < setupLength; ++i){
+            cpu.runCycle();
+        }
+
+        return cpu;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP_LENGTH + 1)
+    public int drawSprite(DrawState state){
+        return runLoop(state.cpu);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP_LENGTH + 1)
+    public int clearScreen(ClearState state){
+        return runLoop(state.cpu);
+    }
+
+    private static int runLoop(CPU cpu){
+        for (int i = 0; i <= LOOP_LENGTH; ++i){
+            cpu.runCycle();
+        }
+
+        return cpu.getPc();
+    }
+}
@@ -0,0 +1,72 @@
+package com.gregei.potato8.benchmarks;
+
+import com.gregei.potato8.core.Chip8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of loading a rom and resetting the emulator.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LifecycleBenchmark {
+    private Chip8 chip8;
+
+    /**
+     * A rom filling all of program memory.
+     */
+    private byte[] rom;
+
+    private Path romFile;
+
+    @Setup
+    public void setup() throws IOException {
+        chip8 = new Chip8();
+
+        rom = new byte[4096 - 0x200];
+        new Random(8).nextBytes(rom);
+
+        romFile = Files.createTempFile("potato8-bench", ".ch8");
+        Files.write(romFile, rom);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(romFile);
+    }
+
+    @Benchmark
+    public boolean loadGameBytes(){
+        return chip8.loadGame(rom);
+    }
+
+    @Benchmark
+    public boolean loadGameFile(){
+        return chip8.loadGame(romFile.toString());
+    }
+
+    @Benchmark
+    public Chip8 reset(){
+        chip8.reset();
+        return chip8;
+    }
+}
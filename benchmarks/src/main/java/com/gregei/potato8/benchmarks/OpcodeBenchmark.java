@@ -0,0 +1,66 @@
+package com.gregei.potato8.benchmarks;
+
+import com.gregei.potato8.core.cpu.CPU;
+import com.gregei.potato8.core.memory.Memory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CPU#runCycle} throughput, in instructions per microsecond, for loops of one opcode family.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpcodeBenchmark {
+    /**
+     * The number of cycles run per invocation.
+     */
+    private static final int CYCLES = 1024;
+
+    @Param
+    public OpcodeFamily family;
+
+    private CPU cpu;
+
+    @Setup
+    public void setup(){
+        Memory memory = new Memory();
+        memory.loadRom(family.rom(255));
+
+        cpu = new CPU();
+        cpu.setMemory(memory);
+        cpu.reset();
+        cpu.setCpuRunning(true);
+
+        for (int i = 0; i < family.setupLength(); ++i){
+            cpu.runCycle();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public int runCycle(){
+        CPU cpu = this.cpu;
+
+        for (int i = 0; i < CYCLES; ++i){
+            cpu.runCycle();
+        }
+
+        return cpu.getPc();
+    }
+}
@@ -0,0 +1,111 @@
+package com.gregei.potato8.benchmarks;
+
+/**
+ * The opcode mixes measured by {@link OpcodeBenchmark}, each a loop of one family of instructions.
+ */
+public enum OpcodeFamily {
+    /**
+     * 6xkk and 8xy0.
+     */
+    LOAD(new int[]{}, new int[]{0x6012, 0x6134, 0x8010, 0x8200}),
+
+    /**
+     * 7xkk and the carrying 8xy4, 8xy5, 8xy6, 8xy7 and 8xyE.
+     */
+    ARITHMETIC(new int[]{0x6107, 0x6203}, new int[]{0x7005, 0x8014, 0x8025, 0x8306, 0x8417, 0x850E}),
+
+    /**
+     * 8xy1, 8xy2 and 8xy3.
+     */
+    LOGIC(new int[]{0x60F0, 0x610F}, new int[]{0x8011, 0x8012, 0x8013, 0x8213}),
+
+    /**
+     * 3xkk, 4xkk, 5xy0, 9xy0 and Ex9E/ExA1, none of them taken.
+     */
+    SKIP(new int[]{0x6001, 0x6102, 0x6305}, new int[]{0x3000, 0x4001, 0x5010, 0x9000, 0xE39E}),
+
+    /**
+     * Annn, Fx1E and Fx29.
+     */
+    INDEX(new int[]{0x6003}, new int[]{0xA300, 0xF01E, 0xF029}),
+
+    /**
+     * Fx15, Fx07 and Fx18.
+     */
+    TIMER(new int[]{0x6010}, new int[]{0xF015, 0xF107, 0xF018}),
+
+    /**
+     * Fx33, Fx55 and Fx65 on data memory.
+     */
+    MEMORY(new int[]{0x607B, 0xAE00}, new int[]{0xF033, 0xF355, 0xF365}),
+
+    /**
+     * 1nnn to the next instruction.
+     */
+    JUMP(null, null),
+
+    /**
+     * 2nnn to an 00EE, then a 1nnn over it.
+     */
+    CALL_RETURN(null, null);
+
+    /**
+     * The opcodes run once before the loop.
+     */
+    private final int[] setup;
+
+    /**
+     * The opcodes repeated in the loop.
+     */
+    private final int[] body;
+
+    OpcodeFamily(int[] setup, int[] body){
+        this.setup = setup;
+        this.body = body;
+    }
+
+    /**
+     * Builds a rom looping over this family.
+     *
+     * @param loopLength the approximate number of opcodes in the loop.
+     * @return the rom.
+     */
+    byte[] rom(int loopLength){
+        if (this == JUMP){
+            int[] opcodes = new int[loopLength];
+
+            for (int i = 0; i < loopLength; ++i){
+                opcodes[i] = 0x1000 | (Programs.START + ((i + 1) % loopLength) * 2);
+            }
+
+            return Programs.assemble(opcodes);
+        }
+
+        if (this == CALL_RETURN){
+            int blocks = loopLength / 3;
+            int[] opcodes = new int[blocks * 3 + 1];
+
+            for (int i = 0; i < blocks; ++i){
+                int address = Programs.START + i * 6;
+
+                opcodes[i * 3] = 0x2000 | (address + 4);
+                opcodes[i * 3 + 1] = 0x1000 | (address + 6);
+                opcodes[i * 3 + 2] = 0x00EE;
+            }
+
+            opcodes[blocks * 3] = 0x1000 | Programs.START;
+            return Programs.assemble(opcodes);
+        }
+
+        return Programs.loop(setup, body, loopLength);
+    }
+
+    /**
+     * Returns the number of opcodes run once before the loop.
+     *
+     * @return the setup length.
+     */
+    int setupLength(){
+        return setup == null ? 0 : setup.length;
+    }
+}
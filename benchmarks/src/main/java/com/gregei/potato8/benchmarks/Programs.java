@@ -0,0 +1,53 @@
+package com.gregei.potato8.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Builds the synthetic roms the benchmarks run.
+ */
+final class Programs {
+    /**
+     * The address roms are loaded at.
+     */
+    static final int START = 0x200;
+
+    private Programs(){
+    }
+
+    /**
+     * Encodes opcodes as a big endian rom.
+     *
+     * @param opcodes the opcodes, in order from the start address.
+     * @return the rom.
+     */
+    static byte[] assemble(int... opcodes){
+        byte[] rom = new byte[opcodes.length * 2];
+
+        for (int i = 0; i < opcodes.length; ++i){
+            rom[i * 2] = (byte)(opcodes[i] >> 8);
+            rom[i * 2 + 1] = (byte)opcodes[i];
+        }
+
+        return rom;
+    }
+
+    /**
+     * Builds a rom that runs a setup sequence once, then loops over a body repeated to fill the loop.
+     *
+     * @param setup the opcodes run once.
+     * @param body the opcodes repeated in the loop.
+     * @param loopLength the number of opcodes in the loop, not counting the jump back.
+     * @return the rom.
+     */
+    static byte[] loop(int[] setup, int[] body, int loopLength){
+        int[] opcodes = Arrays.copyOf(setup, setup.length + loopLength + 1);
+        int loopStart = START + setup.length * 2;
+
+        for (int i = 0; i < loopLength; ++i){
+            opcodes[setup.length + i] = body[i % body.length];
+        }
+
+        opcodes[opcodes.length - 1] = 0x1000 | loopStart;
+        return assemble(opcodes);
+    }
+}
@@ -0,0 +1,75 @@
+package com.gregei.potato8.benchmarks;
+
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.graphics.FrameKernels;
+import com.gregei.potato8.desktop.FrameRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the desktop conversion of the packed frame buffer into the image presented on screen, on the scalar
+ * kernels and on the best available ones, the vector kernels as the fork adds the vector module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class RenderBenchmark {
+    /**
+     * The kernels the renderer expands pixels with: scalar or best.
+     */
+    @Param({"scalar", "best"})
+    public String kernels;
+
+    /**
+     * The display rendered: lores for the 64x32 chip-8 display, xo for the 128x64 two plane XO-CHIP display.
+     */
+    @Param({"lores", "xo"})
+    public String display;
+
+    private FrameBuffer frameBuffer;
+
+    private FrameRenderer renderer;
+
+    @Setup
+    public void setup(){
+        boolean xo = display.equals("xo");
+
+        frameBuffer = xo ? new FrameBuffer(2, true) : new FrameBuffer();
+        renderer = new FrameRenderer(kernels.equals("scalar") ? FrameKernels.scalar() : FrameKernels.get());
+
+        if (xo){
+            frameBuffer.setHighResolution(true);
+        }
+
+        Random random = new Random(6);
+
+        for (int plane = 0; plane < frameBuffer.getPlaneCount(); ++plane){
+            for (int y = 0; y < frameBuffer.getHeight(); ++y){
+                for (int x = 0; x < frameBuffer.getWidth(); x += 8){
+                    frameBuffer.xorRow(plane, x, y, (long)random.nextInt(256) << 56);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public BufferedImage render(){
+        return renderer.render(frameBuffer);
+    }
+}
@@ -0,0 +1,131 @@
+package com.gregei.potato8.benchmarks;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.cpu.EngineType;
+import com.gregei.potato8.core.cpu.XorShiftRandom;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs whole synthetic roms through {@link Chip8#runFrame} on every engine, in frames per microsecond. The
+ * instructions counter is the rate of instructions actually executed: cycles skipped through idle loops, like the
+ * delay timer wait of {@link Workload#BOUNCE}, are counted by the frame but left out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkloadBenchmark {
+    /**
+     * The number of cycles per frame, enough that frame overhead does not dominate.
+     */
+    private static final int INSTRUCTIONS_PER_FRAME = 1000;
+
+    /**
+     * The synthetic roms.
+     */
+    public enum Workload {
+        /**
+         * A game loop: clear, draw a bouncing sprite, poll a key, then wait for the delay timer.
+         */
+        BOUNCE(Programs.assemble(
+                0x6000, 0x6100, 0x6201, 0x6301, 0x6A3F, 0x6B1F,  // x, y, dx, dy and the wrap masks
+                0x00E0, 0xA000, 0xD015,                          // 20C: clear and draw
+                0x8024, 0x8134, 0x80A2, 0x81B2,                  // move and wrap
+                0x6405, 0xE49E, 0x1222, 0x6200,                  // stop when key 5 is held
+                0x6502, 0xF515,                                  // 222: delay = 2
+                0xF607, 0x3600, 0x1226,                          // 226: wait for it
+                0x120C)),
+
+        /**
+         * A score counter: increment, convert to decimal and draw three digits.
+         */
+        SCORE(Programs.assemble(
+                0x6300,
+                0x00E0, 0x7301, 0xA300, 0xF333, 0xF265,          // 202: count and split into digits
+                0x6400, 0x6500,
+                0xF029, 0xD455, 0x7405,
+                0xF129, 0xD455, 0x7405,
+                0xF229, 0xD455,
+                0x1202)),
+
+        /**
+         * A memory copy: eight bytes at a time from 0x400 to 0x500 through the registers.
+         */
+        COPY(Programs.assemble(
+                0x6600,
+                0xA400, 0xF61E, 0xF765,                          // 202: load from 0x400 + V6
+                0xA500, 0xF61E, 0xF755,                          // store to 0x500 + V6
+                0x7608, 0x1202)),
+
+        /**
+         * An arithmetic loop: adds and loads between registers with no drawing or memory traffic, so it measures
+         * instruction dispatch alone.
+         */
+        ALU(Programs.assemble(
+                0x6000, 0x6101,
+                0x8014, 0x8104, 0x8210, 0x8320,                  // 204: Fibonacci like adds and copies
+                0x1204));
+
+        private final byte[] rom;
+
+        Workload(byte[] rom){
+            this.rom = rom;
+        }
+    }
+
+    @Param
+    public Workload workload;
+
+    @Param
+    public EngineType engine;
+
+    private Chip8 chip8;
+
+    @Setup
+    public void setup(){
+        chip8 = new Chip8();
+        chip8.setEngine(engine);
+        chip8.loadGame(workload.rom);
+        chip8.setRandom(new XorShiftRandom(0));
+        chip8.setCpuRunning(true);
+    }
+
+    @Benchmark
+    public int runFrame(Executed executed){
+        long skipped = chip8.getSkippedCycleCount();
+        int cycles = chip8.runFrame(INSTRUCTIONS_PER_FRAME);
+
+        executed.instructions += cycles - (chip8.getSkippedCycleCount() - skipped);
+        return cycles;
+    }
+
+    /**
+     * Counts the instructions executed, reported by JMH as a rate next to the frame rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Executed {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void clear(){
+            instructions = 0;
+        }
+    }
+}
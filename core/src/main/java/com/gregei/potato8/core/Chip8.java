@@ -1,9 +1,27 @@
 package com.gregei.potato8.core;
 
+import com.gregei.potato8.core.audio.AudioOutput;
 import com.gregei.potato8.core.cpu.CPU;
+import com.gregei.potato8.core.cpu.CpuMode;
+import com.gregei.potato8.core.cpu.DebuggingEngine;
+import com.gregei.potato8.core.cpu.EngineType;
+import com.gregei.potato8.core.cpu.ExecutionEngine;
+import com.gregei.potato8.core.cpu.ProfilingEngine;
+import com.gregei.potato8.core.cpu.RandomSource;
+import com.gregei.potato8.core.cpu.TracingEngine;
+import com.gregei.potato8.core.debug.Debugger;
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.input.InputMovie;
+import com.gregei.potato8.core.jfr.FrameEvent;
+import com.gregei.potato8.core.input.KeyEventQueue;
 import com.gregei.potato8.core.memory.Memory;
+import com.gregei.potato8.core.profile.PcProfiler;
+import com.gregei.potato8.core.state.SaveState;
+import com.gregei.potato8.core.trace.InstructionTrace;
 
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.file.Paths;
 
 public class Chip8 {
@@ -17,18 +35,293 @@ public class Chip8 {
      */
     private Memory memory;
 
+    /**
+     * The engine executing the cpu.
+     */
+    private ExecutionEngine engine;
+
+    /**
+     * The type of engine selected, restored when a debugger, profiler or trace is detached.
+     */
+    private EngineType engineType = EngineType.INTERPRETER;
+
+    /**
+     * The attached profiler, or null.
+     */
+    private PcProfiler profiler;
+
+    /**
+     * The attached instruction trace, or null.
+     */
+    private InstructionTrace trace;
+
+    /**
+     * The attached debugger, or null.
+     */
+    private Debugger debugger;
+
+    /**
+     * The output the sound of every frame is queued to, or null.
+     */
+    private AudioOutput audio;
+
+    /**
+     * The one int per pixel compatibility copy of the frame buffer, created on first use.
+     */
+    private int[] pixels;
+
+    /**
+     * Key events queued by other threads, applied at the start of each frame.
+     */
+    private final KeyEventQueue input = new KeyEventQueue(64);
+
+    /**
+     * Applies drained key events to the cpu keypad.
+     */
+    private final KeyEventQueue.KeySink keySink = (key, pressed, cycle) -> drainKey(key, pressed);
+
+    /**
+     * The movie recording applied key events, or null.
+     */
+    private InputMovie movie;
+
+    /**
+     * The buffer save states are written to for hashing, created on first use.
+     */
+    private ByteBuffer hashBuffer;
+
+    /**
+     * The number of cycles run since the last reset.
+     */
+    private long cycleCount;
+
+    /**
+     * The number of cycles skipped through idle loops since the last reset or loaded state, included in the cycle
+     * count.
+     */
+    private long skippedCycleCount;
+
+    /**
+     * True if the last run ended in an idle loop.
+     */
+    private boolean idle;
+
+    /**
+     * The cycle count at the last input poll, readable by the threads queueing key events.
+     */
+    private volatile long polledCycleCount;
+
+    /**
+     * The keys pressed by queued events that no instruction has run with yet, bit n for key n.
+     */
+    private int freshPresses;
+
+    /**
+     * The queued releases held back because their key was pressed in the same poll, applied at the first poll after
+     * instructions ran with the key down so a quick tap is never lost.
+     */
+    private int heldReleases;
+
     public Chip8(){
-        cpu = new CPU();
-        memory = new Memory();
+        this(CpuMode.CHIP8);
+    }
 
+    /**
+     * Creates an emulator of a machine.
+     *
+     * @param mode the machine to emulate.
+     */
+    public Chip8(CpuMode mode){
+        setMode(mode);
+    }
+
+    /**
+     * Switches the machine emulated, replacing the cpu, memory and display with blank ones. The engine type,
+     * debugger, profiler, trace and random source are kept, a game must be loaded again.
+     *
+     * @param mode the machine to emulate.
+     */
+    public void setMode(CpuMode mode){
+        CPU previous = cpu;
+
+        cpu = new CPU(mode);
+        memory = new Memory(mode.getMemorySize(), mode.isExtended());
         cpu.setMemory(memory);
+
+        if (previous != null){
+            cpu.setRandom(previous.getRandom());
+        }
+
+        engine = createEngine();
+        reset();
     }
 
     /**
      * Runs one cpu cycle.
      */
     public void runCycle(){
-        cpu.runCycle();
+        engine.runCycle();
+        cycleCount++;
+        freshPresses = 0;
+
+        idle = cpu.isIdle();
+        cpu.skipIdle(0);
+    }
+
+    /**
+     * Runs up to the passed number of cpu cycles, stopping early if the cpu halts. Once the cpu enters an idle loop
+     * the rest of the cycles are skipped rather than run, they are counted as run and leave the same state.
+     *
+     * @param cycles the number of cycles to run.
+     * @return the number of cycles run or skipped.
+     */
+    public int runCycles(int cycles){
+        int ran = engine.runCycles(cycles);
+        idle = cpu.isIdle();
+        freshPresses = 0;
+
+        if (idle){
+            cpu.skipIdle(cycles - ran);
+            skippedCycleCount += cycles - ran;
+            ran = cycles;
+        }
+
+        cycleCount += ran;
+        return ran;
+    }
+
+    /**
+     * Runs one 60 Hz frame: queued key events are applied, then up to the passed number of cpu cycles run,
+     * followed by one delay and sound timer tick. The sound of the frame is queued to the audio output, if any.
+     * While the cpu is stopped, by a debugger or a halt, the frame only applies the key events and the timers stand
+     * still.
+     *
+     * @param instructionsPerFrame the number of cycles to run in the frame.
+     * @return the number of cycles run.
+     */
+    public int runFrame(int instructionsPerFrame){
+        FrameEvent event = new FrameEvent();
+        event.begin();
+
+        pollInput();
+
+        if (!cpu.getCpuRunning()){
+            return 0;
+        }
+
+        int cycles = runCycles(instructionsPerFrame);
+        boolean sound = cpu.isSoundOn();
+        cpu.tickTimers();
+
+        if (audio != null){
+            audio.playFrame(sound, cpu.getAudioPattern(), cpu.getPitch());
+        }
+
+        if (event.shouldCommit()){
+            event.instructions = cycles;
+            event.cycleCount = cycleCount;
+            event.commit();
+        }
+
+        return cycles;
+    }
+
+    /**
+     * Ticks the delay and sound timers once, for callers running the cycles of a frame in slices of their own rather
+     * than through {@link #runFrame}.
+     */
+    public void tickTimers(){
+        cpu.tickTimers();
+    }
+
+    /**
+     * Selects the engine used to execute the cpu, the cpu state is kept. An attached debugger, profiler or trace
+     * keeps its engine until it is detached.
+     *
+     * @param type the type of engine to execute with.
+     */
+    public void setEngine(EngineType type){
+        engineType = type;
+        engine = createEngine();
+    }
+
+    /**
+     * Attaches a profiler, which swaps in a profiling interpreter until it is detached.
+     *
+     * @param profiler the profiler to count executions with, or null to detach and restore the selected engine.
+     */
+    public void setProfiler(PcProfiler profiler){
+        this.profiler = profiler;
+        engine = createEngine();
+    }
+
+    /**
+     * Attaches an instruction trace, which swaps in a tracing interpreter until it is detached. A profiler takes
+     * precedence while both are attached.
+     *
+     * @param trace the trace to record executions to, or null to detach and restore the selected engine.
+     */
+    public void setTrace(InstructionTrace trace){
+        this.trace = trace;
+        engine = createEngine();
+    }
+
+    /**
+     * Attaches a debugger, which swaps in a debugging interpreter until it is detached. Other emulators and this one
+     * once detached run their own engine without any debugger checks. The debugger takes precedence over a profiler
+     * and a trace, and detaching resumes a cpu it stopped.
+     *
+     * @param debugger the debugger to stop the cpu with, or null to detach and restore the engine.
+     */
+    public void setDebugger(Debugger debugger){
+        if (this.debugger != null && this.debugger != debugger && this.debugger.isStopped()){
+            this.debugger.resume();
+        }
+
+        this.debugger = debugger;
+        engine = createEngine();
+    }
+
+    /**
+     * Creates the engine for the attachments, or of the selected type without any.
+     */
+    private ExecutionEngine createEngine(){
+        if (debugger != null){
+            return new DebuggingEngine(cpu, debugger);
+        }
+
+        if (profiler != null){
+            return new ProfilingEngine(cpu, profiler);
+        }
+
+        return trace != null ? new TracingEngine(cpu, trace) : engineType.create(cpu);
+    }
+
+    /**
+     * Attaches an audio output, which gets the sound of every frame run.
+     *
+     * @param audio the output to play to, or null for none.
+     */
+    public void setAudio(AudioOutput audio){
+        this.audio = audio;
+    }
+
+    /**
+     * Sets the source of random bytes, seed it to make runs reproducible.
+     *
+     * @param random the random source.
+     */
+    public void setRandom(RandomSource random){
+        cpu.setRandom(random);
+    }
+
+    /**
+     * Sets the movie key events are recorded to as they are applied.
+     *
+     * @param movie the movie to record to, or null to stop recording.
+     */
+    public void setMovie(InputMovie movie){
+        this.movie = movie;
     }
 
     /**
@@ -41,19 +334,137 @@ public class Chip8 {
         reset();
 
         try {
-            byte[] rom = Files.readAllBytes(Paths.get(path));
-
-            for (int i = 0; i < rom.length; ++i){
-                memory.getMemory()[i + 512] = (char)(rom[i] & 0xFF);
-            }
+            return memory.loadRom(Paths.get(path));
         } catch (Exception e) {
             //e.printStackTrace();
+            reset();
+            return false;
+        }
+    }
+
+    /**
+     * Load a game already read into memory to the emulator.
+     *
+     * @param rom the bytes of the rom.
+     * @return true if the game is loaded, false if it does not fit in memory.
+     */
+    public boolean loadGame(byte[] rom){
+        reset();
+        return memory.loadRom(rom);
+    }
+
+    /**
+     * Saves the whole emulator state to a file, replacing it if it exists.
+     *
+     * @param path the string path of the save state file.
+     * @return true if the state was saved, false if the file could not be written.
+     */
+    public boolean saveState(String path){
+        try {
+            saveState(SaveState.mapForWrite(Paths.get(path), getStateSize()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the whole emulator state to a buffer.
+     *
+     * @param buffer the buffer to write {@link #getStateSize()} bytes to, from its position.
+     */
+    public void saveState(ByteBuffer buffer){
+        SaveState.writeHeader(buffer, cpu.getMode());
+        buffer.putLong(cycleCount);
+
+        cpu.saveState(buffer);
+        memory.saveState(buffer);
+        cpu.getGraphics().saveState(buffer);
+    }
+
+    /**
+     * Hashes the whole emulator state with 64 bit FNV-1a.
+     *
+     * @return the hash of the save state of the emulator.
+     */
+    public long getStateHash(){
+        if (hashBuffer == null || hashBuffer.capacity() != getStateSize()){
+            hashBuffer = ByteBuffer.allocate(getStateSize());
+        }
+
+        hashBuffer.clear();
+        saveState(hashBuffer);
+
+        byte[] state = hashBuffer.array();
+        long hash = 0xCBF29CE484222325L;
+
+        for (int i = SaveState.HEADER_SIZE; i < state.length; ++i){
+            hash = (hash ^ (state[i] & 0xFF)) * 0x100000001B3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Loads the whole emulator state from a file written by {@link #saveState(String)}.
+     *
+     * @param path the string path of the save state file.
+     * @return true if the state was loaded, false if the file is missing or not a save state, the state is kept.
+     */
+    public boolean loadState(String path){
+        try {
+            MappedByteBuffer buffer = SaveState.mapForRead(Paths.get(path), getStateSize());
+            return buffer != null && loadState(buffer);
+        } catch (IOException e) {
             return false;
         }
+    }
+
+    /**
+     * Reads the whole emulator state from a buffer written by {@link #saveState(ByteBuffer)}.
+     *
+     * @param buffer the buffer to read from, from its position.
+     * @return true if the state was loaded, false if the buffer does not hold a save state of the current mode, the
+     * state is kept.
+     */
+    public boolean loadState(ByteBuffer buffer){
+        if (!SaveState.readHeader(buffer, cpu.getMode())){
+            return false;
+        }
+
+        cycleCount = buffer.getLong();
+        skippedCycleCount = 0;
+        freshPresses = 0;
+        heldReleases = 0;
+        idle = false;
+
+        cpu.loadState(buffer);
+        memory.loadState(buffer);
+        cpu.getGraphics().loadState(buffer);
 
+        // Decoded and compiled code reflects the old memory.
+        engine.reset();
         return true;
     }
 
+    /**
+     * Returns the size of a save state of the current mode.
+     *
+     * @return the size in bytes, {@link SaveState#SIZE} for chip-8.
+     */
+    public int getStateSize(){
+        return SaveState.size(cpu.getMode());
+    }
+
+    /**
+     * Returns the machine emulated.
+     *
+     * @return the cpu mode.
+     */
+    public CpuMode getMode(){
+        return cpu.getMode();
+    }
+
     /**
      * Sets the draw flag.
      *
@@ -64,7 +475,104 @@ public class Chip8 {
     }
 
     /**
-     * Sets the selected key to the boolean passed.
+     * Queues a key change from another thread, it is applied when the emulation thread next polls input. Must only be
+     * called from one thread at a time.
+     *
+     * @param key which key is being set
+     * @param pressed boolean value to set key
+     * @return true if the event was queued, false if the queue is full
+     */
+    public boolean queueKey(int key, boolean pressed){
+        return input.offer(key, pressed, polledCycleCount);
+    }
+
+    /**
+     * Applies every queued key event in order, called by the emulation thread at the start of each frame. A release
+     * of a key pressed in the same poll is held back until instructions have run with the key down, it is applied by
+     * the next poll.
+     *
+     * @return the number of events applied.
+     */
+    public int pollInput(){
+        polledCycleCount = cycleCount;
+
+        int released = heldReleases & ~freshPresses;
+
+        if (released != 0){
+            heldReleases &= ~released;
+
+            for (int key = 0; key < 16; ++key){
+                if ((released >>> key & 1) != 0){
+                    applyKey(key, false);
+                }
+            }
+        }
+
+        return input.drain(keySink);
+    }
+
+    /**
+     * Applies one drained key event, holding back the release of a key no instruction has seen pressed yet.
+     */
+    private void drainKey(int key, boolean pressed){
+        int bit = 1 << key;
+
+        if (pressed){
+            // A press cancels a release still held back, the key stays down.
+            heldReleases &= ~bit;
+            freshPresses |= bit;
+        }
+        else if ((freshPresses & bit) != 0){
+            heldReleases |= bit;
+            return;
+        }
+
+        applyKey(key, pressed);
+    }
+
+    /**
+     * Applies one key event and records it to the movie, if any.
+     */
+    private void applyKey(int key, boolean pressed){
+        setKey(key, pressed);
+
+        if (movie != null){
+            movie.add(cycleCount, key, pressed);
+        }
+    }
+
+    /**
+     * Returns true if nothing but a key change can affect the emulator: the last run ended in an idle loop, both
+     * timers are stopped and no key release is held back. The caller may park until the next key event instead of
+     * running frames.
+     *
+     * @return true if the emulator is waiting for input.
+     */
+    public boolean isWaitingForInput(){
+        return idle && heldReleases == 0 && cpu.getCpuRunning() && cpu.areTimersStopped();
+    }
+
+    /**
+     * Returns the number of cycles run since the last reset.
+     *
+     * @return the cycle count.
+     */
+    public long getCycleCount(){
+        return cycleCount;
+    }
+
+    /**
+     * Returns the number of cycles skipped through idle loops rather than run since the last reset or loaded state.
+     * They are part of the cycle count.
+     *
+     * @return the skipped cycle count.
+     */
+    public long getSkippedCycleCount(){
+        return skippedCycleCount;
+    }
+
+    /**
+     * Sets the selected key to the boolean passed, must be called from the emulation thread.
      *
      * @param key which key is being set
      * @param pressed boolean value to set key
@@ -74,14 +582,60 @@ public class Chip8 {
     }
 
     /**
-     * Return the graphics in an array.
+     * Return the bit packed frame buffer.
      *
-     * @return the int[] containing the graphics to be drawn.
+     * @return the frame buffer holding one long per row.
      */
-    public int[] getFrameBuffer(){
+    public FrameBuffer getFrameBuffer(){
         return cpu.getGraphics();
     }
 
+    /**
+     * Returns the version of the display, it goes up by one for every sprite, clear or scroll that changes pixels.
+     *
+     * @return the frame buffer version, compare it with the last version shown to skip unchanged frames.
+     */
+    public long getFrameVersion(){
+        return cpu.getGraphics().getVersion();
+    }
+
+    /**
+     * Returns the display rows changed after a version.
+     *
+     * @param since the version last shown, {@link Long#MIN_VALUE} for none.
+     * @return the dirty rows, bit y set for row y.
+     */
+    public long getDirtyRows(long since){
+        return cpu.getGraphics().getDirtyRows(since);
+    }
+
+    /**
+     * Returns the display columns changed after a version.
+     *
+     * @param since the version last shown, {@link Long#MIN_VALUE} for none.
+     * @return the dirty columns of the left 64 pixels, laid out like a frame buffer row.
+     */
+    public long getDirtyColumns(long since){
+        return cpu.getGraphics().getDirtyColumns(since);
+    }
+
+    /**
+     * Return the graphics in an array, expanded from the frame buffer on every call.
+     *
+     * @return the int[] containing the graphics to be drawn row by row at the current resolution, 1 for a set pixel
+     * and 0 for a clear one on a one plane display.
+     */
+    public int[] getPixels(){
+        FrameBuffer frameBuffer = cpu.getGraphics();
+        int size = frameBuffer.getWidth() * frameBuffer.getHeight();
+
+        if (pixels == null || pixels.length != size){
+            pixels = new int[size];
+        }
+
+        return frameBuffer.toPixels(pixels);
+    }
+
     /**
      * Returns the draw flag.
      *
@@ -110,10 +664,25 @@ public class Chip8 {
     }
 
     /**
-     * Resets the emulator
+     * Returns the program counter.
+     *
+     * @return the address of the next instruction.
+     */
+    public int getProgramCounter(){
+        return cpu.getPc();
+    }
+
+    /**
+     * Resets the emulator so the instance can be reused for another game.
      */
-    private void reset(){
+    public void reset(){
+        cycleCount = 0;
+        skippedCycleCount = 0;
+        freshPresses = 0;
+        heldReleases = 0;
+        idle = false;
         cpu.reset();
         memory.reset();
+        engine.reset();
     }
 }
\ No newline at end of file
@@ -0,0 +1,415 @@
+package com.gregei.potato8.core.audio;
+
+import com.gregei.potato8.core.timing.FramePacer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays the sound timer, to the sound card, to a WAV file or nowhere.
+ *
+ * Once per frame the emulation thread calls {@link #playFrame}, which copies a pre-rendered frame of samples into a
+ * lock free ring and returns: the square wave while the sound timer runs, or the XO-CHIP audio pattern once one is
+ * loaded. A thread of its own moves the samples from the ring to the output.
+ *
+ * The sound card output never blocks the emulation thread. The ring holds one frame plus a few milliseconds and
+ * samples that do not fit are dropped, so the sound never lags more than {@link #getLatencyMillis()} behind the
+ * emulator. The output thread feeds the line in 5 ms chunks and pads with silence when the emulator falls behind or
+ * pauses. The WAV output is for headless runs and keeps every sample, waiting for room only when the writer is a
+ * second behind.
+ */
+public class AudioOutput implements AutoCloseable {
+    /**
+     * The samples per second of every output, 16 bit signed mono.
+     */
+    public static final int SAMPLE_RATE = 48000;
+
+    /**
+     * The samples rendered per 60 Hz frame.
+     */
+    public static final int SAMPLES_PER_FRAME = SAMPLE_RATE / FramePacer.FRAME_RATE;
+
+    /**
+     * The samples written to the sound card at once, 5 ms.
+     */
+    private static final int LINE_CHUNK = SAMPLE_RATE / 200;
+
+    /**
+     * The samples the sound card line buffers, 10 ms.
+     */
+    private static final int LINE_BUFFER = SAMPLE_RATE / 100;
+
+    /**
+     * The samples the ring holds for the sound card: a frame plus less than a chunk of the one before.
+     */
+    private static final int LINE_RING = 1024;
+
+    /**
+     * The samples written to a file at once and the samples the ring holds for a file, about a second.
+     */
+    private static final int FILE_CHUNK = 4096, FILE_RING = 65536;
+
+    private static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+
+    /**
+     * The output samples are written to, or null for no output.
+     */
+    private final Backend backend;
+
+    private final SampleRing ring;
+
+    private final ToneGenerator tone = new ToneGenerator();
+
+    /**
+     * The thread moving samples to the output, or null for no output.
+     */
+    private final Thread thread;
+
+    /**
+     * Flag to represent if no more frames are accepted.
+     */
+    private volatile boolean finished;
+
+    /**
+     * The number of samples written to the output, only counted by the output thread.
+     */
+    private volatile long written;
+
+    /**
+     * The number of chunks padded with silence, only counted by the output thread.
+     */
+    private volatile long underruns;
+
+    /**
+     * The number of samples dropped because the ring was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The first error writing samples, after which the output stops.
+     */
+    private volatile IOException error;
+
+    private AudioOutput(Backend backend){
+        this.backend = backend;
+
+        if (backend == null){
+            ring = null;
+            thread = null;
+            return;
+        }
+
+        ring = new SampleRing(backend.isRealTime() ? LINE_RING : FILE_RING);
+
+        thread = new Thread(this::output, "potato8-audio");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Starts playing to the default sound card.
+     *
+     * @return the running output.
+     * @throws LineUnavailableException if no line for 48 kHz 16 bit mono audio can be opened.
+     */
+    public static AudioOutput line() throws LineUnavailableException {
+        return new AudioOutput(new Line());
+    }
+
+    /**
+     * Starts writing every sample to a WAV file, finished when the output is closed.
+     *
+     * @param file the WAV file, replaced if it exists.
+     * @return the running output.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static AudioOutput wav(Path file) throws IOException {
+        return new AudioOutput(new Wav(file));
+    }
+
+    /**
+     * Returns an output that discards every frame without rendering it.
+     *
+     * @return the silent output.
+     */
+    public static AudioOutput none(){
+        return new AudioOutput(null);
+    }
+
+    /**
+     * Queues the sound of one frame. Never blocks on the sound card output, the samples that do not fit are
+     * dropped. Must only be called from one thread at a time.
+     *
+     * @param on true if the sound timer ran during the frame.
+     * @param pattern the XO-CHIP audio pattern, all zero for the plain square wave.
+     * @param pitch the XO-CHIP pitch register.
+     */
+    public void playFrame(boolean on, byte[] pattern, int pitch){
+        if (backend == null || finished || error != null){
+            return;
+        }
+
+        short[] samples = tone.render(on, pattern, pitch);
+
+        if (!backend.isRealTime()){
+            while (ring.free() < samples.length && !finished && error == null){
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        int stored = ring.write(samples, 0, samples.length);
+
+        if (stored < samples.length){
+            dropped.addAndGet(samples.length - stored);
+        }
+    }
+
+    /**
+     * The output thread loop. The sound card is fed a chunk at a time until finished, padded with silence when the
+     * ring runs dry, and a file gets what is queued until finished and drained.
+     */
+    private void output(){
+        boolean realTime = backend.isRealTime();
+        int chunk = realTime ? LINE_CHUNK : FILE_CHUNK;
+        short[] samples = new short[chunk];
+        ByteBuffer bytes = ByteBuffer.allocate(chunk * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            while (true){
+                boolean last = finished;
+                int count = ring.read(samples, 0, chunk);
+
+                if (realTime){
+                    if (last){
+                        break;
+                    }
+
+                    if (count < chunk){
+                        // Silence keeps the line running, so the next frame plays without the line restarting.
+                        for (int i = count; i < chunk; ++i){
+                            samples[i] = 0;
+                        }
+
+                        count = chunk;
+                        underruns++;
+                    }
+                }
+                else if (count == 0){
+                    if (last){
+                        break;
+                    }
+
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+
+                bytes.clear();
+                bytes.asShortBuffer().put(samples, 0, count);
+                backend.write(bytes.array(), count * 2);
+                written += count;
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        try {
+            backend.finish(written);
+        } catch (IOException e) {
+            if (error == null){
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting frames. The sound card stops at once, a file gets the queued samples and is finished before
+     * this returns.
+     *
+     * @throws IOException if samples could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+
+        if (thread == null){
+            return;
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (error != null){
+            throw error;
+        }
+    }
+
+    /**
+     * Returns the most time between a frame being queued and its first sample reaching the output.
+     *
+     * @return the latency bound in milliseconds, 0 for no output and for files.
+     */
+    public int getLatencyMillis(){
+        if (backend == null || !backend.isRealTime()){
+            return 0;
+        }
+
+        int samples = LINE_RING - SAMPLES_PER_FRAME + backend.getBufferedSamples();
+        return samples * 1000 / SAMPLE_RATE;
+    }
+
+    /**
+     * Returns the number of samples written to the output, silence padding included.
+     *
+     * @return the written sample count.
+     */
+    public long getWritten(){
+        return written;
+    }
+
+    /**
+     * Returns the number of chunks the sound card was fed silence for because no frame was queued in time.
+     *
+     * @return the underrun count.
+     */
+    public long getUnderruns(){
+        return underruns;
+    }
+
+    /**
+     * Returns the number of samples dropped because the output was behind, for example while fast forwarding.
+     *
+     * @return the dropped sample count.
+     */
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Returns the first error writing samples.
+     *
+     * @return the error, or null.
+     */
+    public IOException getError(){
+        return error;
+    }
+
+    /**
+     * Writes bytes of 16 bit little endian samples, only called from the output thread.
+     */
+    private interface Backend {
+        boolean isRealTime();
+
+        int getBufferedSamples();
+
+        void write(byte[] data, int length) throws IOException;
+
+        void finish(long samples) throws IOException;
+    }
+
+    /**
+     * Plays to the default sound card, writes block until the line has room so the line sets the pace.
+     */
+    private static class Line implements Backend {
+        private final SourceDataLine line;
+
+        Line() throws LineUnavailableException {
+            try {
+                line = AudioSystem.getSourceDataLine(FORMAT);
+            } catch (IllegalArgumentException e) {
+                throw new LineUnavailableException("No line supports " + FORMAT);
+            }
+
+            line.open(FORMAT, LINE_BUFFER * 2);
+            line.start();
+        }
+
+        @Override
+        public boolean isRealTime(){
+            return true;
+        }
+
+        @Override
+        public int getBufferedSamples(){
+            return line.getBufferSize() / 2;
+        }
+
+        @Override
+        public void write(byte[] data, int length){
+            line.write(data, 0, length);
+        }
+
+        @Override
+        public void finish(long samples){
+            line.stop();
+            line.close();
+        }
+    }
+
+    /**
+     * Writes a WAV file, the header is filled in with the final length once finished.
+     */
+    private static class Wav implements Backend {
+        private static final int HEADER_SIZE = 44;
+
+        private final FileChannel channel;
+
+        Wav(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_SIZE);
+        }
+
+        @Override
+        public boolean isRealTime(){
+            return false;
+        }
+
+        @Override
+        public int getBufferedSamples(){
+            return 0;
+        }
+
+        @Override
+        public void write(byte[] data, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void finish(long samples) throws IOException {
+            int dataSize = (int)Math.min(samples * 2, Integer.MAX_VALUE - HEADER_SIZE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(HEADER_SIZE - 8 + dataSize);
+            header.put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '}).putInt(16);
+            header.putShort((short)1).putShort((short)1).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2);
+            header.putShort((short)2).putShort((short)16);
+            header.put(new byte[]{'d', 'a', 't', 'a'}).putInt(dataSize);
+            header.flip();
+
+            while (header.hasRemaining()){
+                channel.write(header, header.position());
+            }
+
+            channel.close();
+        }
+    }
+}
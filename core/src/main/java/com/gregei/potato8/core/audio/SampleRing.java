@@ -0,0 +1,93 @@
+package com.gregei.potato8.core.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free ring of samples between one producing and one consuming thread. Neither side ever waits: a write
+ * stores what fits and a read takes what is there.
+ */
+final class SampleRing {
+    private final short[] samples;
+    private final int mask;
+
+    /**
+     * The number of samples ever written and read, each only advanced by its own side.
+     */
+    private final AtomicLong written = new AtomicLong(), read = new AtomicLong();
+
+    /**
+     * Creates a ring.
+     *
+     * @param capacity the most samples held at once, a power of two.
+     */
+    SampleRing(int capacity){
+        if (Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+
+        samples = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Stores as many samples as fit, called by the producer only.
+     *
+     * @return the number of samples stored.
+     */
+    int write(short[] source, int offset, int length){
+        long head = written.get();
+        int count = (int)Math.min(length, samples.length - (head - read.get()));
+
+        for (int i = 0; i < count; ++i){
+            samples[(int)(head + i) & mask] = source[offset + i];
+        }
+
+        // The release store publishes the samples before the consumer can see the new count.
+        written.lazySet(head + count);
+        return count;
+    }
+
+    /**
+     * Takes up to the passed number of samples, called by the consumer only.
+     *
+     * @return the number of samples taken.
+     */
+    int read(short[] target, int offset, int length){
+        long tail = read.get();
+        int count = (int)Math.min(length, written.get() - tail);
+
+        for (int i = 0; i < count; ++i){
+            target[offset + i] = samples[(int)(tail + i) & mask];
+        }
+
+        read.lazySet(tail + count);
+        return count;
+    }
+
+    /**
+     * Returns the number of samples waiting to be read.
+     *
+     * @return the queued sample count.
+     */
+    int size(){
+        return (int)(written.get() - read.get());
+    }
+
+    /**
+     * Returns the number of samples that fit.
+     *
+     * @return the free sample count.
+     */
+    int free(){
+        return samples.length - size();
+    }
+
+    /**
+     * Returns the most samples held at once.
+     *
+     * @return the capacity.
+     */
+    int capacity(){
+        return samples.length;
+    }
+}
@@ -0,0 +1,90 @@
+package com.gregei.potato8.core.audio;
+
+/**
+ * Renders the sound of one 60 Hz frame.
+ *
+ * A silent frame and a frame of the square wave are rendered once, the square wave in whole periods so frames join
+ * without a click. An XO-CHIP audio pattern is played bit by bit, one bit of the 128 per pattern step, with the step
+ * rate set by the pitch register: 4000 * 2 ^ ((pitch - 64) / 48) steps per second.
+ */
+final class ToneGenerator {
+    /**
+     * The amplitude of the wave, an eighth of full scale.
+     */
+    static final short AMPLITUDE = 4096;
+
+    /**
+     * The length of a square wave period in samples, 480 Hz at 48 kHz, a whole number of periods per frame.
+     */
+    private static final int SQUARE_PERIOD = 100;
+
+    private static final short[] SILENCE = new short[AudioOutput.SAMPLES_PER_FRAME];
+    private static final short[] SQUARE = new short[AudioOutput.SAMPLES_PER_FRAME];
+
+    /**
+     * The pattern steps per sample of every pitch, in 32.32 fixed point.
+     */
+    private static final long[] STEPS = new long[256];
+
+    static {
+        for (int i = 0; i < SQUARE.length; ++i){
+            SQUARE[i] = i % SQUARE_PERIOD < SQUARE_PERIOD / 2 ? AMPLITUDE : -AMPLITUDE;
+        }
+
+        for (int pitch = 0; pitch < STEPS.length; ++pitch){
+            double rate = 4000 * Math.pow(2, (pitch - 64) / 48.0);
+            STEPS[pitch] = (long)(rate / AudioOutput.SAMPLE_RATE * (1L << 32));
+        }
+    }
+
+    /**
+     * The frame an audio pattern is rendered into.
+     */
+    private final short[] frame = new short[AudioOutput.SAMPLES_PER_FRAME];
+
+    /**
+     * The position in the audio pattern, in 32.32 fixed point, kept between frames.
+     */
+    private long phase;
+
+    /**
+     * Renders one frame.
+     *
+     * @param on true if the sound timer is running.
+     * @param pattern the 16 byte XO-CHIP audio pattern, all zero for the square wave.
+     * @param pitch the XO-CHIP pitch register.
+     * @return the samples of the frame, valid until the next call.
+     */
+    short[] render(boolean on, byte[] pattern, int pitch){
+        if (!on){
+            return SILENCE;
+        }
+
+        if (isEmpty(pattern)){
+            return SQUARE;
+        }
+
+        long step = STEPS[pitch & 0xFF];
+        long position = phase;
+
+        for (int i = 0; i < frame.length; ++i){
+            int bit = (int)(position >>> 32) & 127;
+
+            frame[i] = (pattern[bit >>> 3] << (bit & 7) & 0x80) != 0 ? AMPLITUDE : -AMPLITUDE;
+            position += step;
+        }
+
+        phase = position;
+        return frame;
+    }
+
+    private static boolean isEmpty(byte[] pattern){
+        for (byte b : pattern){
+            if (b != 0){
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,156 @@
+package com.gregei.potato8.core.batch;
+
+import com.gregei.potato8.core.cpu.EngineType;
+import com.gregei.potato8.core.log.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line front end for {@link BatchRunner}.
+ *
+ * Usage: BatchMain [--threads N] [--engine TYPE] [--cycles N] [--ipf N] [--repeat N] [--spec FILE] [ROM_PATH...]
+ *
+ * Every rom passed on the command line runs for --cycles cycles, --ipf of them to a 60 Hz frame. A spec file holds
+ * one job per line:
+ *
+ *     ROM_PATH CYCLES [stop-at=ADDRESS] [press=CYCLE:KEY] [release=CYCLE:KEY]...
+ *
+ * with addresses and keys in hex and lines starting with # ignored. Every job is queued --repeat times.
+ */
+public class BatchMain {
+    public static void main(String[] args){
+        int threads = Runtime.getRuntime().availableProcessors();
+        EngineType engine = EngineType.PREDECODED;
+        long cycles = 1_000_000;
+        int instructionsPerFrame = RunSpec.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        int repeat = 1;
+        String specFile = null;
+        List<String> romPaths = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; ++i){
+                switch (args[i]){
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--engine":
+                        engine = EngineType.valueOf(args[++i].toUpperCase());
+                        break;
+
+                    case "--cycles":
+                        cycles = Long.parseLong(args[++i]);
+                        break;
+
+                    case "--ipf":
+                        instructionsPerFrame = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--spec":
+                        specFile = args[++i];
+                        break;
+
+                    default:
+                        romPaths.add(args[i]);
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            printUsage();
+            return;
+        }
+
+        List<RunSpec> jobs = new ArrayList<>();
+
+        for (String romPath : romPaths){
+            jobs.add(new RunSpec(romPath, cycles).setEngine(engine).setInstructionsPerFrame(instructionsPerFrame));
+        }
+
+        if (specFile != null){
+            try {
+                jobs.addAll(readSpecs(specFile, engine, instructionsPerFrame));
+            } catch (IOException | RuntimeException e) {
+                Log.info("Spec File Error! %s", e.getMessage());
+                return;
+            }
+        }
+
+        if (jobs.isEmpty()){
+            printUsage();
+            return;
+        }
+
+        List<RunSpec> queued = new ArrayList<>();
+
+        for (int i = 0; i < repeat; ++i){
+            queued.addAll(jobs);
+        }
+
+        try (BatchRunner runner = new BatchRunner(threads)) {
+            BatchReport report = runner.run(queued);
+
+            for (RunResult result : report.getResults()){
+                Log.info("%s", result);
+            }
+
+            Log.info("%s", report);
+        }
+    }
+
+    /**
+     * Reads one job per line of a spec file.
+     */
+    private static List<RunSpec> readSpecs(String path, EngineType engine, int instructionsPerFrame)
+            throws IOException {
+        List<RunSpec> specs = new ArrayList<>();
+
+        for (String line : Files.readAllLines(Paths.get(path))){
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            RunSpec spec = new RunSpec(fields[0], Long.parseLong(fields[1])).setEngine(engine)
+                    .setInstructionsPerFrame(instructionsPerFrame);
+
+            for (int i = 2; i < fields.length; ++i){
+                String[] option = fields[i].split("=", 2);
+
+                switch (option[0]){
+                    case "stop-at":
+                        spec.addStopCondition(StopCondition.atAddress(Integer.parseInt(option[1], 16)));
+                        break;
+
+                    case "press":
+                    case "release":
+                        String[] event = option[1].split(":", 2);
+                        spec.addInput(Long.parseLong(event[0]), Integer.parseInt(event[1], 16),
+                                option[0].equals("press"));
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + fields[i]);
+                }
+            }
+
+            specs.add(spec);
+        }
+
+        return specs;
+    }
+
+    private static void printUsage(){
+        Log.info("Usage: BatchMain [--threads N] [--engine TYPE] [--cycles N] [--ipf N] [--repeat N] [--spec FILE] "
+                + "[ROM_PATH...]");
+    }
+}
@@ -0,0 +1,80 @@
+package com.gregei.potato8.core.batch;
+
+import java.util.Collections;
+import java.util.List;
+
+public class BatchReport {
+    private final List<RunResult> results;
+    private final long wallNanos;
+    private final int parallelism;
+
+    BatchReport(List<RunResult> results, long wallNanos, int parallelism){
+        this.results = Collections.unmodifiableList(results);
+        this.wallNanos = wallNanos;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the results in the same order as the specs passed to the runner.
+     */
+    public List<RunResult> getResults(){
+        return results;
+    }
+
+    /**
+     * @return the wall clock time of the whole batch, in nanoseconds.
+     */
+    public long getWallNanos(){
+        return wallNanos;
+    }
+
+    /**
+     * @return the number of worker threads that ran the batch.
+     */
+    public int getParallelism(){
+        return parallelism;
+    }
+
+    /**
+     * @return the total number of cycles run by every job, both executed and skipped through idle loops.
+     */
+    public long getTotalCycles(){
+        long total = 0;
+
+        for (RunResult result : results){
+            total += result.getCycles();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return the total number of instructions actually executed by every job.
+     */
+    public long getExecutedCycles(){
+        long total = 0;
+
+        for (RunResult result : results){
+            total += result.getExecutedCycles();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return the aggregate throughput of the batch, in executed instructions per second of wall clock time. Cycles
+     * skipped through idle loops are left out.
+     */
+    public double getInstructionsPerSecond(){
+        return wallNanos == 0 ? 0 : getExecutedCycles() * 1e9 / wallNanos;
+    }
+
+    @Override
+    public String toString(){
+        long executed = getExecutedCycles();
+
+        return String.format("%d runs, %d instructions executed and %d idle cycles skipped in %.3fs on %d threads, "
+                + "%.0f instructions/s", results.size(), executed, getTotalCycles() - executed, wallNanos / 1e9,
+                parallelism, getInstructionsPerSecond());
+    }
+}
@@ -0,0 +1,239 @@
+package com.gregei.potato8.core.batch;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.cpu.EngineType;
+import com.gregei.potato8.core.cpu.XorShiftRandom;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs batches of headless jobs on a work stealing fork join pool. Every worker thread keeps one Chip8 per engine
+ * type and resets it between jobs, and every rom is read from disk once per runner.
+ */
+public class BatchRunner implements AutoCloseable {
+    /**
+     * The number of jobs a task runs itself before splitting the rest for idle workers to steal.
+     */
+    private static final int SPLIT_THRESHOLD = 1;
+
+    /**
+     * The pool running the jobs.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The emulators owned by each worker thread, indexed by engine type ordinal.
+     */
+    private final ThreadLocal<Chip8[]> instances =
+            ThreadLocal.withInitial(() -> new Chip8[EngineType.values().length]);
+
+    /**
+     * The roms read so far, by path.
+     */
+    private final ConcurrentHashMap<String, byte[]> roms = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a runner using every available core.
+     */
+    public BatchRunner(){
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a runner with a fixed number of worker threads.
+     *
+     * @param parallelism the number of worker threads.
+     */
+    public BatchRunner(int parallelism){
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Runs every job and waits for all of them to finish.
+     *
+     * @param specs the jobs to run.
+     * @return the results, in the same order as the specs, and the aggregate throughput.
+     */
+    public BatchReport run(List<RunSpec> specs){
+        RunResult[] results = new RunResult[specs.size()];
+
+        long start = System.nanoTime();
+        pool.invoke(new RunTask(specs, results, 0, specs.size()));
+        long wallNanos = System.nanoTime() - start;
+
+        return new BatchReport(Arrays.asList(results), wallNanos, pool.getParallelism());
+    }
+
+    /**
+     * Runs one job on the calling thread.
+     *
+     * @param spec the job to run.
+     * @return the result of the job.
+     */
+    public RunResult run(RunSpec spec){
+        Chip8[] owned = instances.get();
+        int index = spec.getEngine().ordinal();
+
+        if (owned[index] == null){
+            owned[index] = new Chip8();
+            owned[index].setEngine(spec.getEngine());
+        }
+
+        return execute(owned[index], spec);
+    }
+
+    private RunResult execute(Chip8 chip8, RunSpec spec){
+        long start = System.nanoTime();
+        long cycles = 0;
+        long skippedCycles = 0;
+        String error = null;
+
+        try {
+            byte[] rom = readRom(spec.getRomPath());
+
+            if (rom == null){
+                chip8.reset();
+                error = "rom not found";
+            }
+            else if (!chip8.loadGame(rom)){
+                error = "rom does not fit in memory";
+            }
+            else{
+                chip8.setRandom(new XorShiftRandom(spec.getSeed()));
+                chip8.setCpuRunning(true);
+                cycles = runLoaded(chip8, spec);
+                skippedCycles = chip8.getSkippedCycleCount();
+            }
+        } catch (RuntimeException e) {
+            error = e.toString();
+        }
+
+        long nanos = System.nanoTime() - start;
+        return new RunResult(spec, cycles, skippedCycles, nanos, chip8.getFrameBuffer().hash(), !chip8.isCpuRunning(),
+                error);
+    }
+
+    /**
+     * Runs the loaded rom a 60 Hz frame at a time, ticking the timers at the end of every frame as they do in real
+     * time. A frame runs in slices ending at the next scripted input, so inputs land on their cycle, and one
+     * instruction at a time while a stop condition must be checked after every instruction.
+     */
+    private long runLoaded(Chip8 chip8, RunSpec spec){
+        List<RunSpec.KeyInput> inputs = spec.getInputs();
+        List<StopCondition> stopConditions = spec.getStopConditions();
+
+        long budget = spec.getCycleBudget();
+        int instructionsPerFrame = spec.getInstructionsPerFrame();
+        boolean perInstruction = isPerInstruction(stopConditions);
+        long cycles = 0;
+        int nextInput = 0;
+
+        while (cycles < budget){
+            long frameEnd = Math.min(cycles + instructionsPerFrame, budget);
+
+            while (cycles < frameEnd){
+                while (nextInput < inputs.size() && inputs.get(nextInput).cycle <= cycles){
+                    RunSpec.KeyInput input = inputs.get(nextInput++);
+                    chip8.setKey(input.key, input.pressed);
+                }
+
+                if (shouldStop(stopConditions, chip8, cycles)){
+                    return cycles;
+                }
+
+                long slice = perInstruction ? 1 : frameEnd - cycles;
+
+                if (nextInput < inputs.size()){
+                    slice = Math.min(slice, inputs.get(nextInput).cycle - cycles);
+                }
+
+                int ran = chip8.runCycles((int)slice);
+                cycles += ran;
+
+                if (ran == 0){
+                    return cycles;
+                }
+            }
+
+            chip8.tickTimers();
+        }
+
+        return cycles;
+    }
+
+    private static boolean isPerInstruction(List<StopCondition> stopConditions){
+        for (int i = 0; i < stopConditions.size(); ++i){
+            if (stopConditions.get(i).isPerInstruction()){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean shouldStop(List<StopCondition> stopConditions, Chip8 chip8, long cycles){
+        for (int i = 0; i < stopConditions.size(); ++i){
+            if (stopConditions.get(i).shouldStop(chip8, cycles)){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private byte[] readRom(String path){
+        return roms.computeIfAbsent(path, key -> {
+            try {
+                return Files.readAllBytes(Paths.get(key));
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Shuts down the worker threads.
+     */
+    @Override
+    public void close(){
+        pool.shutdown();
+    }
+
+    /**
+     * Runs a range of jobs, splitting off the upper half while the range is large enough to share.
+     */
+    private class RunTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<RunSpec> specs;
+        private final RunResult[] results;
+        private final int from, to;
+
+        RunTask(List<RunSpec> specs, RunResult[] results, int from, int to){
+            this.specs = specs;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if (to - from > SPLIT_THRESHOLD){
+                int middle = (from + to) >>> 1;
+                invokeAll(new RunTask(specs, results, from, middle), new RunTask(specs, results, middle, to));
+                return;
+            }
+
+            for (int i = from; i < to; ++i){
+                results[i] = run(specs.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.gregei.potato8.core.batch;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.audio.AudioOutput;
+import com.gregei.potato8.core.cpu.CpuMode;
+import com.gregei.potato8.core.cpu.EngineType;
+import com.gregei.potato8.core.export.FrameExporter;
+import com.gregei.potato8.core.input.InputMovie;
+import com.gregei.potato8.core.log.Log;
+import com.gregei.potato8.core.profile.PcProfiler;
+import com.gregei.potato8.core.timing.FramePacer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Replays an input movie headless as fast as the host allows and checks the run ends in the recorded state.
+ *
+ * Usage: ReplayMain [--engine TYPE] [--mode MODE] [--repeat N] [--profile HEATMAP_PATH] [--gif GIF_PATH]
+ *        [--wav WAV_PATH] ROM_PATH MOVIE_PATH
+ *
+ * Exits with status 1 if any replay diverged, which makes it usable as a regression test. With --repeat the movie is
+ * replayed N times on the same instance, a fixed workload for benchmarking. With --profile the replays run on the
+ * profiling interpreter, a hotspot report is printed and the per address execution counts are written to the
+ * heatmap file. With --gif the first replay is exported to an animated GIF at real time speed, and with --wav its
+ * sound to a WAV file. The cpu mode is picked from the rom extension unless --mode names one.
+ */
+public class ReplayMain {
+    public static void main(String[] args){
+        EngineType engine = EngineType.PREDECODED;
+        CpuMode mode = null;
+        int repeat = 1;
+        String romPath = null, moviePath = null, heatmapPath = null, gifPath = null, wavPath = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i){
+                switch (args[i]){
+                    case "--engine":
+                        engine = EngineType.valueOf(args[++i].toUpperCase());
+                        break;
+
+                    case "--mode":
+                        mode = CpuMode.valueOf(args[++i].toUpperCase());
+                        break;
+
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--profile":
+                        heatmapPath = args[++i];
+                        break;
+
+                    case "--gif":
+                        gifPath = args[++i];
+                        break;
+
+                    case "--wav":
+                        wavPath = args[++i];
+                        break;
+
+                    default:
+                        if (romPath == null){
+                            romPath = args[i];
+                        }
+                        else{
+                            moviePath = args[i];
+                        }
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            moviePath = null;
+        }
+
+        if (moviePath == null){
+            Log.info("Usage: ReplayMain [--engine TYPE] [--mode MODE] [--repeat N] "
+                    + "[--profile HEATMAP_PATH] [--gif GIF_PATH] [--wav WAV_PATH] ROM_PATH MOVIE_PATH");
+            return;
+        }
+
+        byte[] rom;
+        InputMovie movie;
+
+        try {
+            rom = Files.readAllBytes(Paths.get(romPath));
+            movie = InputMovie.load(moviePath);
+        } catch (IOException e) {
+            Log.info("Replay Error! %s", e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Chip8 chip8 = new Chip8(mode != null ? mode : CpuMode.forRom(romPath));
+        chip8.setEngine(engine);
+
+        PcProfiler profiler = heatmapPath != null ? new PcProfiler() : null;
+        chip8.setProfiler(profiler);
+
+        int failures = 0;
+
+        if (gifPath != null || wavPath != null){
+            try {
+                FrameExporter exporter = gifPath != null
+                        ? FrameExporter.gif(Paths.get(gifPath), 4, FramePacer.FRAME_RATE) : null;
+                AudioOutput audio = wavPath != null ? AudioOutput.wav(Paths.get(wavPath)) : null;
+
+                chip8.setAudio(audio);
+
+                if (!movie.replay(chip8, rom, emulator -> {
+                    if (exporter != null){
+                        exporter.submitBlocking(emulator.getFrameBuffer());
+                    }
+                })){
+                    failures++;
+                }
+
+                chip8.setAudio(null);
+
+                // Waits for the queued frames and samples, the replay runs far ahead of the encoders.
+                if (exporter != null){
+                    exporter.close();
+                    Log.info("Exported %d frames to %s", exporter.getWritten(), gifPath);
+                }
+
+                if (audio != null){
+                    audio.close();
+                    Log.info("Exported %.1f s of audio to %s",
+                            audio.getWritten() / (double)AudioOutput.SAMPLE_RATE, wavPath);
+                }
+            } catch (IOException e) {
+                Log.info("Export Error! %s", e.getMessage());
+                failures++;
+            }
+        }
+
+        for (int i = 0; i < repeat; ++i){
+            long start = System.nanoTime();
+            boolean matched = movie.replay(chip8, rom);
+            long nanos = System.nanoTime() - start;
+
+            if (!matched){
+                failures++;
+            }
+
+            Log.info("%s %d cycles %d events %.3f ms %.1f M inst/s",
+                    matched ? "PASS" : "FAIL", chip8.getCycleCount(), movie.getEventCount(), nanos / 1e6,
+                    chip8.getCycleCount() * 1e3 / Math.max(nanos, 1));
+        }
+
+        if (profiler != null){
+            StringWriter report = new StringWriter();
+            profiler.writeReport(report, 20);
+            Log.info(report.toString().stripTrailing());
+
+            try {
+                profiler.writeHeatmap(heatmapPath);
+            } catch (IOException e) {
+                Log.info("Heatmap Error! %s", e.getMessage());
+            }
+        }
+
+        if (failures > 0){
+            System.exit(1);
+        }
+    }
+}
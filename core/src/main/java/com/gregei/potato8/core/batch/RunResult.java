@@ -0,0 +1,83 @@
+package com.gregei.potato8.core.batch;
+
+public class RunResult {
+    private final RunSpec spec;
+    private final long cycles;
+    private final long skippedCycles;
+    private final long nanos;
+    private final long frameHash;
+    private final boolean halted;
+    private final String error;
+
+    RunResult(RunSpec spec, long cycles, long skippedCycles, long nanos, long frameHash, boolean halted, String error){
+        this.spec = spec;
+        this.cycles = cycles;
+        this.skippedCycles = skippedCycles;
+        this.nanos = nanos;
+        this.frameHash = frameHash;
+        this.halted = halted;
+        this.error = error;
+    }
+
+    /**
+     * @return the job that produced this result.
+     */
+    public RunSpec getSpec(){
+        return spec;
+    }
+
+    /**
+     * @return the number of cycles run, both executed and skipped through idle loops.
+     */
+    public long getCycles(){
+        return cycles;
+    }
+
+    /**
+     * @return the number of cycles skipped through idle loops rather than executed.
+     */
+    public long getSkippedCycles(){
+        return skippedCycles;
+    }
+
+    /**
+     * @return the number of instructions actually executed.
+     */
+    public long getExecutedCycles(){
+        return cycles - skippedCycles;
+    }
+
+    /**
+     * @return the wall clock time spent running the job, in nanoseconds.
+     */
+    public long getNanos(){
+        return nanos;
+    }
+
+    /**
+     * @return the hash of the final frame buffer, see {@link com.gregei.potato8.core.graphics.FrameBuffer#hash()}.
+     */
+    public long getFrameHash(){
+        return frameHash;
+    }
+
+    /**
+     * @return true if the cpu halted on an unimplemented opcode.
+     */
+    public boolean isHalted(){
+        return halted;
+    }
+
+    /**
+     * @return the reason the job failed, or null if it ran.
+     */
+    public String getError(){
+        return error;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%s cycles=%d skipped=%d time=%.3fms frame=%016x%s%s", spec.getRomPath(), cycles,
+                skippedCycles, nanos / 1e6, frameHash, halted ? " halted" : "", error != null ? " error=" + error : "");
+    }
+}
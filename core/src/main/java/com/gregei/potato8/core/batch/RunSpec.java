@@ -0,0 +1,206 @@
+package com.gregei.potato8.core.batch;
+
+import com.gregei.potato8.core.cpu.EngineType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class RunSpec {
+    /**
+     * The number of cycles run per 60 Hz frame by default. Headless jobs run as fast as the host allows rather than
+     * in real time, so frames are long enough for the fast engines to run whole blocks between timer ticks.
+     */
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 1000;
+
+    /**
+     * The path of the rom to run.
+     */
+    private final String romPath;
+
+    /**
+     * The maximum number of cycles to run.
+     */
+    private final long cycleBudget;
+
+    /**
+     * The engine to execute the rom with.
+     */
+    private EngineType engine = EngineType.PREDECODED;
+
+    /**
+     * The scripted key presses and releases, kept sorted by cycle.
+     */
+    private final List<KeyInput> inputs = new ArrayList<>();
+
+    /**
+     * The conditions ending the run before the cycle budget is used.
+     */
+    private final List<StopCondition> stopConditions = new ArrayList<>();
+
+    /**
+     * The number of cycles run per 60 Hz frame, the timers tick once per frame.
+     */
+    private int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    /**
+     * The seed of the random source, fixed so repeated runs end in the same state.
+     */
+    private long seed;
+
+    public RunSpec(String romPath, long cycleBudget){
+        this.romPath = romPath;
+        this.cycleBudget = cycleBudget;
+
+        stopConditions.add(StopCondition.HALTED);
+    }
+
+    /**
+     * Scripts a key press or release before the passed cycle runs.
+     *
+     * @param cycle the cycle count at which the key changes.
+     * @param key the chip-8 key, 0 to F.
+     * @param pressed true to press the key, false to release it.
+     * @return this spec.
+     */
+    public RunSpec addInput(long cycle, int key, boolean pressed){
+        KeyInput input = new KeyInput(cycle, key, pressed);
+        int index = inputs.size();
+
+        while (index > 0 && inputs.get(index - 1).cycle > cycle){
+            --index;
+        }
+
+        inputs.add(index, input);
+        return this;
+    }
+
+    /**
+     * Adds a condition ending the run.
+     *
+     * @param condition the condition to add.
+     * @return this spec.
+     */
+    public RunSpec addStopCondition(StopCondition condition){
+        stopConditions.add(condition);
+        return this;
+    }
+
+    /**
+     * Sets the engine to execute the rom with.
+     *
+     * @param engine the engine type.
+     * @return this spec.
+     */
+    public RunSpec setEngine(EngineType engine){
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Sets how many cycles run per 60 Hz frame, and so how fast the timers run against the cpu.
+     *
+     * @param instructionsPerFrame the number of cycles, at least 1.
+     * @return this spec.
+     */
+    public RunSpec setInstructionsPerFrame(int instructionsPerFrame){
+        this.instructionsPerFrame = Math.max(instructionsPerFrame, 1);
+        return this;
+    }
+
+    /**
+     * Sets the seed of the random source used by Cxkk.
+     *
+     * @param seed the seed.
+     * @return this spec.
+     */
+    public RunSpec setSeed(long seed){
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @return the path of the rom to run.
+     */
+    public String getRomPath(){
+        return romPath;
+    }
+
+    /**
+     * @return the maximum number of cycles to run.
+     */
+    public long getCycleBudget(){
+        return cycleBudget;
+    }
+
+    /**
+     * @return the engine to execute the rom with.
+     */
+    public EngineType getEngine(){
+        return engine;
+    }
+
+    /**
+     * @return the scripted inputs sorted by cycle.
+     */
+    public List<KeyInput> getInputs(){
+        return Collections.unmodifiableList(inputs);
+    }
+
+    /**
+     * @return the conditions ending the run early.
+     */
+    public List<StopCondition> getStopConditions(){
+        return Collections.unmodifiableList(stopConditions);
+    }
+
+    /**
+     * @return the number of cycles run per 60 Hz frame.
+     */
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+
+    /**
+     * @return the seed of the random source.
+     */
+    public long getSeed(){
+        return seed;
+    }
+
+    /**
+     * A scripted key change at a cycle count.
+     */
+    public static class KeyInput {
+        final long cycle;
+        final int key;
+        final boolean pressed;
+
+        KeyInput(long cycle, int key, boolean pressed){
+            this.cycle = cycle;
+            this.key = key;
+            this.pressed = pressed;
+        }
+
+        /**
+         * @return the cycle count at which the key changes.
+         */
+        public long getCycle(){
+            return cycle;
+        }
+
+        /**
+         * @return the chip-8 key, 0 to F.
+         */
+        public int getKey(){
+            return key;
+        }
+
+        /**
+         * @return true for a press, false for a release.
+         */
+        public boolean isPressed(){
+            return pressed;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.gregei.potato8.core.batch;
+
+import com.gregei.potato8.core.Chip8;
+
+public interface StopCondition {
+    /**
+     * Stops the run once the cpu has halted.
+     */
+    StopCondition HALTED = (chip8, cycles) -> !chip8.isCpuRunning();
+
+    /**
+     * Returns true if the run should end, checked between frames and before every scripted input.
+     *
+     * @param chip8 the emulator running the job.
+     * @param cycles the number of cycles run so far.
+     * @return true to stop the run.
+     */
+    boolean shouldStop(Chip8 chip8, long cycles);
+
+    /**
+     * Returns true if the condition must be checked after every instruction, as it may hold for a single one.
+     * Runs with such a condition execute one instruction at a time.
+     *
+     * @return true to check after every instruction, false to check between frames.
+     */
+    default boolean isPerInstruction(){
+        return false;
+    }
+
+    /**
+     * Stops the run once the program counter reaches an address, checked after every instruction.
+     *
+     * @param address the address to stop at.
+     * @return the stop condition.
+     */
+    static StopCondition atAddress(int address){
+        return new StopCondition() {
+            @Override
+            public boolean shouldStop(Chip8 chip8, long cycles){
+                return chip8.getProgramCounter() == address;
+            }
+
+            @Override
+            public boolean isPerInstruction(){
+                return true;
+            }
+        };
+    }
+}
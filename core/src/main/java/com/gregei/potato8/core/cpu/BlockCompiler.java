@@ -0,0 +1,729 @@
+package com.gregei.potato8.core.cpu;
+
+import com.gregei.potato8.core.memory.Memory;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Translates a basic block of chip-8 opcodes into a hidden class implementing {@link CompiledBlock}.
+ *
+ * The generated code keeps V0-VF and I in JVM locals and only writes them back to the cpu before calling a cpu
+ * helper and when the block exits. It contains no branches, so it needs no stack map frames: flags and skips are
+ * computed with shifts.
+ */
+final class BlockCompiler implements Opcodes {
+    /**
+     * The maximum number of instructions in one block.
+     */
+    static final int MAX_BLOCK_LENGTH = 64;
+
+    /*
+     * How an opcode affects block scanning.
+     */
+    private static final int STRAIGHT = 0;
+    private static final int TERMINATOR = 1;
+    private static final int UNSUPPORTED = 2;
+
+    private static final String CPU_NAME = Type.getInternalName(CPU.class);
+    private static final String BLOCK_NAME = Type.getInternalName(CompiledBlock.class);
+
+    /*
+     * Local variable slots of the generated execute method.
+     */
+    private static final int CPU_SLOT = 1;
+    private static final int V_SLOT = 2;
+    private static final int I_SLOT = 3;
+    private static final int REGISTER_SLOT = 4;
+    private static final int TEMP_SLOT = 20;
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    /**
+     * Masks I to the size of memory.
+     */
+    private final int addressMask;
+
+    /**
+     * True if skips must step over both words of an XO-CHIP F000 nnnn.
+     */
+    private final boolean longSkips;
+
+    /*
+     * Per block code generation state.
+     */
+    private MethodVisitor mv;
+    private boolean[] used;
+    private boolean[] dirty;
+    private boolean usesI;
+    private boolean dirtyI;
+
+    /**
+     * Creates a compiler for a cpu mode.
+     *
+     * @param mode the machine the compiled code runs on.
+     */
+    BlockCompiler(CpuMode mode){
+        addressMask = mode.getMemorySize() - 1;
+        longSkips = mode.isXo();
+    }
+
+    /**
+     * Returns the number of instructions in the block starting at the passed address. A block ends after a jump,
+     * call, return or skip, after a store to memory, before an opcode that cannot be compiled, or at
+     * {@link #MAX_BLOCK_LENGTH}.
+     *
+     * @param memory the memory holding the code.
+     * @param start the address of the first instruction.
+     * @return the length of the block, 0 if the first instruction cannot be compiled.
+     */
+    static int scan(Memory memory, int start){
+        int length = 0;
+
+        for (int address = start; length < MAX_BLOCK_LENGTH && address + 1 < Memory.SIZE; address += 2){
+            int kind = classify(memory.readWord(address));
+
+            if (kind == UNSUPPORTED){
+                break;
+            }
+
+            ++length;
+
+            if (kind == TERMINATOR){
+                break;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns true if the opcode ends a block, either by changing the program counter or by writing memory.
+     *
+     * @param opcode the opcode to check.
+     * @return true if a block ends at this opcode.
+     */
+    static boolean endsBlock(int opcode){
+        return classify(opcode) != STRAIGHT;
+    }
+
+    private static int classify(int opcode){
+        int kk = opcode & 0xFF;
+
+        switch (opcode & 0xF000){
+            case 0x0000:
+                return kk == 0xE0 ? STRAIGHT : kk == 0xEE ? TERMINATOR : UNSUPPORTED;
+
+            case 0x1000:
+            case 0x2000:
+            case 0x3000:
+            case 0x4000:
+            case 0x9000:
+            case 0xB000:
+                return TERMINATOR;
+
+            case 0x5000:
+                // 5xy0 skips, the other encodings are left to the cpu as XO-CHIP uses two of them.
+                return (opcode & 0xF) == 0 ? TERMINATOR : UNSUPPORTED;
+
+            case 0x8000:
+                int n = opcode & 0xF;
+                return n <= 7 || n == 0xE ? STRAIGHT : UNSUPPORTED;
+
+            case 0xE000:
+                return kk == 0x9E || kk == 0xA1 ? TERMINATOR : UNSUPPORTED;
+
+            case 0xF000:
+                switch (kk){
+                    case 0x07: case 0x15: case 0x18: case 0x1E: case 0x29: case 0x65:
+                        return STRAIGHT;
+
+                    case 0x33: case 0x55:
+                        return TERMINATOR;
+
+                    default:
+                        return UNSUPPORTED;
+                }
+
+            default:
+                return STRAIGHT;
+        }
+    }
+
+    /**
+     * Compiles the block and defines it as a hidden class in this package.
+     *
+     * @param memory the memory holding the code.
+     * @param start the address of the first instruction.
+     * @param length the number of instructions, as returned by {@link #scan(Memory, int)}.
+     * @return the compiled block.
+     * @throws ReflectiveOperationException if the class cannot be defined or instantiated.
+     */
+    CompiledBlock compile(Memory memory, int start, int length) throws ReflectiveOperationException {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_FINAL | ACC_SUPER, CPU_NAME + "$Block", null, "java/lang/Object",
+                new String[]{BLOCK_NAME});
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "execute", "(L" + CPU_NAME + ";)V", null, null);
+        mv.visitCode();
+        emitBlock(memory, start, length);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = null;
+
+        cw.visitEnd();
+
+        Class<?> type = lookup.defineHiddenClass(cw.toByteArray(), true).lookupClass();
+        return (CompiledBlock)type.getDeclaredConstructor().newInstance();
+    }
+
+    private void emitBlock(Memory memory, int start, int length){
+        used = new boolean[16];
+        dirty = new boolean[16];
+        usesI = false;
+        dirtyI = false;
+
+        for (int i = 0; i < length; ++i){
+            markUsed(memory.readWord(start + i * 2));
+        }
+
+        mv.visitVarInsn(ALOAD, CPU_SLOT);
+        mv.visitFieldInsn(GETFIELD, CPU_NAME, "v", "[C");
+        mv.visitVarInsn(ASTORE, V_SLOT);
+
+        for (int r = 0; r < 16; ++r){
+            if (used[r]){
+                loadRegister(r);
+            }
+        }
+
+        if (usesI){
+            loadCpuField("I", "C");
+            mv.visitVarInsn(ISTORE, I_SLOT);
+        }
+
+        boolean terminated = false;
+
+        for (int i = 0; i < length; ++i){
+            int address = start + i * 2;
+            int opcode = memory.readWord(address);
+
+            if (classify(opcode) == TERMINATOR){
+                emitTerminator(opcode, address + 2);
+                terminated = true;
+            }
+            else{
+                emitStraight(opcode, address + 2);
+            }
+        }
+
+        if (!terminated){
+            sync(start + length * 2);
+        }
+    }
+
+    /**
+     * Marks the registers read or written by an opcode so they are held in locals.
+     */
+    private void markUsed(int opcode){
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+
+        switch (opcode & 0xF000){
+            case 0x3000: case 0x4000: case 0x6000: case 0x7000: case 0xC000: case 0xE000:
+                used[x] = true;
+                break;
+
+            case 0x5000: case 0x8000: case 0x9000: case 0xD000:
+                used[x] = true;
+                used[y] = true;
+                used[0xF] = true;
+                break;
+
+            case 0xA000:
+                usesI = true;
+                break;
+
+            case 0xB000:
+                used[0] = true;
+                break;
+
+            case 0xF000:
+                used[x] = true;
+                usesI = true;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Emits an instruction that falls through to the next one.
+     */
+    private void emitStraight(int opcode, int next){
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int kk = opcode & 0xFF;
+
+        switch (opcode & 0xF000){
+            case 0x0000:
+                // 00E0 - CLS
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "clearScreen", "()V", false);
+                break;
+
+            case 0x6000:
+                push(kk);
+                storeLocal(x);
+                break;
+
+            case 0x7000:
+                readLocal(x);
+                push(kk);
+                mv.visitInsn(IADD);
+                maskByte();
+                storeLocal(x);
+                break;
+
+            case 0x8000:
+                emitArithmetic(opcode & 0xF, x, y);
+                break;
+
+            case 0xA000:
+                push(opcode & 0xFFF);
+                storeI();
+                break;
+
+            case 0xC000:
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "nextRandom", "()I", false);
+                push(kk);
+                mv.visitInsn(IAND);
+                storeLocal(x);
+                break;
+
+            case 0xD000:
+                sync(next);
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                readLocal(x);
+                readLocal(y);
+                push(opcode & 0xF);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "drawSprite", "(III)V", false);
+                reload(0xF, 0xF);
+                break;
+
+            default:
+                emitMisc(kk, x, next);
+                break;
+        }
+    }
+
+    private void emitArithmetic(int n, int x, int y){
+        switch (n){
+            case 0x0:
+                readLocal(y);
+                storeLocal(x);
+                break;
+
+            case 0x1:
+                readLocal(x);
+                readLocal(y);
+                mv.visitInsn(IOR);
+                storeLocal(x);
+                break;
+
+            case 0x2:
+                readLocal(x);
+                readLocal(y);
+                mv.visitInsn(IAND);
+                storeLocal(x);
+                break;
+
+            case 0x3:
+                readLocal(x);
+                readLocal(y);
+                mv.visitInsn(IXOR);
+                storeLocal(x);
+                break;
+
+            case 0x4:
+                // VF = carry, taken from bit 8 of the sum before Vx is stored.
+                readLocal(x);
+                readLocal(y);
+                mv.visitInsn(IADD);
+                mv.visitVarInsn(ISTORE, TEMP_SLOT);
+                mv.visitVarInsn(ILOAD, TEMP_SLOT);
+                push(8);
+                mv.visitInsn(IUSHR);
+                storeLocal(0xF);
+                mv.visitVarInsn(ILOAD, TEMP_SLOT);
+                maskByte();
+                storeLocal(x);
+                break;
+
+            case 0x5:
+                // VF = NOT borrow, the sign bit of Vx - Vy flipped.
+                signOfDifference(x, y);
+                push(1);
+                mv.visitInsn(IXOR);
+                storeLocal(0xF);
+                readLocal(x);
+                readLocal(y);
+                mv.visitInsn(ISUB);
+                maskByte();
+                storeLocal(x);
+                break;
+
+            case 0x6:
+                readLocal(x);
+                push(1);
+                mv.visitInsn(IAND);
+                storeLocal(0xF);
+                readLocal(x);
+                push(1);
+                mv.visitInsn(IUSHR);
+                storeLocal(x);
+                break;
+
+            case 0x7:
+                // VF = 1 when Vy > Vx, the sign bit of Vx - Vy.
+                signOfDifference(x, y);
+                storeLocal(0xF);
+                readLocal(y);
+                readLocal(x);
+                mv.visitInsn(ISUB);
+                maskByte();
+                storeLocal(x);
+                break;
+
+            default:
+                // 8xyE - SHL
+                readLocal(x);
+                push(7);
+                mv.visitInsn(IUSHR);
+                push(1);
+                mv.visitInsn(IAND);
+                storeLocal(0xF);
+                readLocal(x);
+                push(1);
+                mv.visitInsn(ISHL);
+                maskByte();
+                storeLocal(x);
+                break;
+        }
+    }
+
+    private void emitMisc(int kk, int x, int next){
+        switch (kk){
+            case 0x07:
+                loadCpuField("delayTimer", "C");
+                maskByte();
+                storeLocal(x);
+                break;
+
+            case 0x15:
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                readLocal(x);
+                mv.visitFieldInsn(PUTFIELD, CPU_NAME, "delayTimer", "C");
+                break;
+
+            case 0x18:
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                readLocal(x);
+                mv.visitFieldInsn(PUTFIELD, CPU_NAME, "soundTimer", "C");
+                break;
+
+            case 0x1E:
+                mv.visitVarInsn(ILOAD, I_SLOT);
+                readLocal(x);
+                mv.visitInsn(IADD);
+                push(addressMask);
+                mv.visitInsn(IAND);
+                storeI();
+                break;
+
+            case 0x29:
+                readLocal(x);
+                push(5);
+                mv.visitInsn(IMUL);
+                storeI();
+                break;
+
+            default:
+                // Fx65 - LD Vx, [I]
+                sync(next);
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                push(x);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "loadRegisters", "(I)V", false);
+                reload(0, x);
+                break;
+        }
+    }
+
+    /**
+     * Emits the instruction ending the block. All state is written back first with the program counter pointing
+     * past the instruction, as the interpreter would have it, then the instruction updates the cpu directly.
+     */
+    private void emitTerminator(int opcode, int next){
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int kk = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+
+        sync(next);
+
+        switch (opcode & 0xF000){
+            case 0x0000:
+                // 00EE - RET, the stack is read at the old stack pointer, which is then decremented: pc = stack[sp--].
+                loadCpuField("sp", "C");
+                mv.visitVarInsn(ISTORE, TEMP_SLOT);
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                mv.visitVarInsn(ILOAD, TEMP_SLOT);
+                push(1);
+                mv.visitInsn(ISUB);
+                mv.visitInsn(I2C);
+                mv.visitFieldInsn(PUTFIELD, CPU_NAME, "sp", "C");
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                loadCpuField("stack", "[C");
+                mv.visitVarInsn(ILOAD, TEMP_SLOT);
+                mv.visitInsn(CALOAD);
+                mv.visitFieldInsn(PUTFIELD, CPU_NAME, "pc", "C");
+                break;
+
+            case 0x1000:
+                storePc(nnn);
+                break;
+
+            case 0x2000:
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                loadCpuField("sp", "C");
+                push(1);
+                mv.visitInsn(IADD);
+                mv.visitInsn(I2C);
+                mv.visitFieldInsn(PUTFIELD, CPU_NAME, "sp", "C");
+                loadCpuField("stack", "[C");
+                loadCpuField("sp", "C");
+                push(next);
+                mv.visitInsn(CASTORE);
+                storePc(nnn);
+                break;
+
+            case 0x3000:
+                readLocal(x);
+                push(kk);
+                skipIfEqual(next, false);
+                break;
+
+            case 0x4000:
+                readLocal(x);
+                push(kk);
+                skipIfEqual(next, true);
+                break;
+
+            case 0x5000:
+                readLocal(x);
+                readLocal(y);
+                skipIfEqual(next, false);
+                break;
+
+            case 0x9000:
+                readLocal(x);
+                readLocal(y);
+                skipIfEqual(next, true);
+                break;
+
+            case 0xB000:
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                push(nnn);
+                readLocal(0);
+                mv.visitInsn(IADD);
+                maskByte();
+                mv.visitFieldInsn(PUTFIELD, CPU_NAME, "pc", "C");
+                break;
+
+            case 0xE000:
+                // Ex9E/ExA1, the key value is 0 or 1 so its negation carries the pressed state in the sign bit.
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                loadCpuField("keys", "[I");
+                readLocal(x);
+                mv.visitInsn(IALOAD);
+                mv.visitInsn(INEG);
+                push(31);
+                mv.visitInsn(IUSHR);
+
+                if (kk == 0xA1){
+                    push(1);
+                    mv.visitInsn(IXOR);
+                }
+
+                skipBy(next);
+                break;
+
+            default:
+                mv.visitVarInsn(ALOAD, CPU_SLOT);
+                push(x);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, kk == 0x33 ? "storeBCD" : "storeRegisters", "(I)V",
+                        false);
+                break;
+        }
+    }
+
+    /**
+     * With two byte values on the stack, sets pc to next, or next + 2 when they are equal (or not equal when
+     * inverted). (a ^ b) - 1 is negative only when a == b.
+     */
+    private void skipIfEqual(int next, boolean inverted){
+        mv.visitInsn(IXOR);
+        push(1);
+        mv.visitInsn(ISUB);
+        push(31);
+        mv.visitInsn(IUSHR);
+
+        if (inverted){
+            push(1);
+            mv.visitInsn(IXOR);
+        }
+
+        skipBy(next);
+    }
+
+    /**
+     * With 0 or 1 on the stack, sets pc to next + 2 * value. With long skips the distance comes from
+     * {@link CPU#skip(int)} at run time, as the skipped word can be rewritten without touching the block.
+     */
+    private void skipBy(int next){
+        if (longSkips){
+            mv.visitVarInsn(ALOAD, CPU_SLOT);
+            push(next);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "skip", "(I)I", false);
+            push(next);
+            mv.visitInsn(ISUB);
+            mv.visitInsn(IMUL);
+        }
+        else{
+            push(1);
+            mv.visitInsn(ISHL);
+        }
+
+        push(next);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ISTORE, TEMP_SLOT);
+        mv.visitVarInsn(ALOAD, CPU_SLOT);
+        mv.visitVarInsn(ILOAD, TEMP_SLOT);
+        mv.visitInsn(I2C);
+        mv.visitFieldInsn(PUTFIELD, CPU_NAME, "pc", "C");
+    }
+
+    /**
+     * Pushes 1 when Vy > Vx, otherwise 0.
+     */
+    private void signOfDifference(int x, int y){
+        readLocal(x);
+        readLocal(y);
+        mv.visitInsn(ISUB);
+        push(31);
+        mv.visitInsn(IUSHR);
+    }
+
+    /**
+     * Writes back dirty registers, I and the program counter so a cpu helper sees the same
+     * state the interpreter would.
+     */
+    private void sync(int pc){
+        for (int r = 0; r < 16; ++r){
+            if (dirty[r]){
+                mv.visitVarInsn(ALOAD, V_SLOT);
+                push(r);
+                mv.visitVarInsn(ILOAD, REGISTER_SLOT + r);
+                mv.visitInsn(CASTORE);
+                dirty[r] = false;
+            }
+        }
+
+        if (dirtyI){
+            mv.visitVarInsn(ALOAD, CPU_SLOT);
+            mv.visitVarInsn(ILOAD, I_SLOT);
+            mv.visitInsn(I2C);
+            mv.visitFieldInsn(PUTFIELD, CPU_NAME, "I", "C");
+            dirtyI = false;
+        }
+
+        storePc(pc);
+    }
+
+    /**
+     * Reloads the held registers in a range after a cpu helper wrote them.
+     */
+    private void reload(int from, int to){
+        for (int r = from; r <= to; ++r){
+            if (used[r]){
+                loadRegister(r);
+            }
+        }
+    }
+
+    private void loadRegister(int r){
+        mv.visitVarInsn(ALOAD, V_SLOT);
+        push(r);
+        mv.visitInsn(CALOAD);
+        mv.visitVarInsn(ISTORE, REGISTER_SLOT + r);
+    }
+
+    private void readLocal(int r){
+        mv.visitVarInsn(ILOAD, REGISTER_SLOT + r);
+    }
+
+    private void storeLocal(int r){
+        mv.visitVarInsn(ISTORE, REGISTER_SLOT + r);
+        dirty[r] = true;
+    }
+
+    private void storeI(){
+        mv.visitVarInsn(ISTORE, I_SLOT);
+        dirtyI = true;
+    }
+
+    private void storePc(int pc){
+        mv.visitVarInsn(ALOAD, CPU_SLOT);
+        push(pc & 0xFFFF);
+        mv.visitFieldInsn(PUTFIELD, CPU_NAME, "pc", "C");
+    }
+
+    private void loadCpuField(String name, String descriptor){
+        mv.visitVarInsn(ALOAD, CPU_SLOT);
+        mv.visitFieldInsn(GETFIELD, CPU_NAME, name, descriptor);
+    }
+
+    private void maskByte(){
+        push(0xFF);
+        mv.visitInsn(IAND);
+    }
+
+    private void push(int value){
+        if (value >= -1 && value <= 5){
+            mv.visitInsn(ICONST_0 + value);
+        }
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            mv.visitIntInsn(BIPUSH, value);
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            mv.visitIntInsn(SIPUSH, value);
+        }
+        else{
+            mv.visitLdcInsn(value);
+        }
+    }
+}
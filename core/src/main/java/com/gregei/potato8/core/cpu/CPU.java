@@ -1,57 +1,98 @@
 package com.gregei.potato8.core.cpu;
 
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.jfr.CpuHaltedEvent;
+import com.gregei.potato8.core.log.Log;
 import com.gregei.potato8.core.memory.Memory;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Random;
 
 public class CPU {
+    /**
+     * The size of the cpu section of a save state: registers, stack, I, pc, sp, timers, flags, a key mask and the
+     * random source state.
+     */
+    public static final int STATE_SIZE = 16 + 16 * 2 + 2 + 2 + 1 + 1 + 1 + 1 + 2 + 8;
+
+    /**
+     * The extra cpu state of the extended modes: the RPL flags, the audio pattern and the pitch.
+     */
+    private static final int EXTENDED_STATE_SIZE = 16 + 16 + 1;
+
+    /**
+     * The pitch after a reset.
+     */
+    private static final int DEFAULT_PITCH = 64;
+
+    /**
+     * The machine the cpu emulates.
+     */
+    final CpuMode mode;
+
+    /**
+     * True for XO-CHIP, whose skips step over both words of F000 nnnn.
+     */
+    final boolean xo;
+
     /**
      * Instance of Memory class
      */
-    private Memory memory;
+    Memory memory;
+
+    /**
+     * Masks I to the size of memory.
+     */
+    private int addressMask = Memory.ADDRESS_MASK;
+
+    /**
+     * The bit packed display of the emulator.
+     */
+    final FrameBuffer graphics;
 
     /**
-     * Array holding the graphics of the emulator.
+     * Flag to hold if the cpu is running. Volatile as it is set from other threads, a loaded rom or a debugger run
+     * command, and polled by the frame pacer deciding whether to park, while the emulation thread clears it on a halt.
      */
-    private int[] graphics = new int[64 * 32];
+    volatile boolean cpuRunning;
 
     /**
-     * Flag to hold if the cpu is running.
+     * Flag to hold if the cpu stopped on an opcode it cannot execute, cleared when it is started again.
      */
-    private boolean cpuRunning;
+    boolean halted;
 
     /**
-     * Flag to tell if emulator is ready to draw.
+     * Flag to tell if emulator is ready to draw, set when a sprite or clear changed the display. See
+     * {@link FrameBuffer#getVersion()} for a flag every consumer can track on its own.
      */
     public boolean drawFlag;
 
     /**
      * 16 8-bit general purpose registers.
      */
-    private char[] v = new char[16];
+    char[] v = new char[16];
 
     /**
-     * 16 16-bit values, used to store addresses that the
-     * interpreter should return when finished with subroutine.
+     * 16-bit values, used to store addresses that the
+     * interpreter should return when finished with subroutine. 16 deep, 64 on XO-CHIP.
      */
-    private char[] stack = new char[16];
+    final char[] stack;
 
     /**
      * 16-bit register generally used to store memory addresses, so only the first
      * 12 bits are used
      */
-    private char I;
+    char I;
 
     /**
      * 8-bit register which points to the topmost level of the stack.
      */
-    private char sp;
+    char sp;
 
     /**
      * 16 register used to store the currently executing address.
      */
-    private char pc;
+    char pc;
 
     /**
      * The currently executing opcode.
@@ -61,18 +102,90 @@ public class CPU {
     /**
      * Two 8-bit registers used for delay and sound timers.
      */
-    private char delayTimer, soundTimer;
+    char delayTimer, soundTimer;
 
     /**
      * The keypad keys which holds whether the are pressed or not.
      */
-    private int[] keys = new int[16];
+    int[] keys = new int[16];
+
+    /**
+     * The number of instructions in the idle loop the cpu is in, or 0 if it is not idle. An idle loop cannot change
+     * anything but the program counter before the next timer tick or key change, engines stop when one is entered.
+     */
+    int idleLength;
+
+    /**
+     * The address of the first instruction of the idle loop.
+     */
+    private int idleStart;
+
+    /**
+     * The source of random bytes for Cxkk.
+     */
+    private RandomSource random = new XorShiftRandom();
+
+    /**
+     * The execution engine sharing this cpu state, notified when code memory is written.
+     */
+    private ExecutionEngine engine;
+
+    /**
+     * The SUPER-CHIP RPL user flags, saved and loaded by Fx75 and Fx85.
+     */
+    final char[] rplFlags = new char[16];
+
+    /**
+     * The rows of an extended sprite read from memory, composed onto a plane at once.
+     */
+    private final long[] spriteRows = new long[16];
+
+    /**
+     * The XO-CHIP audio pattern, 128 one bit samples loaded by F002.
+     */
+    final byte[] audioPattern = new byte[16];
+
+    /**
+     * The XO-CHIP pitch register set by Fx3A, 64 plays the pattern at 4000 samples per second.
+     */
+    int pitch = DEFAULT_PITCH;
+
+    /**
+     * Creates a chip-8 cpu.
+     */
+    public CPU(){
+        this(CpuMode.CHIP8);
+    }
+
+    /**
+     * Creates a cpu with the stack and display of a mode.
+     *
+     * @param mode the machine to emulate.
+     */
+    public CPU(CpuMode mode){
+        this.mode = mode;
+        xo = mode.isXo();
+        stack = new char[mode.getStackDepth()];
+        graphics = new FrameBuffer(mode.getPlanes(), mode.isExtended());
+    }
 
     /**
      * Runs one cpu cycle.
      */
     public void runCycle(){
-        opcode = (char)((memory.getMemory()[pc++] << 8) | memory.getMemory()[pc++]);
+        int opcode = memory.readWord(pc);
+        pc += 2;
+
+        execute((char)opcode);
+    }
+
+    /**
+     * Executes a single opcode against the cpu state, the program counter must already point past it.
+     *
+     * @param opcode the opcode to execute.
+     */
+    void execute(char opcode){
+        this.opcode = opcode;
 
         switch (opcode & 0xF000){
             case 0x0000:
@@ -83,7 +196,7 @@ public class CPU {
                         * Clear the display.
                         */
 
-                        Arrays.fill(graphics, 0);
+                        clearScreen();
                         break;
 
                     case 0x00EE:
@@ -98,8 +211,10 @@ public class CPU {
                         break;
 
                     default:
-                        System.out.println("Unimplemented 0000 Opcode " + Integer.toHexString(opcode));
-                        cpuRunning = false;
+                        if (!executeScreenOpcode(opcode)){
+                            Log.warn("Unimplemented 0000 Opcode %x", (int)opcode);
+                            halt(opcode);
+                        }
                         break; // End of Internal 0000 switch
                 }
                 break; // End of 0000 switch
@@ -112,6 +227,7 @@ public class CPU {
                 * The interpreter sets the program counter to nnn.
                 */
 
+                detectIdleLoop(pc - 2, getNNN());
                 pc = getNNN();
                 break;
 
@@ -138,7 +254,7 @@ public class CPU {
                 */
 
                 if (v[getX()] == getKK()){
-                    pc += 2;
+                    skipNext();
                 }
                 break;
 
@@ -152,7 +268,7 @@ public class CPU {
                 */
 
                 if (v[getX()] != getKK()){
-                    pc += 2;
+                    skipNext();
                 }
             break;
 
@@ -163,10 +279,18 @@ public class CPU {
                 *
                 * The interpreter compares register Vx to register Vy, and if they are equal, increments the
                 * program counter by 2.
+                *
+                * 5xy2 - LD [I], Vx - Vy (XO-CHIP)
+                * 5xy3 - LD Vx - Vy, [I] (XO-CHIP)
+                * Store registers Vx through Vy in memory starting at location I, or read them. The range is
+                * stored in reverse if x > y, and I is left unchanged.
                 */
 
-                if (v[getX()] == v[getY()]){
-                    pc += 2;
+                if (xo && (opcode & 0xE) == 2){
+                    transferRange(getX(), getY(), (opcode & 1) == 0);
+                }
+                else if (v[getX()] == v[getY()]){
+                    skipNext();
                 }
                 break;
 
@@ -342,8 +466,8 @@ public class CPU {
                         break;
 
                     default:
-                        System.out.println("Unimplemented 8000 Opcode " + Integer.toHexString(opcode));
-                        cpuRunning = false;
+                        Log.warn("Unimplemented 8000 Opcode %x", (int)opcode);
+                        halt(opcode);
                         break; // End of Internal 8000 switch
                 }
                 break; // End of 8000 switch
@@ -358,7 +482,7 @@ public class CPU {
                 */
 
                 if (v[getX()] != v[getY()]){
-                    pc += 2;
+                    skipNext();
                 }
 
                 break;
@@ -394,7 +518,7 @@ public class CPU {
                 * value kk. The results are stored in Vx.
                 */
 
-                v[getX()] = (char)((new Random().nextInt(256) & getKK()) & 0xFF);
+                v[getX()] = (char)((nextRandom() & getKK()) & 0xFF);
                 break;
 
             case 0xD000:
@@ -408,32 +532,7 @@ public class CPU {
                 * coordinates of the display, it wraps around to the opposite side of the screen.
                 */
 
-                int x = v[getX()];
-                int y = v[getY()];
-                int numOfBytes = getN();
-
-                v[0xF] = 0;
-                for (int line = 0; line < numOfBytes; ++line){
-                    char data = memory.getMemory()[I + line];
-
-                    for (int xPixel = 0; xPixel < 8; ++xPixel){
-                        if ((data & (0x80 >>> xPixel)) != 0){
-
-                            int xLoc = x + xPixel;
-                            int yLoc = y + line;
-
-                            if (xLoc < 64 && yLoc < 32){
-                                if (graphics[(x + xPixel + ((y + line) * 64))] != 0){
-                                    v[0xF] = 1;
-                                }
-
-                                graphics[(x + xPixel + ((y + line) * 64))] ^= 1;
-                            }
-                        }
-                    }
-                }
-
-                drawFlag = true;
+                drawSprite(v[getX()], v[getY()], getN());
                 break;
 
             case 0xE000:
@@ -448,7 +547,7 @@ public class CPU {
                         */
 
                         if (keys[v[getX()]] != 0){
-                            pc += 2;
+                            skipNext();
                         }
                         break;
 
@@ -462,13 +561,13 @@ public class CPU {
                         */
 
                         if (keys[v[getX()]] == 0){
-                            pc += 2;
+                            skipNext();
                         }
                         break;
 
                     default:
-                        System.out.println("Unimplemented E000 Opcode " + Integer.toHexString(opcode));
-                        cpuRunning = false;
+                        Log.warn("Unimplemented E000 Opcode %x", (int)opcode);
+                        halt(opcode);
                         break; // End of internal E000 switch
                 }
                 break; // End of E000 switch
@@ -494,15 +593,7 @@ public class CPU {
                         * All execution stops until a key is pressed, then the value of that key is stored in Vx.
                         */
 
-                        pc -= 2;
-
-                        for (int i = 0; i < keys.length; ++i){
-                            if (keys[i] == 1){
-                                v[getX()] = (char)i;
-                                pc += 2;
-                                break;
-                            }
-                        }
+                        waitForKey(getX());
                         break;
 
                     case 0x0015:
@@ -535,7 +626,7 @@ public class CPU {
                         * The values of I and Vx are added, and the results are stored in I.
                         */
 
-                        I = (char) ((I + v[getX()]) & 0xFFF);
+                        I = (char) ((I + v[getX()]) & addressMask);
                         break;
 
                     case 0x0029:
@@ -558,9 +649,7 @@ public class CPU {
                         * location in I, the tens digit at location I+1, and the ones digit at location I+2.
                         */
 
-                        memory.getMemory()[I] = (char)((v[getX()] / 100) & 0xFF);
-                        memory.getMemory()[I + 1] = (char)(((v[getX()] % 100) / 10) & 0xFF);
-                        memory.getMemory()[I + 2] = (char)(((v[getX() % 100]) % 10) & 0xFF);
+                        storeBCD(getX());
                         break;
 
                     case 0x0055:
@@ -572,9 +661,7 @@ public class CPU {
                         * address in I.
                         */
 
-                        for (int i = 0; i <= getX(); ++i){
-                            memory.getMemory()[I + i] = v[i];
-                        }
+                        storeRegisters(getX());
 
                         break;
 
@@ -586,34 +673,552 @@ public class CPU {
                         * The interpreter reads values from memory starting at location I into registers V0 through Vx
                         */
 
-                        for (int i = 0; i <= getX(); ++i){
-                            v[i] = (char)(memory.getMemory()[I + i] & 0xFF);
-                        }
+                        loadRegisters(getX());
                         break;
 
                         default:
-                            System.out.println("Unimplemented F000 Opcode " + Integer.toHexString(opcode));
-                            cpuRunning = false;
+                            if (!executeExtendedOpcode(opcode)){
+                                Log.warn("Unimplemented F000 Opcode %x", (int)opcode);
+                                halt(opcode);
+                            }
                             break; // End of internal F000 switch
                 }
                 break; // End of F000 switch
 
             default:
-                System.out.println("Unimplemented Opcode " + Integer.toHexString(opcode));
-                cpuRunning = false;
+                Log.warn("Unimplemented Opcode %x", (int)opcode);
+                halt(opcode);
                 break;
         }
 
+        // Running or skipping off the end of memory wraps around to its start, the same in every engine.
+        pc = (char)(pc & addressMask);
+    }
+
+    /**
+     * Executes the 00Cn, 00Dn and 00FB to 00FF display opcodes of the extended modes.
+     *
+     * @param opcode the opcode, its high byte is zero.
+     * @return false if the mode does not have the opcode.
+     */
+    private boolean executeScreenOpcode(int opcode){
+        if (!mode.isExtended() || (opcode & 0xFF00) != 0){
+            return false;
+        }
+
+        boolean changed;
+
+        switch (opcode & 0xF0){
+            case 0xC0:
+                /*
+                * 00Cn - SCD nibble
+                * Scroll the display down by n rows.
+                */
+
+                changed = graphics.scrollDown(opcode & 0xF);
+                break;
+
+            case 0xD0:
+                /*
+                * 00Dn - SCU nibble (XO-CHIP)
+                * Scroll the display up by n rows.
+                */
+
+                if (!xo){
+                    return false;
+                }
+
+                changed = graphics.scrollUp(opcode & 0xF);
+                break;
+
+            case 0xF0:
+                switch (opcode & 0xF){
+                    case 0xB:
+                        /*
+                        * 00FB - SCR
+                        * Scroll the display right by 4 pixels.
+                        */
+
+                        changed = graphics.scrollRight(4);
+                        break;
+
+                    case 0xC:
+                        /*
+                        * 00FC - SCL
+                        * Scroll the display left by 4 pixels.
+                        */
+
+                        changed = graphics.scrollLeft(4);
+                        break;
+
+                    case 0xD:
+                        /*
+                        * 00FD - EXIT
+                        * Stop the interpreter.
+                        */
+
+                        cpuRunning = false;
+                        return true;
+
+                    case 0xE:
+                        /*
+                        * 00FE - LOW
+                        * Switch to the 64x32 resolution, clearing the display.
+                        */
+
+                        changed = graphics.setHighResolution(false);
+                        break;
+
+                    case 0xF:
+                        /*
+                        * 00FF - HIGH
+                        * Switch to the 128x64 resolution, clearing the display.
+                        */
+
+                        changed = graphics.setHighResolution(true);
+                        break;
+
+                    default:
+                        return false;
+                }
+                break;
+
+            default:
+                return false;
+        }
+
+        if (changed){
+            drawFlag = true;
+        }
+
+        return true;
+    }
+
+    /**
+     * Executes the Fxkk opcodes of the extended modes.
+     *
+     * @param opcode the opcode, its high nibble is F.
+     * @return false if the mode does not have the opcode.
+     */
+    private boolean executeExtendedOpcode(int opcode){
+        if (!mode.isExtended()){
+            return false;
+        }
+
+        int x = (opcode >> 8) & 0xF;
+
+        switch (opcode & 0xFF){
+            case 0x30:
+                /*
+                * Fx30 - LD HF, Vx
+                * Set I = location of the 8x10 sprite for digit Vx.
+                */
+
+                I = (char)(Memory.LARGE_FONT_START + (v[x] & 0xF) * 10);
+                return true;
+
+            case 0x75:
+                /*
+                * Fx75 - LD R, Vx
+                * Store registers V0 through Vx in the RPL user flags.
+                */
+
+                System.arraycopy(v, 0, rplFlags, 0, x + 1);
+                return true;
+
+            case 0x85:
+                /*
+                * Fx85 - LD Vx, R
+                * Read registers V0 through Vx from the RPL user flags.
+                */
+
+                System.arraycopy(rplFlags, 0, v, 0, x + 1);
+                return true;
+        }
+
+        if (!xo){
+            return false;
+        }
+
+        switch (opcode & 0xFF){
+            case 0x00:
+                /*
+                * F000 nnnn - LD I, long addr (XO-CHIP)
+                * Set I = the 16-bit word after the opcode, then skip that word.
+                */
+
+                if (x != 0){
+                    return false;
+                }
+
+                I = (char)memory.readWord(pc);
+                pc += 2;
+                return true;
+
+            case 0x01:
+                /*
+                * Fn01 - PLANE n (XO-CHIP)
+                * Select the bitplanes drawn, cleared and scrolled, bit p for plane p.
+                */
+
+                graphics.selectPlanes(x);
+                return true;
+
+            case 0x02:
+                /*
+                * F002 - AUDIO (XO-CHIP)
+                * Load the 16-byte audio pattern from memory starting at location I.
+                */
+
+                if (x != 0){
+                    return false;
+                }
+
+                for (int i = 0; i < audioPattern.length; ++i){
+                    audioPattern[i] = (byte)memory.read(I + i);
+                }
+                return true;
+
+            case 0x3A:
+                /*
+                * Fx3A - PITCH Vx (XO-CHIP)
+                * Set the pitch register = Vx.
+                */
+
+                pitch = v[x];
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Skips the next instruction.
+     */
+    private void skipNext(){
+        pc = (char)skip(pc);
+    }
+
+    /**
+     * Returns the address after the instruction at an address, stepping over both words of an XO-CHIP F000 nnnn.
+     *
+     * @param next the address of the instruction being skipped.
+     * @return the address a skip lands on.
+     */
+    int skip(int next){
+        return xo && memory.readWord(next) == 0xF000 ? next + 4 : next + 2;
+    }
+
+    /**
+     * Decrements the delay and sound timers, called at 60 Hz independent of the instruction rate.
+     */
+    public void tickTimers(){
         if (delayTimer > 0){
             delayTimer--;
         }
 
         if (soundTimer > 0){
-            if (soundTimer == 1){
-                System.out.println("BEEP");
-                soundTimer--;
+            soundTimer--;
+        }
+    }
+
+    /**
+     * Returns true while the sound timer runs, the buzzer sounds until it reaches zero.
+     *
+     * @return true if the sound timer is above zero.
+     */
+    public boolean isSoundOn(){
+        return soundTimer > 0;
+    }
+
+    /**
+     * Returns true if both timers are zero, so ticking them changes nothing.
+     *
+     * @return true if the delay and sound timers are stopped.
+     */
+    public boolean areTimersStopped(){
+        return delayTimer == 0 && soundTimer == 0;
+    }
+
+    /**
+     * Stops the cpu on an opcode it cannot execute.
+     *
+     * @param opcode the opcode, the program counter must already point past it.
+     */
+    private void halt(int opcode){
+        cpuRunning = false;
+        halted = true;
+
+        CpuHaltedEvent event = new CpuHaltedEvent();
+
+        if (event.shouldCommit()){
+            event.opcode = opcode;
+            event.pc = pc - 2;
+            event.commit();
+        }
+    }
+
+    /**
+     * Clears the display.
+     */
+    void clearScreen(){
+        if (graphics.clear()){
+            drawFlag = true;
+        }
+    }
+
+    /**
+     * Generates a random byte.
+     *
+     * @return a random number from 0 to 255.
+     */
+    int nextRandom(){
+        return random.nextByte();
+    }
+
+    /**
+     * Draws an n-byte sprite from memory location I at (x, y) and sets VF on collision.
+     *
+     * @param x the x coordinate of the sprite.
+     * @param y the y coordinate of the sprite.
+     * @param numOfBytes the height of the sprite in bytes.
+     */
+    void drawSprite(int x, int y, int numOfBytes){
+        if (mode.isExtended()){
+            drawExtendedSprite(x, y, numOfBytes);
+            return;
+        }
+
+        v[0xF] = 0;
+        for (int line = 0; line < numOfBytes; ++line){
+            if (graphics.xorRow(x, y + line, memory.read(I + line))){
+                v[0xF] = 1;
             }
         }
+
+        if (graphics.commit()){
+            drawFlag = true;
+        }
+    }
+
+    /**
+     * Draws a sprite the way the extended modes do: the start position wraps around the display and the sprite is
+     * clipped at its edges, n = 0 draws a 16x16 sprite (8x16 in SUPER-CHIP low resolution) and every selected plane
+     * draws its own sprite data, read from I on after the previous plane's. VF is set if any pixel was erased.
+     *
+     * @param x the x coordinate of the sprite.
+     * @param y the y coordinate of the sprite.
+     * @param numOfBytes the height of the sprite in rows, 0 for 16.
+     */
+    private void drawExtendedSprite(int x, int y, int numOfBytes){
+        x &= graphics.getWidth() - 1;
+        y &= graphics.getHeight() - 1;
+
+        boolean wide = numOfBytes == 0 && (xo || graphics.isHighResolution());
+        int rows = numOfBytes == 0 ? 16 : numOfBytes;
+        int address = I;
+        int selected = graphics.getSelectedPlanes();
+        boolean erased = false;
+
+        for (int plane = 0; plane < graphics.getPlaneCount(); ++plane){
+            if ((selected & (1 << plane)) == 0){
+                continue;
+            }
+
+            for (int line = 0; line < rows; ++line){
+                if (wide){
+                    spriteRows[line] = (long)memory.readWord(address) << 48;
+                    address += 2;
+                }
+                else{
+                    spriteRows[line] = (long)memory.read(address) << 56;
+                    address++;
+                }
+            }
+
+            erased |= graphics.xorRows(plane, x, y, spriteRows, rows);
+        }
+
+        v[0xF] = (char)(erased ? 1 : 0);
+
+        if (graphics.commit()){
+            drawFlag = true;
+        }
+    }
+
+    /**
+     * Stores the key pressed in Vx, or rewinds the program counter so the instruction repeats.
+     *
+     * @param x the register to store the key in.
+     */
+    void waitForKey(int x){
+        pc -= 2;
+
+        for (int i = 0; i < keys.length; ++i){
+            if (keys[i] == 1){
+                v[x] = (char)i;
+                pc += 2;
+                return;
+            }
+        }
+
+        // Keys only change between runs, every cycle left would execute this instruction again.
+        idleStart = pc;
+        idleLength = 1;
+    }
+
+    /**
+     * Checks if a jump closes an idle loop: a jump to itself, or a delay timer poll of Fx07, 3xkk or 4xkk on the
+     * same register and a jump back that the current delay timer keeps looping. Keys and timers only change between
+     * runs, so such a loop repeats until the run ends.
+     *
+     * @param address the address of the jump.
+     * @param target the address jumped to.
+     * @return true if the cpu entered an idle loop.
+     */
+    boolean detectIdleLoop(int address, int target){
+        if (target == address){
+            idleStart = target;
+            idleLength = 1;
+            return true;
+        }
+
+        if (target != address - 4){
+            return false;
+        }
+
+        int poll = memory.readWord(target);
+        int skip = memory.readWord(target + 2);
+
+        if ((poll & 0xF0FF) != 0xF007 || (skip & 0x0F00) != (poll & 0x0F00)){
+            return false;
+        }
+
+        int kind = skip & 0xF000;
+        boolean equal = (delayTimer & 0xFF) == (skip & 0xFF);
+
+        // 3xkk leaves the loop once the timer equals kk, 4xkk once it differs.
+        if (!(kind == 0x3000 && !equal || kind == 0x4000 && equal)){
+            return false;
+        }
+
+        idleStart = target;
+        idleLength = 3;
+        return true;
+    }
+
+    /**
+     * Returns true if the last instruction run entered an idle loop.
+     *
+     * @return true if the cpu is idle until the next timer tick or key change.
+     */
+    public boolean isIdle(){
+        return idleLength != 0;
+    }
+
+    /**
+     * Leaves the idle loop in the state running it for the passed number of cycles would have, only the position
+     * in the loop and the register the delay timer is polled into can differ.
+     *
+     * @param cycles the number of cycles skipped.
+     */
+    public void skipIdle(int cycles){
+        if (idleLength == 3 && cycles > 0){
+            v[(memory.readWord(idleStart) >>> 8) & 0xF] = (char)(delayTimer & 0xFF);
+        }
+
+        if (idleLength != 0){
+            pc = (char)(idleStart + cycles % idleLength * 2);
+        }
+
+        idleLength = 0;
+    }
+
+    /**
+     * Stores the BCD representation of Vx in memory locations I, I+1, and I+2.
+     *
+     * @param x the register to convert.
+     */
+    void storeBCD(int x){
+        memory.write(I, v[x] / 100);
+        memory.write(I + 1, (v[x] % 100) / 10);
+        memory.write(I + 2, v[x] % 10);
+
+        codeWritten(I, 3);
+    }
+
+    /**
+     * Stores registers V0 through Vx in memory starting at location I.
+     *
+     * @param x the last register to store.
+     */
+    void storeRegisters(int x){
+        for (int i = 0; i <= x; ++i){
+            memory.write(I + i, v[i]);
+        }
+
+        codeWritten(I, x + 1);
+    }
+
+    /**
+     * Reads registers V0 through Vx from memory starting at location I.
+     *
+     * @param x the last register to read.
+     */
+    void loadRegisters(int x){
+        for (int i = 0; i <= x; ++i){
+            v[i] = (char)memory.read(I + i);
+        }
+    }
+
+    /**
+     * Stores registers Vx through Vy in memory starting at location I, or reads them, in reverse if x > y.
+     *
+     * @param x the first register.
+     * @param y the last register.
+     * @param store true to store, false to read.
+     */
+    private void transferRange(int x, int y, boolean store){
+        int step = x <= y ? 1 : -1;
+        int count = Math.abs(y - x) + 1;
+
+        for (int i = 0; i < count; ++i){
+            if (store){
+                memory.write(I + i, v[x + i * step]);
+            }
+            else{
+                v[x + i * step] = (char)memory.read(I + i);
+            }
+        }
+
+        if (store){
+            codeWritten(I, count);
+        }
+    }
+
+    /**
+     * Tells the execution engine that memory which may hold decoded code was written.
+     *
+     * @param address the first address written.
+     * @param length the number of bytes written.
+     */
+    private void codeWritten(int address, int length){
+        if (engine == null){
+            return;
+        }
+
+        int start = address & addressMask;
+        int overflow = start + length - (addressMask + 1);
+
+        // Writes past the end of memory wrap around to the start.
+        if (overflow > 0){
+            engine.invalidate(start, length - overflow);
+            engine.invalidate(0, overflow);
+        }
+        else{
+            engine.invalidate(start, length);
+        }
     }
 
     /**
@@ -666,12 +1271,16 @@ public class CPU {
      */
     public void reset(){
         Arrays.fill(v, (char)0);
-        Arrays.fill(graphics, 0);
+        graphics.reset();
         Arrays.fill(stack, (char)0);
+        Arrays.fill(rplFlags, (char)0);
+        Arrays.fill(audioPattern, (byte)0);
+        pitch = DEFAULT_PITCH;
         Arrays.fill(keys, 0);
 
         drawFlag = false;
         cpuRunning = false;
+        halted = false;
 
         pc = 0x200;
         I = 0;
@@ -680,6 +1289,102 @@ public class CPU {
 
         delayTimer = 0;
         soundTimer = 0;
+        idleLength = 0;
+    }
+
+    /**
+     * Returns the size of the cpu section of a save state for a mode.
+     *
+     * @param mode the machine the cpu emulates.
+     * @return {@link #STATE_SIZE} for chip-8, more for a deeper stack and the extended registers.
+     */
+    public static int stateSize(CpuMode mode){
+        return STATE_SIZE + (mode.getStackDepth() - 16) * 2 + (mode.isExtended() ? EXTENDED_STATE_SIZE : 0);
+    }
+
+    /**
+     * Writes the registers, stack, timers, flags and keypad to a save state, followed by the RPL flags, audio
+     * pattern and pitch in the extended modes.
+     *
+     * @param buffer the buffer to write {@link #stateSize(CpuMode)} bytes to.
+     */
+    public void saveState(ByteBuffer buffer){
+        for (int i = 0; i < v.length; ++i){
+            buffer.put((byte)v[i]);
+        }
+
+        buffer.asCharBuffer().put(stack);
+        buffer.position(buffer.position() + stack.length * 2);
+
+        buffer.putChar(I);
+        buffer.putChar(pc);
+        buffer.put((byte)sp);
+        buffer.put((byte)delayTimer);
+        buffer.put((byte)soundTimer);
+        buffer.put((byte)((cpuRunning ? 1 : 0) | (drawFlag ? 2 : 0)));
+
+        int keyMask = 0;
+
+        for (int i = 0; i < keys.length; ++i){
+            keyMask |= keys[i] << i;
+        }
+
+        buffer.putChar((char)keyMask);
+        buffer.putLong(random.getState());
+
+        if (mode.isExtended()){
+            for (char flag : rplFlags){
+                buffer.put((byte)flag);
+            }
+
+            buffer.put(audioPattern);
+            buffer.put((byte)pitch);
+        }
+    }
+
+    /**
+     * Reads the registers, stack, timers, flags and keypad from a save state.
+     *
+     * @param buffer the buffer to read {@link #stateSize(CpuMode)} bytes from.
+     */
+    public void loadState(ByteBuffer buffer){
+        for (int i = 0; i < v.length; ++i){
+            v[i] = (char)(buffer.get() & 0xFF);
+        }
+
+        buffer.asCharBuffer().get(stack);
+        buffer.position(buffer.position() + stack.length * 2);
+
+        I = buffer.getChar();
+        pc = buffer.getChar();
+        sp = (char)(buffer.get() & 0xFF);
+        delayTimer = (char)(buffer.get() & 0xFF);
+        soundTimer = (char)(buffer.get() & 0xFF);
+
+        int flags = buffer.get();
+        cpuRunning = (flags & 1) != 0;
+        halted = false;
+        drawFlag = (flags & 2) != 0;
+        idleLength = 0;
+
+        int keyMask = buffer.getChar();
+
+        for (int i = 0; i < keys.length; ++i){
+            keys[i] = (keyMask >>> i) & 1;
+        }
+
+        random.setState(buffer.getLong());
+
+        if (mode.isExtended()){
+            for (int i = 0; i < rplFlags.length; ++i){
+                rplFlags[i] = (char)(buffer.get() & 0xFF);
+            }
+
+            buffer.get(audioPattern);
+            pitch = buffer.get() & 0xFF;
+        }
+
+        opcode = 0;
     }
 
     /**
@@ -692,14 +1397,41 @@ public class CPU {
     }
 
     /**
-     * Return the graphics array.
+     * Return the frame buffer.
      *
-     * @return the graphics array object.
+     * @return the bit packed frame buffer.
      */
-    public int[] getGraphics(){
+    public FrameBuffer getGraphics(){
         return graphics;
     }
 
+    /**
+     * Returns the machine the cpu emulates.
+     *
+     * @return the cpu mode.
+     */
+    public CpuMode getMode(){
+        return mode;
+    }
+
+    /**
+     * Returns the XO-CHIP audio pattern, 128 one bit samples with the first in the most significant bit of byte 0.
+     *
+     * @return the live pattern array.
+     */
+    public byte[] getAudioPattern(){
+        return audioPattern;
+    }
+
+    /**
+     * Returns the XO-CHIP pitch register.
+     *
+     * @return the pitch, the pattern plays at 4000 * 2 ^ ((pitch - 64) / 48) samples per second.
+     */
+    public int getPitch(){
+        return pitch;
+    }
+
     /**
      * Return the keys array.
      *
@@ -709,6 +1441,71 @@ public class CPU {
         return keys;
     }
 
+    /**
+     * Return the program counter.
+     *
+     * @return the address of the next instruction.
+     */
+    public int getPc(){
+        return pc;
+    }
+
+    /**
+     * Returns a general purpose register.
+     *
+     * @param x the register number, 0 to F.
+     * @return the value of Vx.
+     */
+    public int getRegister(int x){
+        return v[x];
+    }
+
+    /**
+     * Returns the address register.
+     *
+     * @return the value of I.
+     */
+    public int getI(){
+        return I;
+    }
+
+    /**
+     * Returns the stack pointer.
+     *
+     * @return the number of return addresses on the stack.
+     */
+    public int getSp(){
+        return sp;
+    }
+
+    /**
+     * Returns a return address on the stack.
+     *
+     * @param depth the depth of the call, from 1 for the outermost to {@link #getSp()} for the innermost.
+     * @return the address the call at that depth returns to.
+     */
+    public int getReturnAddress(int depth){
+        return stack[depth];
+    }
+
+    /**
+     * Returns the delay timer.
+     *
+     * @return the delay timer value.
+     */
+    public int getDelayTimer(){
+        return delayTimer;
+    }
+
+    /**
+     * Returns the sound timer.
+     *
+     * @return the sound timer value.
+     */
+    public int getSoundTimer(){
+        return soundTimer;
+    }
+
     /**
      * Return the cpu running flag.
      *
@@ -725,6 +1522,34 @@ public class CPU {
      */
     public void setMemory(Memory memory){
         this.memory = memory;
+        addressMask = memory.getAddressMask();
+    }
+
+    /**
+     * Sets the source of random bytes for Cxkk.
+     *
+     * @param random the random source, seed it to make runs reproducible.
+     */
+    public void setRandom(RandomSource random){
+        this.random = random;
+    }
+
+    /**
+     * Returns the source of random bytes for Cxkk.
+     *
+     * @return the random source.
+     */
+    public RandomSource getRandom(){
+        return random;
+    }
+
+    /**
+     * Sets the execution engine to notify of code memory writes.
+     *
+     * @param engine the engine running this cpu.
+     */
+    void setEngine(ExecutionEngine engine){
+        this.engine = engine;
     }
 
     /**
@@ -734,5 +1559,18 @@ public class CPU {
      */
     public void setCpuRunning(boolean value){
         this.cpuRunning = value;
+
+        if (value){
+            halted = false;
+        }
+    }
+
+    /**
+     * Returns the cpu halted flag.
+     *
+     * @return true if the cpu stopped on an opcode it cannot execute.
+     */
+    public boolean isHalted(){
+        return halted;
     }
 }
\ No newline at end of file
@@ -0,0 +1,10 @@
+package com.gregei.potato8.core.cpu;
+
+interface CompiledBlock {
+    /**
+     * Runs every instruction of the block against the cpu state, leaving the program counter at the next block.
+     *
+     * @param cpu the cpu to execute against.
+     */
+    void execute(CPU cpu);
+}
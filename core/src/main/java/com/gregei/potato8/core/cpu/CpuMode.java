@@ -0,0 +1,113 @@
+package com.gregei.potato8.core.cpu;
+
+import java.util.Locale;
+
+/**
+ * The machine a rom is written for. The extended modes add opcodes on top of the chip-8 set, the base opcodes behave
+ * the same in every mode.
+ */
+public enum CpuMode {
+    /**
+     * The original 64x32 chip-8 with 4 KB of memory.
+     */
+    CHIP8(4096, 16, 1, false, false, 10),
+
+    /**
+     * SUPER-CHIP 1.1: a 128x64 high resolution mode, scrolling, 16x16 sprites, a large font and the RPL flags.
+     */
+    SCHIP(4096, 16, 1, true, false, 30),
+
+    /**
+     * XO-CHIP: SUPER-CHIP plus two bitplanes, 64 KB of memory, a deeper stack, scrolling up, register range loads
+     * and stores, the four byte long load of I and the audio pattern registers.
+     */
+    XOCHIP(65536, 64, 2, true, true, 1000);
+
+    private final int memorySize;
+    private final int stackDepth;
+    private final int planes;
+    private final boolean extended;
+    private final boolean xo;
+    private final int instructionsPerFrame;
+
+    CpuMode(int memorySize, int stackDepth, int planes, boolean extended, boolean xo, int instructionsPerFrame){
+        this.memorySize = memorySize;
+        this.stackDepth = stackDepth;
+        this.planes = planes;
+        this.extended = extended;
+        this.xo = xo;
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    /**
+     * Picks a mode from the file extension of a rom: .sc8 for SUPER-CHIP, .xo8 for XO-CHIP, chip-8 for anything else.
+     *
+     * @param path the path of the rom file.
+     * @return the mode the rom is most likely written for.
+     */
+    public static CpuMode forRom(String path){
+        String name = path.toLowerCase(Locale.ROOT);
+
+        if (name.endsWith(".xo8")){
+            return XOCHIP;
+        }
+
+        return name.endsWith(".sc8") ? SCHIP : CHIP8;
+    }
+
+    /**
+     * Returns the size of memory.
+     *
+     * @return the number of addressable bytes, a power of two.
+     */
+    public int getMemorySize(){
+        return memorySize;
+    }
+
+    /**
+     * Returns the number of entries in the call stack.
+     *
+     * @return the stack depth.
+     */
+    public int getStackDepth(){
+        return stackDepth;
+    }
+
+    /**
+     * Returns the number of bitplanes of the display, each adds one bit of color per pixel.
+     *
+     * @return the plane count.
+     */
+    public int getPlanes(){
+        return planes;
+    }
+
+    /**
+     * Returns true for the SUPER-CHIP opcodes: high resolution, scrolling, 16x16 sprites, the large font and the RPL
+     * flags.
+     *
+     * @return true if the mode extends chip-8.
+     */
+    public boolean isExtended(){
+        return extended;
+    }
+
+    /**
+     * Returns true for the XO-CHIP opcodes, including F000 nnnn which is four bytes long, so skips step over it
+     * whole.
+     *
+     * @return true if the mode is XO-CHIP.
+     */
+    public boolean isXo(){
+        return xo;
+    }
+
+    /**
+     * Returns the instruction rate roms of this mode are usually written for.
+     *
+     * @return the default number of instructions per 60 Hz frame.
+     */
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+}
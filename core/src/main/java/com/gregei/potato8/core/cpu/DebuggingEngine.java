@@ -0,0 +1,133 @@
+package com.gregei.potato8.core.cpu;
+
+import com.gregei.potato8.core.debug.Debugger;
+import com.gregei.potato8.core.graphics.FrameBuffer;
+
+/**
+ * Interprets the cpu one instruction at a time, checking every instruction against the breakpoints, watchpoints
+ * and step commands of a debugger.
+ */
+public class DebuggingEngine implements ExecutionEngine {
+    /**
+     * The cpu being interpreted.
+     */
+    private final CPU cpu;
+
+    /**
+     * The debugger stopping the cpu.
+     */
+    private final Debugger debugger;
+
+    public DebuggingEngine(CPU cpu, Debugger debugger){
+        this.cpu = cpu;
+        this.debugger = debugger;
+        debugger.attach(cpu, cpu.memory);
+        cpu.setEngine(this);
+    }
+
+    @Override
+    public void runCycle(){
+        runCycles(1);
+    }
+
+    @Override
+    public int runCycles(int cycles){
+        CPU cpu = this.cpu;
+        Debugger debugger = this.debugger;
+        int cycle = 0;
+
+        for (; cycle < cycles && cpu.cpuRunning && cpu.idleLength == 0; ++cycle){
+            int pc = cpu.pc;
+
+            if (debugger.checkBreakpoint(pc)){
+                break;
+            }
+
+            int opcode = cpu.memory.readWord(pc);
+
+            if (debugger.isWatching()){
+                checkAccess(opcode);
+            }
+
+            // Fetched once here instead of again in runCycle.
+            cpu.pc += 2;
+            cpu.execute((char)opcode);
+
+            debugger.afterInstruction(pc);
+        }
+
+        return cycle;
+    }
+
+    /**
+     * Reports the memory an instruction reads or writes to the debugger, before it runs since it may change I.
+     */
+    private void checkAccess(int opcode){
+        CPU cpu = this.cpu;
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+
+        switch (opcode & 0xF000){
+            case 0x5000:
+                // 5xy2 and 5xy3 store and read Vx through Vy.
+                if (cpu.xo && (opcode & 0xE) == 2){
+                    debugger.checkAccess(cpu.I, Math.abs(y - x) + 1, (opcode & 1) == 0);
+                }
+                break;
+
+            case 0xD000:
+                debugger.checkAccess(cpu.I, getSpriteLength(opcode & 0xF), false);
+                break;
+
+            case 0xF000:
+                switch (opcode & 0xFF){
+                    case 0x02:
+                        if (cpu.xo && x == 0){
+                            debugger.checkAccess(cpu.I, cpu.audioPattern.length, false);
+                        }
+                        break;
+
+                    case 0x33:
+                        debugger.checkAccess(cpu.I, 3, true);
+                        break;
+
+                    case 0x55:
+                        debugger.checkAccess(cpu.I, x + 1, true);
+                        break;
+
+                    case 0x65:
+                        debugger.checkAccess(cpu.I, x + 1, false);
+                        break;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns the number of sprite bytes Dxyn reads, matching {@link CPU#drawSprite}.
+     */
+    private int getSpriteLength(int n){
+        CPU cpu = this.cpu;
+
+        if (!cpu.mode.isExtended()){
+            return n;
+        }
+
+        FrameBuffer graphics = cpu.graphics;
+        boolean wide = n == 0 && (cpu.xo || graphics.isHighResolution());
+        int rows = n == 0 ? 16 : n;
+        int planes = Integer.bitCount(graphics.getSelectedPlanes() & ((1 << graphics.getPlaneCount()) - 1));
+
+        return rows * (wide ? 2 : 1) * planes;
+    }
+
+    @Override
+    public void invalidate(int address, int length){
+        // Nothing is cached, opcodes are decoded on every cycle.
+    }
+
+    @Override
+    public void reset(){
+        debugger.reset();
+    }
+}
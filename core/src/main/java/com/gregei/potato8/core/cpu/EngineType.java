@@ -0,0 +1,41 @@
+package com.gregei.potato8.core.cpu;
+
+public enum EngineType {
+    /**
+     * Decodes every opcode through the nested switch in {@link CPU#runCycle()}.
+     */
+    INTERPRETER {
+        @Override
+        public ExecutionEngine create(CPU cpu){
+            return new InterpreterEngine(cpu);
+        }
+    },
+
+    /**
+     * Decodes every address once into an operation table and dispatches on the cached entry.
+     */
+    PREDECODED {
+        @Override
+        public ExecutionEngine create(CPU cpu){
+            return new PredecodedEngine(cpu);
+        }
+    },
+
+    /**
+     * Interprets cold code and compiles hot basic blocks into hidden classes holding the registers in locals.
+     */
+    RECOMPILER {
+        @Override
+        public ExecutionEngine create(CPU cpu){
+            return new RecompilingEngine(cpu);
+        }
+    };
+
+    /**
+     * Creates an engine of this type running the passed cpu.
+     *
+     * @param cpu the cpu whose state the engine executes against.
+     * @return the new engine.
+     */
+    public abstract ExecutionEngine create(CPU cpu);
+}
@@ -0,0 +1,29 @@
+package com.gregei.potato8.core.cpu;
+
+public interface ExecutionEngine {
+    /**
+     * Runs one cpu cycle.
+     */
+    void runCycle();
+
+    /**
+     * Runs up to the passed number of cpu cycles, stopping early if the cpu halts.
+     *
+     * @param cycles the number of cycles to run.
+     * @return the number of cycles run.
+     */
+    int runCycles(int cycles);
+
+    /**
+     * Drops any cached state derived from a range of memory after it was written.
+     *
+     * @param address the first address written.
+     * @param length the number of bytes written.
+     */
+    void invalidate(int address, int length);
+
+    /**
+     * Drops all cached state, called when the memory is reset or a new game is loaded.
+     */
+    void reset();
+}
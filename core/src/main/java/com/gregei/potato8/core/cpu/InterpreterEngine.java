@@ -0,0 +1,42 @@
+package com.gregei.potato8.core.cpu;
+
+public class InterpreterEngine implements ExecutionEngine {
+    /**
+     * The cpu being interpreted.
+     */
+    private final CPU cpu;
+
+    public InterpreterEngine(CPU cpu){
+        this.cpu = cpu;
+        cpu.setEngine(this);
+    }
+
+    /**
+     * Runs one cpu cycle through the cpu opcode switch.
+     */
+    @Override
+    public void runCycle(){
+        cpu.runCycle();
+    }
+
+    @Override
+    public int runCycles(int cycles){
+        int cycle = 0;
+
+        for (; cycle < cycles && cpu.getCpuRunning() && !cpu.isIdle(); ++cycle){
+            cpu.runCycle();
+        }
+
+        return cycle;
+    }
+
+    @Override
+    public void invalidate(int address, int length){
+        // Nothing is cached, opcodes are decoded on every cycle.
+    }
+
+    @Override
+    public void reset(){
+        // Nothing is cached, opcodes are decoded on every cycle.
+    }
+}
@@ -0,0 +1,570 @@
+package com.gregei.potato8.core.cpu;
+
+import java.util.Arrays;
+
+public class PredecodedEngine implements ExecutionEngine {
+    /*
+     * Operation ids stored in the low byte of a table entry. Zero marks an address that has not been decoded yet. The
+     * operations common in hot loops run inline in runCycles, the others and undecoded addresses in executeRare.
+     */
+    private static final int UNDECODED = 0;
+    private static final int JP = 1;
+    private static final int CALL = 2;
+    private static final int RET = 3;
+    private static final int SE_BYTE = 4;
+    private static final int SNE_BYTE = 5;
+    private static final int SE_REG = 6;
+    private static final int SNE_REG = 7;
+    private static final int LD_BYTE = 8;
+    private static final int ADD_BYTE = 9;
+    private static final int LD_REG = 10;
+    private static final int OR = 11;
+    private static final int AND = 12;
+    private static final int XOR = 13;
+    private static final int ADD_REG = 14;
+    private static final int SUB = 15;
+    private static final int SHR = 16;
+    private static final int SUBN = 17;
+    private static final int SHL = 18;
+    private static final int LD_I = 19;
+    private static final int ADD_I = 20;
+    private static final int CLS = 21;
+    private static final int JP_LOOP = 22;
+    private static final int JP_V0 = 23;
+    private static final int RND = 24;
+    private static final int DRW = 25;
+    private static final int SKP = 26;
+    private static final int SKNP = 27;
+    private static final int LD_VX_DT = 28;
+    private static final int LD_K = 29;
+    private static final int LD_DT = 30;
+    private static final int LD_ST = 31;
+    private static final int LD_F = 32;
+    private static final int LD_B = 33;
+    private static final int LD_MEM = 34;
+    private static final int LD_REGS = 35;
+    private static final int FALLBACK = 36;
+
+    /**
+     * The number of bytes at the end of memory whose opcodes are left to the cpu, as running or skipping on from them
+     * wraps the program counter around: two bytes past the opcode and a skipped four byte XO-CHIP instruction. Every
+     * other opcode leaves the program counter inside memory, so the loop never masks it.
+     */
+    private static final int WRAPPING_BYTES = 6;
+
+    /**
+     * The cpu whose state is executed against.
+     */
+    private final CPU cpu;
+
+    /**
+     * One decoded entry per memory address, packed as operation id (bits 0-7), x (bits 8-11), y (bits 12-15) and
+     * the nnn, kk or n operand (bits 16-31). Fallback entries carry the raw opcode in the operand bits.
+     */
+    private final int[] table;
+
+    /**
+     * Masks I and the program counter to the size of memory.
+     */
+    private final int addressMask;
+
+    public PredecodedEngine(CPU cpu){
+        this.cpu = cpu;
+        table = new int[cpu.mode.getMemorySize()];
+        addressMask = cpu.mode.getMemorySize() - 1;
+        cpu.setEngine(this);
+    }
+
+    /**
+     * Runs one cpu cycle using the decoded entry for the current program counter.
+     */
+    @Override
+    public void runCycle(){
+        runCycles(1);
+    }
+
+    /**
+     * Runs a number of cpu cycles, keeping the program counter in a local between instructions. It is stored back
+     * before any cpu method that reads it and when the loop exits. The loop also exits once an idle loop is entered.
+     *
+     * The loop only loads the entry and dispatches on its operation, each operation unpacks the fields it uses. The
+     * running flag is read once up front and again after opcodes left to the cpu, as only those halt or exit, so a
+     * stop from another thread takes effect from the next call.
+     */
+    @Override
+    public int runCycles(int cycles){
+        CPU cpu = this.cpu;
+
+        if (!cpu.cpuRunning){
+            return 0;
+        }
+
+        char[] v = cpu.v;
+        int[] table = this.table;
+
+        int pc = cpu.pc & addressMask;
+        int cycle = 0;
+
+        try {
+            run:
+            for (; cycle < cycles; ++cycle){
+                int entry = table[pc];
+                pc += 2;
+
+                switch (entry & 0xFF){
+                    case JP:
+                        pc = operand(entry);
+                        break;
+
+                    case CALL:
+                        cpu.stack[++cpu.sp] = (char)pc;
+                        pc = operand(entry);
+                        break;
+
+                    case RET:
+                        pc = cpu.stack[cpu.sp--] & addressMask;
+                        break;
+
+                    case SE_BYTE:
+                        if (v[x(entry)] == operand(entry)){
+                            pc = cpu.skip(pc);
+                        }
+                        break;
+
+                    case SNE_BYTE:
+                        if (v[x(entry)] != operand(entry)){
+                            pc = cpu.skip(pc);
+                        }
+                        break;
+
+                    case SE_REG:
+                        if (v[x(entry)] == v[y(entry)]){
+                            pc = cpu.skip(pc);
+                        }
+                        break;
+
+                    case SNE_REG:
+                        if (v[x(entry)] != v[y(entry)]){
+                            pc = cpu.skip(pc);
+                        }
+                        break;
+
+                    case LD_BYTE:
+                        v[x(entry)] = (char)operand(entry);
+                        break;
+
+                    case ADD_BYTE:
+                        addByte(v, x(entry), operand(entry));
+                        break;
+
+                    case LD_REG:
+                        v[x(entry)] = v[y(entry)];
+                        break;
+
+                    case OR:
+                        or(v, x(entry), y(entry));
+                        break;
+
+                    case AND:
+                        and(v, x(entry), y(entry));
+                        break;
+
+                    case XOR:
+                        xor(v, x(entry), y(entry));
+                        break;
+
+                    case ADD_REG:
+                        addRegisters(v, x(entry), y(entry));
+                        break;
+
+                    case SUB:
+                        subtractRegisters(v, x(entry), y(entry));
+                        break;
+
+                    case SHR:
+                        shiftRight(v, x(entry));
+                        break;
+
+                    case SUBN:
+                        subtractRegistersReversed(v, x(entry), y(entry));
+                        break;
+
+                    case SHL:
+                        shiftLeft(v, x(entry));
+                        break;
+
+                    case LD_I:
+                        cpu.I = (char)operand(entry);
+                        break;
+
+                    case ADD_I:
+                        cpu.I = (char)((cpu.I + v[x(entry)]) & addressMask);
+                        break;
+
+                    default:
+                        pc = executeRare(entry, pc);
+
+                        if (pc < 0){
+                            // The cpu went idle or stopped, this cycle is the last one run.
+                            pc = ~pc;
+                            ++cycle;
+                            break run;
+                        }
+                        break;
+                }
+            }
+        } finally {
+            cpu.pc = (char)pc;
+        }
+
+        return cycle;
+    }
+
+    /**
+     * Runs the operations left out of the loop, those that are rare in hot loops or that cost far more than their
+     * dispatch.
+     *
+     * @param entry the decoded entry, or zero for an address not decoded yet.
+     * @param pc the program counter, already past the opcode.
+     * @return the program counter after the operation, complemented when the cpu went idle or stopped on it.
+     */
+    private int executeRare(int entry, int pc){
+        CPU cpu = this.cpu;
+        char[] v = cpu.v;
+
+        switch (entry & 0xFF){
+            case UNDECODED:
+                // An address is decoded on its first run, which the cpu interprets.
+                decode(pc - 2);
+                return interpret(cpu.memory.readWord(pc - 2), pc);
+
+            case CLS:
+                cpu.clearScreen();
+                return pc;
+
+            case JP_LOOP:
+                return cpu.detectIdleLoop(pc - 2, operand(entry)) ? ~operand(entry) : operand(entry);
+
+            case JP_V0:
+                return (operand(entry) + v[0]) & 0xFF;
+
+            case RND:
+                v[x(entry)] = (char)(cpu.nextRandom() & operand(entry));
+                return pc;
+
+            case DRW:
+                cpu.drawSprite(v[x(entry)], v[y(entry)], operand(entry));
+                return pc;
+
+            case SKP:
+                return cpu.keys[v[x(entry)]] != 0 ? cpu.skip(pc) : pc;
+
+            case SKNP:
+                return cpu.keys[v[x(entry)]] == 0 ? cpu.skip(pc) : pc;
+
+            case LD_VX_DT:
+                v[x(entry)] = (char)(cpu.delayTimer & 0xFF);
+                return pc;
+
+            case LD_K:
+                cpu.pc = (char)pc;
+                cpu.waitForKey(x(entry));
+                return cpu.idleLength != 0 ? ~cpu.pc : cpu.pc;
+
+            case LD_DT:
+                cpu.delayTimer = v[x(entry)];
+                return pc;
+
+            case LD_ST:
+                cpu.soundTimer = v[x(entry)];
+                return pc;
+
+            case LD_F:
+                cpu.I = (char)(v[x(entry)] * 5);
+                return pc;
+
+            case LD_B:
+                cpu.storeBCD(x(entry));
+                return pc;
+
+            case LD_MEM:
+                cpu.storeRegisters(x(entry));
+                return pc;
+
+            case LD_REGS:
+                cpu.loadRegisters(x(entry));
+                return pc;
+
+            default:
+                return interpret(operand(entry), pc);
+        }
+    }
+
+    /**
+     * Runs an opcode through the cpu.
+     *
+     * @param opcode the opcode.
+     * @param pc the program counter, already past the opcode.
+     * @return the program counter after the opcode, complemented when the cpu went idle or stopped on it.
+     */
+    private int interpret(int opcode, int pc){
+        CPU cpu = this.cpu;
+
+        cpu.pc = (char)pc;
+        cpu.execute((char)opcode);
+
+        return cpu.cpuRunning && cpu.idleLength == 0 ? cpu.pc : ~cpu.pc;
+    }
+
+    /**
+     * Returns the x register index of an entry.
+     */
+    private static int x(int entry){
+        return (entry >>> 8) & 0xF;
+    }
+
+    /**
+     * Returns the y register index of an entry.
+     */
+    private static int y(int entry){
+        return (entry >>> 12) & 0xF;
+    }
+
+    /**
+     * Returns the nnn, kk or n operand of an entry, or the raw opcode of a fallback entry.
+     */
+    private static int operand(int entry){
+        return entry >>> 16;
+    }
+
+    /**
+     * 7xkk - ADD Vx, byte.
+     */
+    private static void addByte(char[] v, int x, int kk){
+        v[x] = (char)((v[x] + kk) & 0xFF);
+    }
+
+    /**
+     * 8xy1 - OR Vx, Vy.
+     */
+    private static void or(char[] v, int x, int y){
+        v[x] = (char)(v[x] | v[y]);
+    }
+
+    /**
+     * 8xy2 - AND Vx, Vy.
+     */
+    private static void and(char[] v, int x, int y){
+        v[x] = (char)(v[x] & v[y]);
+    }
+
+    /**
+     * 8xy3 - XOR Vx, Vy.
+     */
+    private static void xor(char[] v, int x, int y){
+        v[x] = (char)(v[x] ^ v[y]);
+    }
+
+    /**
+     * 8xy6 - SHR Vx, VF is set before Vx is stored to match the interpreter when x is F.
+     */
+    private static void shiftRight(char[] v, int x){
+        v[0xF] = (char)(v[x] & 1);
+        v[x] = (char)(v[x] >>> 1);
+    }
+
+    /**
+     * 8xyE - SHL Vx, VF is set before Vx is stored to match the interpreter when x is F.
+     */
+    private static void shiftLeft(char[] v, int x){
+        v[0xF] = (char)((v[x] >>> 7) & 1);
+        v[x] = (char)((v[x] << 1) & 0xFF);
+    }
+
+    /**
+     * 8xy4 - ADD Vx, Vy, VF is set before Vx is stored to match the interpreter when x is F.
+     */
+    private static void addRegisters(char[] v, int x, int y){
+        int result = v[x] + v[y];
+
+        v[0xF] = (char)(result > 255 ? 1 : 0);
+        v[x] = (char)(result & 0xFF);
+    }
+
+    /**
+     * 8xy5 - SUB Vx, Vy, VF is set before the subtraction to match the interpreter when x or y is F.
+     */
+    private static void subtractRegisters(char[] v, int x, int y){
+        v[0xF] = (char)(v[y] > v[x] ? 0 : 1);
+        v[x] = (char)((v[x] - v[y]) & 0xFF);
+    }
+
+    /**
+     * 8xy7 - SUBN Vx, Vy, VF is set before the subtraction to match the interpreter when x or y is F.
+     */
+    private static void subtractRegistersReversed(char[] v, int x, int y){
+        v[0xF] = (char)(v[y] > v[x] ? 1 : 0);
+        v[x] = (char)((v[y] - v[x]) & 0xFF);
+    }
+
+    /**
+     * Decodes the opcode at the passed address and caches the entry. Opcodes that can run or skip off the end of
+     * memory are left to the cpu, which wraps the program counter.
+     *
+     * @param address the address of the opcode.
+     */
+    private void decode(int address){
+        int opcode = cpu.memory.readWord(address);
+
+        table[address] = address > addressMask - WRAPPING_BYTES ? fallback(opcode) : decode(address, opcode);
+    }
+
+    /**
+     * Decodes an opcode into its entry.
+     *
+     * @param address the address of the opcode.
+     * @param opcode the opcode.
+     * @return the decoded entry.
+     */
+    private static int decode(int address, int opcode){
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int nnn = opcode & 0x0FFF;
+        int kk = opcode & 0xFF;
+        int n = opcode & 0xF;
+
+        int entry;
+
+        switch (opcode & 0xF000){
+            case 0x0000:
+                entry = kk == 0xE0 ? pack(CLS, 0, 0, 0) : kk == 0xEE ? pack(RET, 0, 0, 0) : fallback(opcode);
+                break;
+
+            case 0x1000:
+                // Only loops of one or three instructions are checked for idling.
+                entry = pack(nnn == address || nnn == address - 4 ? JP_LOOP : JP, 0, 0, nnn);
+                break;
+
+            case 0x2000:
+                entry = pack(CALL, 0, 0, nnn);
+                break;
+
+            case 0x3000:
+                entry = pack(SE_BYTE, x, 0, kk);
+                break;
+
+            case 0x4000:
+                entry = pack(SNE_BYTE, x, 0, kk);
+                break;
+
+            case 0x5000:
+                // The XO-CHIP 5xy2 and 5xy3 register range transfers are left to the cpu.
+                entry = n == 0 ? pack(SE_REG, x, y, 0) : fallback(opcode);
+                break;
+
+            case 0x6000:
+                entry = pack(LD_BYTE, x, 0, kk);
+                break;
+
+            case 0x7000:
+                entry = pack(ADD_BYTE, x, 0, kk);
+                break;
+
+            case 0x8000:
+                entry = decodeArithmetic(opcode, x, y, n);
+                break;
+
+            case 0x9000:
+                entry = pack(SNE_REG, x, y, 0);
+                break;
+
+            case 0xA000:
+                entry = pack(LD_I, 0, 0, nnn);
+                break;
+
+            case 0xB000:
+                entry = pack(JP_V0, 0, 0, nnn);
+                break;
+
+            case 0xC000:
+                entry = pack(RND, x, 0, kk);
+                break;
+
+            case 0xD000:
+                entry = pack(DRW, x, y, n);
+                break;
+
+            case 0xE000:
+                entry = kk == 0x9E ? pack(SKP, x, 0, 0) : kk == 0xA1 ? pack(SKNP, x, 0, 0) : fallback(opcode);
+                break;
+
+            default:
+                entry = decodeMisc(opcode, x, kk);
+                break;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Decodes the 8xyn arithmetic family.
+     */
+    private static int decodeArithmetic(int opcode, int x, int y, int n){
+        switch (n){
+            case 0x0: return pack(LD_REG, x, y, 0);
+            case 0x1: return pack(OR, x, y, 0);
+            case 0x2: return pack(AND, x, y, 0);
+            case 0x3: return pack(XOR, x, y, 0);
+            case 0x4: return pack(ADD_REG, x, y, 0);
+            case 0x5: return pack(SUB, x, y, 0);
+            case 0x6: return pack(SHR, x, y, 0);
+            case 0x7: return pack(SUBN, x, y, 0);
+            case 0xE: return pack(SHL, x, y, 0);
+            default: return fallback(opcode);
+        }
+    }
+
+    /**
+     * Decodes the Fxkk family.
+     */
+    private static int decodeMisc(int opcode, int x, int kk){
+        switch (kk){
+            case 0x07: return pack(LD_VX_DT, x, 0, 0);
+            case 0x0A: return pack(LD_K, x, 0, 0);
+            case 0x15: return pack(LD_DT, x, 0, 0);
+            case 0x18: return pack(LD_ST, x, 0, 0);
+            case 0x1E: return pack(ADD_I, x, 0, 0);
+            case 0x29: return pack(LD_F, x, 0, 0);
+            case 0x33: return pack(LD_B, x, 0, 0);
+            case 0x55: return pack(LD_MEM, x, 0, 0);
+            case 0x65: return pack(LD_REGS, x, 0, 0);
+            default: return fallback(opcode);
+        }
+    }
+
+    private static int pack(int operation, int x, int y, int operand){
+        return operation | (x << 8) | (y << 12) | (operand << 16);
+    }
+
+    private static int fallback(int opcode){
+        return pack(FALLBACK, 0, 0, opcode);
+    }
+
+    /**
+     * Drops the entries overlapping the written range, including the opcode starting one byte before it.
+     */
+    @Override
+    public void invalidate(int address, int length){
+        int from = Math.max(address - 1, 0);
+        int to = Math.min(address + length, table.length);
+
+        if (from < to){
+            Arrays.fill(table, from, to, UNDECODED);
+        }
+    }
+
+    @Override
+    public void reset(){
+        Arrays.fill(table, UNDECODED);
+    }
+}
@@ -0,0 +1,63 @@
+package com.gregei.potato8.core.cpu;
+
+import com.gregei.potato8.core.profile.PcProfiler;
+
+/**
+ * Interprets the cpu one instruction at a time and reports every executed instruction to a profiler.
+ */
+public class ProfilingEngine implements ExecutionEngine {
+    /**
+     * The cpu being interpreted.
+     */
+    private final CPU cpu;
+
+    /**
+     * The profiler counting executions.
+     */
+    private final PcProfiler profiler;
+
+    public ProfilingEngine(CPU cpu, PcProfiler profiler){
+        this.cpu = cpu;
+        this.profiler = profiler;
+        profiler.attach(cpu.memory);
+        cpu.setEngine(this);
+    }
+
+    @Override
+    public void runCycle(){
+        runCycles(1);
+    }
+
+    @Override
+    public int runCycles(int cycles){
+        CPU cpu = this.cpu;
+        PcProfiler profiler = this.profiler;
+        long executed = profiler.getTotal();
+        int cycle = 0;
+
+        for (; cycle < cycles && cpu.cpuRunning && cpu.idleLength == 0; ++cycle){
+            int pc = cpu.pc;
+            int opcode = cpu.memory.readWord(pc);
+
+            // Fetched once here instead of again in runCycle.
+            cpu.pc += 2;
+            cpu.execute((char)opcode);
+
+            profiler.record(pc, opcode, cpu.pc, ++executed);
+        }
+
+        profiler.advance(executed);
+
+        return cycle;
+    }
+
+    @Override
+    public void invalidate(int address, int length){
+        // Nothing is cached, opcodes are decoded on every cycle.
+    }
+
+    @Override
+    public void reset(){
+        profiler.resetCallStack();
+    }
+}
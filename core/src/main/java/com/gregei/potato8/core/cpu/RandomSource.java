@@ -0,0 +1,28 @@
+package com.gregei.potato8.core.cpu;
+
+/**
+ * The source of random bytes for Cxkk. Its whole state is one long so it can be saved and restored with the rest of
+ * the emulator.
+ */
+public interface RandomSource {
+    /**
+     * Returns the next random byte.
+     *
+     * @return a random number from 0 to 255.
+     */
+    int nextByte();
+
+    /**
+     * Returns the state of the generator.
+     *
+     * @return the state, restoring it with {@link #setState} repeats the same bytes.
+     */
+    long getState();
+
+    /**
+     * Sets the state of the generator.
+     *
+     * @param state a state returned by {@link #getState}.
+     */
+    void setState(long state);
+}
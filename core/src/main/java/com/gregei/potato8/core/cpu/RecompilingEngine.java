@@ -0,0 +1,205 @@
+package com.gregei.potato8.core.cpu;
+
+import com.gregei.potato8.core.memory.Memory;
+
+import java.util.Arrays;
+
+public class RecompilingEngine implements ExecutionEngine {
+    /**
+     * The number of times a block must be entered before it is compiled.
+     */
+    private static final int COMPILE_THRESHOLD = 64;
+
+    /**
+     * Marks a block start that failed to compile so it is never retried.
+     */
+    private static final int NEVER_COMPILE = -1;
+
+    /**
+     * The cpu whose state is executed against.
+     */
+    private final CPU cpu;
+
+    /**
+     * Translates hot blocks into hidden classes.
+     */
+    private final BlockCompiler compiler;
+
+    /**
+     * The compiled block starting at each address, or null.
+     */
+    private final CompiledBlock[] blocks = new CompiledBlock[4096];
+
+    /**
+     * The number of instructions in the compiled block starting at each address.
+     */
+    private final int[] blockLengths = new int[4096];
+
+    /**
+     * The number of times each address was entered as the start of an interpreted block.
+     */
+    private final int[] entryCounts = new int[4096];
+
+    /**
+     * The number of compiled blocks covering each byte of memory, used to skip invalidation of data writes.
+     */
+    private final int[] coverage = new int[4096];
+
+    /**
+     * Masks the program counter to the size of memory.
+     */
+    private final int addressMask;
+
+    /**
+     * True if the program counter is at the start of a block.
+     */
+    private boolean atBlockStart = true;
+
+    /**
+     * The number of instructions interpreted since the start of the current block.
+     */
+    private int interpretedLength;
+
+    public RecompilingEngine(CPU cpu){
+        this.cpu = cpu;
+        compiler = new BlockCompiler(cpu.mode);
+        addressMask = cpu.mode.getMemorySize() - 1;
+        cpu.setEngine(this);
+    }
+
+    @Override
+    public void runCycle(){
+        runCycles(1);
+    }
+
+    /**
+     * Runs compiled blocks while they fit in the remaining cycles and interprets everything else one instruction at
+     * a time, counting block entries to find hot blocks. Stops once an idle loop is entered.
+     */
+    @Override
+    public int runCycles(int cycles){
+        int remaining = cycles;
+
+        while (remaining > 0 && cpu.cpuRunning && cpu.idleLength == 0){
+            int pc = cpu.pc;
+
+            if (atBlockStart && pc < blocks.length){
+                CompiledBlock block = blocks[pc];
+
+                if (block == null && entryCounts[pc] != NEVER_COMPILE && ++entryCounts[pc] >= COMPILE_THRESHOLD){
+                    block = compile(pc);
+                }
+
+                // The length is read first, a block storing over itself is dropped while it runs.
+                int length = blockLengths[pc];
+
+                if (block != null && length <= remaining){
+                    block.execute(cpu);
+                    // A block ending on the last word of memory leaves the program counter one past it.
+                    cpu.pc = (char)(cpu.pc & addressMask);
+                    remaining -= length;
+                    continue;
+                }
+            }
+
+            interpret();
+            --remaining;
+        }
+
+        return cycles - remaining;
+    }
+
+    /**
+     * Interprets one instruction and tracks where the next block starts.
+     */
+    private void interpret(){
+        int opcode = cpu.memory.readWord(cpu.pc);
+
+        atBlockStart = false;
+        cpu.runCycle();
+
+        if (BlockCompiler.endsBlock(opcode) || ++interpretedLength >= BlockCompiler.MAX_BLOCK_LENGTH){
+            atBlockStart = true;
+            interpretedLength = 0;
+        }
+    }
+
+    /**
+     * Compiles the block starting at the passed address.
+     *
+     * @param start the address of the block.
+     * @return the compiled block, or null if it cannot be compiled.
+     */
+    private CompiledBlock compile(int start){
+        Memory memory = cpu.memory;
+        int length = BlockCompiler.scan(memory, start);
+
+        // A lone jump gains nothing from compiling, interpreting it lets the cpu see idle loops.
+        if (length == 0 || length == 1 && (memory.readWord(start) & 0xF000) == 0x1000){
+            entryCounts[start] = NEVER_COMPILE;
+            return null;
+        }
+
+        CompiledBlock block;
+
+        try {
+            block = compiler.compile(memory, start, length);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            entryCounts[start] = NEVER_COMPILE;
+            return null;
+        }
+
+        blocks[start] = block;
+        blockLengths[start] = length;
+
+        for (int address = start; address < start + length * 2; ++address){
+            coverage[address]++;
+        }
+
+        return block;
+    }
+
+    /**
+     * Drops every compiled block overlapping the written range.
+     */
+    @Override
+    public void invalidate(int address, int length){
+        int end = Math.min(address + length, coverage.length);
+        boolean covered = false;
+
+        for (int i = address; i < end; ++i){
+            covered |= coverage[i] != 0;
+        }
+
+        if (!covered){
+            return;
+        }
+
+        for (int start = Math.max(address - BlockCompiler.MAX_BLOCK_LENGTH * 2, 0); start < end; ++start){
+            if (blocks[start] != null && start + blockLengths[start] * 2 > address){
+                drop(start);
+            }
+        }
+    }
+
+    private void drop(int start){
+        for (int address = start; address < start + blockLengths[start] * 2; ++address){
+            coverage[address]--;
+        }
+
+        blocks[start] = null;
+        blockLengths[start] = 0;
+        entryCounts[start] = 0;
+    }
+
+    @Override
+    public void reset(){
+        Arrays.fill(blocks, null);
+        Arrays.fill(blockLengths, 0);
+        Arrays.fill(entryCounts, 0);
+        Arrays.fill(coverage, 0);
+
+        atBlockStart = true;
+        interpretedLength = 0;
+    }
+}
@@ -0,0 +1,67 @@
+package com.gregei.potato8.core.cpu;
+
+import com.gregei.potato8.core.trace.InstructionTrace;
+
+/**
+ * Interprets the cpu one instruction at a time and records every executed instruction to a flight recorder, which
+ * is dumped when the cpu halts.
+ */
+public class TracingEngine implements ExecutionEngine {
+    /**
+     * The cpu being interpreted.
+     */
+    private final CPU cpu;
+
+    /**
+     * The trace recording executions.
+     */
+    private final InstructionTrace trace;
+
+    public TracingEngine(CPU cpu, InstructionTrace trace){
+        this.cpu = cpu;
+        this.trace = trace;
+        cpu.setEngine(this);
+    }
+
+    @Override
+    public void runCycle(){
+        runCycles(1);
+    }
+
+    @Override
+    public int runCycles(int cycles){
+        CPU cpu = this.cpu;
+        InstructionTrace trace = this.trace;
+        char[] v = cpu.v;
+        int pc = 0, opcode = 0;
+        int cycle = 0;
+
+        for (; cycle < cycles && cpu.cpuRunning && cpu.idleLength == 0; ++cycle){
+            pc = cpu.pc;
+            opcode = cpu.memory.readWord(pc);
+
+            // Fetched once here instead of again in runCycle.
+            cpu.pc += 2;
+            cpu.execute((char)opcode);
+
+            trace.record(pc, opcode, v[opcode >>> 8 & 0xF], v[opcode >>> 4 & 0xF], cpu.I);
+        }
+
+        // Only the instruction the cpu halted on ends a run early with the halted flag set.
+        if (cycle > 0 && cpu.halted){
+            trace.onHalt(pc, opcode);
+        }
+
+        return cycle;
+    }
+
+    @Override
+    public void invalidate(int address, int length){
+        // Nothing is cached, opcodes are decoded on every cycle.
+    }
+
+    @Override
+    public void reset(){
+        // The trace keeps its history across resets and loaded states, it is cleared by its owner.
+    }
+}
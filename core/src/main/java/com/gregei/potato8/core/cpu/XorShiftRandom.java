@@ -0,0 +1,63 @@
+package com.gregei.potato8.core.cpu;
+
+/**
+ * A xorshift64* generator, a few shifts and a multiply per byte with no allocation or synchronization.
+ */
+public class XorShiftRandom implements RandomSource {
+    /**
+     * The generator state, never zero.
+     */
+    private long state;
+
+    /**
+     * Creates a generator seeded from the clock.
+     */
+    public XorShiftRandom(){
+        this(System.nanoTime());
+    }
+
+    /**
+     * Creates a generator that always produces the same bytes for the same seed.
+     *
+     * @param seed any value, including zero.
+     */
+    public XorShiftRandom(long seed){
+        setSeed(seed);
+    }
+
+    /**
+     * Reseeds the generator.
+     *
+     * @param seed any value, including zero.
+     */
+    public void setSeed(long seed){
+        // One splitmix64 step spreads similar seeds apart and maps zero to a valid state.
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+
+        state = z != 0 ? z : 0x9E3779B97F4A7C15L;
+    }
+
+    @Override
+    public int nextByte(){
+        long x = state;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        state = x;
+
+        return (int)((x * 0x2545F4914F6CDD1DL) >>> 56);
+    }
+
+    @Override
+    public long getState(){
+        return state;
+    }
+
+    @Override
+    public void setState(long state){
+        this.state = state != 0 ? state : 0x9E3779B97F4A7C15L;
+    }
+}
@@ -0,0 +1,448 @@
+package com.gregei.potato8.core.debug;
+
+import com.gregei.potato8.core.cpu.CPU;
+import com.gregei.potato8.core.memory.Memory;
+
+/**
+ * Stops the cpu at breakpoints and memory watchpoints and steps it an instruction, a call or a subroutine at a time,
+ * with the registers, the stack and memory open for inspection while it is stopped.
+ *
+ * Attach with {@link com.gregei.potato8.core.Chip8#setDebugger}, which swaps in a debugging interpreter. Emulators
+ * without a debugger run their usual engine and pay nothing for the checks. While the cpu is stopped, frames only
+ * apply key events: no instruction runs, the delay and sound timers keep their values and no sound is played until a
+ * run command. Commands and inspection must come from the emulation thread, between frames, like key changes; a run
+ * command takes effect on the next frame.
+ */
+public class Debugger {
+    /**
+     * Why the cpu stopped.
+     */
+    public enum Stop {
+        /**
+         * The cpu runs.
+         */
+        NONE,
+
+        /**
+         * {@link #pause()} was called.
+         */
+        PAUSE,
+
+        /**
+         * The next instruction is on a breakpoint.
+         */
+        BREAKPOINT,
+
+        /**
+         * The last instruction read a watched address.
+         */
+        READ_WATCHPOINT,
+
+        /**
+         * The last instruction wrote a watched address.
+         */
+        WRITE_WATCHPOINT,
+
+        /**
+         * A step, or a step over a call, finished.
+         */
+        STEP,
+
+        /**
+         * The subroutine running when {@link #runUntilReturn()} was called returned.
+         */
+        RETURN,
+
+        /**
+         * The cpu halted on an opcode it cannot execute.
+         */
+        HALT
+    }
+
+    /**
+     * What the cpu runs until, besides breakpoints and watchpoints.
+     */
+    private enum Mode {
+        RUN, STEP, STEP_OVER, RUN_UNTIL_RETURN
+    }
+
+    /**
+     * The watchpoint flags of an address.
+     */
+    private static final byte WATCH_READ = 1, WATCH_WRITE = 2;
+
+    /**
+     * The number of addresses of the largest memory.
+     */
+    private static final int ADDRESSES = 0x10000;
+
+    private final boolean[] breakpoints = new boolean[ADDRESSES];
+    private final byte[] watchpoints = new byte[ADDRESSES];
+
+    /**
+     * The number of addresses watched, the accesses of instructions are only checked while any are.
+     */
+    private int watchCount;
+
+    /**
+     * The cpu and memory debugged, set when attached.
+     */
+    private CPU cpu;
+    private Memory memory;
+
+    private Mode mode = Mode.RUN;
+
+    /**
+     * The address and stack depth a step over a call stops at, or the depth a run until return stops below.
+     */
+    private int targetPc, targetDepth;
+
+    /**
+     * True until the first instruction after a run command ran, so the breakpoint the cpu stopped on is left.
+     */
+    private boolean leaving;
+
+    private Stop stop = Stop.NONE;
+
+    /**
+     * The address of the breakpoint, watchpoint or instruction the cpu stopped at.
+     */
+    private int stopAddress;
+
+    /**
+     * The watched address accessed by the instruction running, or -1.
+     */
+    private int watchHit = -1;
+    private boolean watchHitWrite;
+
+    /**
+     * Told whenever the cpu stops, or null.
+     */
+    private Listener listener;
+
+    /**
+     * Sets the cpu and memory debugged, called by the debugging engine.
+     *
+     * @param cpu the cpu stopped and inspected.
+     * @param memory the memory watched and inspected.
+     */
+    public void attach(CPU cpu, Memory memory){
+        this.cpu = cpu;
+        this.memory = memory;
+    }
+
+    /**
+     * Sets the listener told whenever the cpu stops.
+     *
+     * @param listener the listener, called on the emulation thread, or null.
+     */
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Sets a breakpoint, the cpu stops before running the instruction at the address.
+     *
+     * @param address the address of the instruction.
+     */
+    public void addBreakpoint(int address){
+        breakpoints[address & (ADDRESSES - 1)] = true;
+    }
+
+    /**
+     * Removes a breakpoint.
+     *
+     * @param address the address of the instruction.
+     */
+    public void removeBreakpoint(int address){
+        breakpoints[address & (ADDRESSES - 1)] = false;
+    }
+
+    /**
+     * Watches an address, the cpu stops after an instruction reads or writes it. Instruction fetches are not
+     * watched, only the data accesses of sprites, BCD, register loads and stores and XO-CHIP audio patterns.
+     *
+     * @param address the address watched.
+     * @param read true to stop on reads.
+     * @param write true to stop on writes.
+     */
+    public void watch(int address, boolean read, boolean write){
+        int index = address & (ADDRESSES - 1);
+        int flags = (read ? WATCH_READ : 0) | (write ? WATCH_WRITE : 0);
+
+        if ((watchpoints[index] == 0) != (flags == 0)){
+            watchCount += flags == 0 ? -1 : 1;
+        }
+
+        watchpoints[index] = (byte)flags;
+    }
+
+    /**
+     * Stops watching an address.
+     *
+     * @param address the address watched.
+     */
+    public void unwatch(int address){
+        watch(address, false, false);
+    }
+
+    /**
+     * Stops the cpu before its next instruction.
+     */
+    public void pause(){
+        stop(Stop.PAUSE, cpu.getPc());
+    }
+
+    /**
+     * Runs the cpu until a breakpoint or watchpoint.
+     */
+    public void resume(){
+        run(Mode.RUN);
+    }
+
+    /**
+     * Runs one instruction.
+     */
+    public void step(){
+        run(Mode.STEP);
+    }
+
+    /**
+     * Runs one instruction, or a whole subroutine if the instruction is a 2nnn call: the cpu stops once the call
+     * returns to the instruction after it.
+     */
+    public void stepOver(){
+        int pc = cpu.getPc();
+
+        if ((memory.readWord(pc) & 0xF000) != 0x2000){
+            step();
+            return;
+        }
+
+        targetPc = pc + 2;
+        targetDepth = cpu.getSp();
+        run(Mode.STEP_OVER);
+    }
+
+    /**
+     * Runs the cpu until the running subroutine returns, stopping on the instruction returned to.
+     */
+    public void runUntilReturn(){
+        targetDepth = cpu.getSp();
+        run(Mode.RUN_UNTIL_RETURN);
+    }
+
+    private void run(Mode mode){
+        this.mode = mode;
+        stop = Stop.NONE;
+        leaving = true;
+        watchHit = -1;
+        cpu.setCpuRunning(true);
+    }
+
+    /**
+     * Called by the debugging engine when the emulator is reset or a state is loaded, drops the stop and the run
+     * command in progress since the cpu now runs as the state says. Breakpoints and watchpoints are kept.
+     */
+    public void reset(){
+        mode = Mode.RUN;
+        stop = Stop.NONE;
+        leaving = false;
+        watchHit = -1;
+    }
+
+    /**
+     * Stops the cpu, clearing an idle loop so the rest of the frame is not skipped through it.
+     */
+    private void stop(Stop reason, int address){
+        stop = reason;
+        stopAddress = address;
+        mode = Mode.RUN;
+        cpu.setCpuRunning(false);
+        cpu.skipIdle(0);
+
+        if (listener != null){
+            listener.onStop(this);
+        }
+    }
+
+    /**
+     * Called by the debugging engine before an instruction, stops the cpu if the instruction is on a breakpoint.
+     *
+     * @param pc the address of the instruction.
+     * @return true if the cpu stopped.
+     */
+    public boolean checkBreakpoint(int pc){
+        if (!breakpoints[pc] || leaving){
+            return false;
+        }
+
+        stop(Stop.BREAKPOINT, pc);
+        return true;
+    }
+
+    /**
+     * Returns true if any address is watched.
+     *
+     * @return true if the accesses of instructions must be checked.
+     */
+    public boolean isWatching(){
+        return watchCount != 0;
+    }
+
+    /**
+     * Called by the debugging engine before an instruction reading or writing memory, remembers the first watched
+     * address accessed to stop after the instruction ran.
+     *
+     * @param address the first address accessed.
+     * @param length the number of bytes accessed.
+     * @param write true for a write, false for a read.
+     */
+    public void checkAccess(int address, int length, boolean write){
+        int mask = memory.getAddressMask();
+        byte flag = write ? WATCH_WRITE : WATCH_READ;
+
+        for (int i = 0; i < length && watchHit < 0; ++i){
+            int target = (address + i) & mask;
+
+            if ((watchpoints[target] & flag) != 0){
+                watchHit = target;
+                watchHitWrite = write;
+            }
+        }
+    }
+
+    /**
+     * Called by the debugging engine after an instruction ran, stops the cpu on a watchpoint hit, a halt or the end
+     * of a step.
+     *
+     * @param pc the address of the instruction.
+     */
+    public void afterInstruction(int pc){
+        leaving = false;
+
+        if (cpu.isHalted()){
+            watchHit = -1;
+            stop(Stop.HALT, pc);
+        }
+        else if (watchHit >= 0){
+            int address = watchHit;
+
+            watchHit = -1;
+            stop(watchHitWrite ? Stop.WRITE_WATCHPOINT : Stop.READ_WATCHPOINT, address);
+        }
+        else if (mode == Mode.STEP
+                || mode == Mode.STEP_OVER && cpu.getPc() == targetPc && cpu.getSp() == targetDepth){
+            stop(Stop.STEP, cpu.getPc());
+        }
+        else if (mode == Mode.RUN_UNTIL_RETURN && cpu.getSp() < targetDepth){
+            stop(Stop.RETURN, cpu.getPc());
+        }
+    }
+
+    /**
+     * Returns true if the debugger stopped the cpu.
+     *
+     * @return true while stopped.
+     */
+    public boolean isStopped(){
+        return stop != Stop.NONE;
+    }
+
+    /**
+     * Returns why the cpu stopped.
+     *
+     * @return the reason, {@link Stop#NONE} while running.
+     */
+    public Stop getStop(){
+        return stop;
+    }
+
+    /**
+     * Returns where the cpu stopped: the breakpoint or next instruction, or the watched address accessed.
+     *
+     * @return the address.
+     */
+    public int getStopAddress(){
+        return stopAddress;
+    }
+
+    /**
+     * Returns the address of the next instruction.
+     *
+     * @return the program counter.
+     */
+    public int getPc(){
+        return cpu.getPc();
+    }
+
+    /**
+     * Returns a general purpose register.
+     *
+     * @param x the register number, 0 to F.
+     * @return the value of Vx.
+     */
+    public int getRegister(int x){
+        return cpu.getRegister(x);
+    }
+
+    /**
+     * Returns the address register.
+     *
+     * @return the value of I.
+     */
+    public int getI(){
+        return cpu.getI();
+    }
+
+    /**
+     * Returns the delay timer.
+     *
+     * @return the delay timer value.
+     */
+    public int getDelayTimer(){
+        return cpu.getDelayTimer();
+    }
+
+    /**
+     * Returns the sound timer.
+     *
+     * @return the sound timer value.
+     */
+    public int getSoundTimer(){
+        return cpu.getSoundTimer();
+    }
+
+    /**
+     * Returns the return addresses on the stack.
+     *
+     * @return the addresses, the outermost call first.
+     */
+    public int[] getStack(){
+        int[] stack = new int[cpu.getSp()];
+
+        for (int i = 0; i < stack.length; ++i){
+            stack[i] = cpu.getReturnAddress(i + 1);
+        }
+
+        return stack;
+    }
+
+    /**
+     * Reads a byte of memory without triggering a watchpoint.
+     *
+     * @param address the address, wrapped to the size of memory.
+     * @return the byte, 0 to 255.
+     */
+    public int read(int address){
+        return memory.read(address);
+    }
+
+    /**
+     * Told whenever the debugger stops the cpu.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onStop(Debugger debugger);
+    }
+}
@@ -0,0 +1,537 @@
+package com.gregei.potato8.core.export;
+
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.graphics.FrameKernels;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes frame buffer snapshots on a background thread, into a numbered PNG sequence or an animated GIF.
+ *
+ * {@link #submit} copies the packed rows of every plane into a pooled snapshot and queues it without blocking. If
+ * the encoder falls behind and the pool runs dry the frame is dropped and counted instead, so the emulation thread
+ * never waits on encoding or disk I/O. Images are one bit per pixel, two for a display with more than one plane,
+ * and need no display. They are 64x32 display pixels times the scale, or 128x64 for a display that can switch to
+ * high resolution, whose low resolution frames are drawn at twice the scale so no pixel is lost. Each display row is
+ * expanded to pixel values once by the {@link FrameKernels}, whatever the scale.
+ */
+public class FrameExporter implements AutoCloseable {
+    /**
+     * The default number of snapshots that can be queued at once.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Snapshots waiting to be encoded, in submission order.
+     */
+    private final ArrayBlockingQueue<Snapshot> queue;
+
+    /**
+     * Snapshots free to be filled.
+     */
+    private final ArrayBlockingQueue<Snapshot> free;
+
+    /**
+     * Writes the encoded images.
+     */
+    private final Encoder encoder;
+
+    /**
+     * The image every snapshot is scaled into, created for the first snapshot and again whenever a snapshot needs
+     * another size or pixel depth. Only touched by the encoder thread.
+     */
+    private BufferedImage image;
+
+    /**
+     * The identity palette, expands pixels to their values.
+     */
+    private static final int[] VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+
+    private static final FrameKernels KERNELS = FrameKernels.get();
+
+    /**
+     * The pixel values of the display row being drawn.
+     */
+    private final int[] values = new int[FrameBuffer.HIGH_WIDTH];
+
+    /**
+     * The display column every image column samples, for a display of the sampled width.
+     */
+    private int[] columns;
+    private int sampledWidth;
+
+    /**
+     * The scale of the images, in image pixels per display pixel.
+     */
+    private final int scale;
+
+    /**
+     * The thread encoding snapshots.
+     */
+    private final Thread thread;
+
+    /**
+     * Flag to represent if no more snapshots are accepted.
+     */
+    private volatile boolean finished;
+
+    /**
+     * The number of frames written, only counted by the encoder thread.
+     */
+    private volatile long written;
+
+    /**
+     * The number of frames dropped, counted by both threads.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The first error writing a frame, after which the rest are dropped.
+     */
+    private volatile IOException error;
+
+    private FrameExporter(Encoder encoder, int scale, int capacity){
+        if (scale < 1 || capacity < 1){
+            throw new IllegalArgumentException("Scale and capacity must be at least 1");
+        }
+
+        this.encoder = encoder;
+        this.scale = scale;
+
+        queue = new ArrayBlockingQueue<>(capacity);
+        free = new ArrayBlockingQueue<>(capacity);
+
+        for (int i = 0; i < capacity; ++i){
+            free.add(new Snapshot());
+        }
+
+        thread = new Thread(this::encode, "potato8-export");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts exporting every frame to its own PNG file, named prefix_000000.png and up.
+     *
+     * @param directory the directory to write to, created if missing.
+     * @param prefix the start of every file name.
+     * @param scale the image pixels per display pixel, per high resolution pixel for a display that can switch to it.
+     * @return the running exporter.
+     * @throws IOException if the directory cannot be created.
+     */
+    public static FrameExporter pngSequence(Path directory, String prefix, int scale) throws IOException {
+        Files.createDirectories(directory);
+        return new FrameExporter(new PngSequence(directory, prefix), scale, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts exporting every frame to one looping animated GIF.
+     *
+     * @param file the GIF file, replaced if it exists.
+     * @param scale the image pixels per display pixel, per high resolution pixel for a display that can switch to it.
+     * @param frameRate the frames per second to play back at, GIF delays are rounded to hundredths of a second
+     *                  and the rounding error is carried over so the average rate is kept.
+     * @return the running exporter.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static FrameExporter gif(Path file, int scale, int frameRate) throws IOException {
+        return new FrameExporter(new Gif(file, frameRate), scale, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Queues a snapshot of the frame buffer, never blocks. Must only be called from one thread at a time.
+     *
+     * @param frameBuffer the frame buffer to copy.
+     * @return true if the frame was queued, false if it was dropped.
+     */
+    public boolean submit(FrameBuffer frameBuffer){
+        Snapshot snapshot = finished || error != null ? null : free.poll();
+
+        if (snapshot == null){
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        snapshot.copy(frameBuffer);
+        queue.add(snapshot);
+
+        return true;
+    }
+
+    /**
+     * Queues a snapshot of the frame buffer, waiting for room if the encoder is behind. For offline exports that
+     * must not lose frames, never call it from a thread that has to keep time.
+     *
+     * @param frameBuffer the frame buffer to copy.
+     * @return true if the frame was queued, false if the exporter finished, failed or the thread was interrupted.
+     */
+    public boolean submitBlocking(FrameBuffer frameBuffer){
+        try {
+            while (!finished && error == null){
+                Snapshot snapshot = free.poll(50, TimeUnit.MILLISECONDS);
+
+                if (snapshot != null){
+                    snapshot.copy(frameBuffer);
+                    queue.add(snapshot);
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Stops accepting frames, the queued frames are still written and the file finished in the background. Never
+     * blocks.
+     */
+    public void finish(){
+        finished = true;
+    }
+
+    /**
+     * Stops accepting frames and waits for the queued frames to be written.
+     *
+     * @throws IOException if a frame could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (error != null){
+            throw error;
+        }
+    }
+
+    /**
+     * Returns the number of frames written so far.
+     *
+     * @return the written frame count.
+     */
+    public long getWritten(){
+        return written;
+    }
+
+    /**
+     * Returns the number of frames dropped because the queue was full, the exporter finished or writing failed.
+     *
+     * @return the dropped frame count.
+     */
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Returns the first error writing a frame.
+     *
+     * @return the error, or null.
+     */
+    public IOException getError(){
+        return error;
+    }
+
+    /**
+     * The encoder thread loop, writes queued snapshots until finished and drained.
+     */
+    private void encode(){
+        try {
+            while (true){
+                Snapshot snapshot = queue.poll(50, TimeUnit.MILLISECONDS);
+
+                if (snapshot == null){
+                    if (finished && queue.isEmpty()){
+                        break;
+                    }
+
+                    continue;
+                }
+
+                write(snapshot);
+                free.add(snapshot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            encoder.finish();
+        } catch (IOException e) {
+            if (error == null){
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Writes one snapshot, or drops it once writing has failed.
+     */
+    private void write(Snapshot snapshot){
+        if (error != null){
+            dropped.incrementAndGet();
+            return;
+        }
+
+        try {
+            draw(snapshot);
+            encoder.write(image);
+            written++;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Scales a snapshot into the image, each image row expanded once per display row it samples then copied to the
+     * image rows that sample the same display row.
+     */
+    private void draw(Snapshot snapshot){
+        int bits = snapshot.planes == 1 ? 1 : 2;
+        int imageWidth = (snapshot.highResolutionSupported ? FrameBuffer.HIGH_WIDTH : FrameBuffer.WIDTH) * scale;
+
+        if (image == null || image.getWidth() != imageWidth || image.getColorModel().getPixelSize() != bits){
+            image = createImage(bits, snapshot.highResolutionSupported);
+            columns = null;
+        }
+
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        int width = image.getWidth(), height = image.getHeight();
+        int stride = (width * bits + 7) / 8;
+
+        if (columns == null || sampledWidth != snapshot.width){
+            columns = new int[width];
+            sampledWidth = snapshot.width;
+
+            for (int i = 0; i < width; ++i){
+                columns[i] = i * snapshot.width / width;
+            }
+        }
+
+        for (int line = 0; line < height; ++line){
+            int y = line * snapshot.height / height;
+            int offset = line * stride;
+
+            if (line > 0 && y == (line - 1) * snapshot.height / height){
+                System.arraycopy(data, offset - stride, data, offset, stride);
+                continue;
+            }
+
+            Arrays.fill(data, offset, offset + stride, (byte)0);
+
+            for (int index = y * snapshot.words; index < (y + 1) * snapshot.words; ++index){
+                KERNELS.expand(snapshot.rows, snapshot.planes, index, 0, Long.SIZE, VALUES, values,
+                        (index - y * snapshot.words) * Long.SIZE);
+            }
+
+            for (int i = 0; i < width; ++i){
+                int value = values[columns[i]];
+
+                if (value != 0){
+                    int bit = i * bits;
+                    data[offset + (bit >>> 3)] |= value << (8 - bits - (bit & 7));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the image for a display, with one palette entry per pixel value, sized for its highest resolution.
+     */
+    private BufferedImage createImage(int bits, boolean highResolution){
+        int colors = 1 << bits;
+        byte[] red = new byte[colors], green = new byte[colors], blue = new byte[colors];
+
+        for (int value = 0; value < colors; ++value){
+            int color = FrameBuffer.getColor(value);
+
+            red[value] = (byte)(color >>> 16);
+            green[value] = (byte)(color >>> 8);
+            blue[value] = (byte)color;
+        }
+
+        int width = highResolution ? FrameBuffer.HIGH_WIDTH : FrameBuffer.WIDTH;
+        int height = highResolution ? FrameBuffer.HIGH_HEIGHT : FrameBuffer.HEIGHT;
+
+        return new BufferedImage(width * scale, height * scale, BufferedImage.TYPE_BYTE_BINARY,
+                new IndexColorModel(bits, colors, red, green, blue));
+    }
+
+    /**
+     * A copy of the packed rows of every plane and the resolution they are at.
+     */
+    private static final class Snapshot {
+        private final long[][] rows = new long[FrameBuffer.MAX_PLANES][FrameBuffer.HIGH_HEIGHT * 2];
+        private int width, height, words, planes;
+        private boolean highResolutionSupported;
+
+        void copy(FrameBuffer frameBuffer){
+            highResolutionSupported = frameBuffer.isHighResolutionSupported();
+            width = frameBuffer.getWidth();
+            height = frameBuffer.getHeight();
+            words = frameBuffer.getWordsPerRow();
+            planes = frameBuffer.getPlaneCount();
+
+            for (int p = 0; p < planes; ++p){
+                System.arraycopy(frameBuffer.getPlane(p), 0, rows[p], 0, height * words);
+            }
+        }
+    }
+
+    /**
+     * Writes images one after another, only called from the encoder thread.
+     */
+    private interface Encoder {
+        void write(BufferedImage image) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    /**
+     * Writes every image to its own numbered PNG file.
+     */
+    private static class PngSequence implements Encoder {
+        private final Path directory;
+        private final String prefix;
+        private int index;
+
+        PngSequence(Path directory, String prefix){
+            this.directory = directory;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void write(BufferedImage image) throws IOException {
+            Path file = directory.resolve(String.format("%s_%06d.png", prefix, index++));
+
+            if (!ImageIO.write(image, "png", file.toFile())){
+                throw new IOException("No PNG writer available");
+            }
+        }
+
+        @Override
+        public void finish(){
+            // Every file is complete once written.
+        }
+    }
+
+    /**
+     * Writes every image as a frame of one looping animated GIF.
+     */
+    private static class Gif implements Encoder {
+        private final ImageOutputStream output;
+        private final ImageWriter writer;
+        private final int frameRate;
+
+        /**
+         * The hundredths of a second owed to the frames written so far, times the frame rate.
+         */
+        private long owed;
+
+        private boolean first = true;
+
+        Gif(Path file, int frameRate) throws IOException {
+            if (frameRate < 1){
+                throw new IllegalArgumentException("Frame rate must be at least 1");
+            }
+
+            Files.deleteIfExists(file);
+
+            this.frameRate = frameRate;
+            output = ImageIO.createImageOutputStream(file.toFile());
+
+            if (output == null){
+                throw new IOException("Cannot open " + file);
+            }
+
+            writer = ImageIO.getImageWritersByFormatName("gif").next();
+            writer.setOutput(output);
+            writer.prepareWriteSequence(null);
+        }
+
+        @Override
+        public void write(BufferedImage image) throws IOException {
+            owed += 100;
+            int delay = (int)(owed / frameRate);
+            owed -= (long)delay * frameRate;
+
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image),
+                    null);
+            setFrameMetadata(metadata, delay);
+
+            writer.writeToSequence(new IIOImage(image, null, metadata), null);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.endWriteSequence();
+            writer.dispose();
+            output.close();
+        }
+
+        /**
+         * Sets the delay of a frame, and on the first frame the extension that makes the animation loop forever.
+         */
+        private void setFrameMetadata(IIOMetadata metadata, int delay) throws IIOInvalidTreeException {
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode)metadata.getAsTree(format);
+
+            IIOMetadataNode control = child(root, "GraphicControlExtension");
+            control.setAttribute("disposalMethod", "none");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("delayTime", Integer.toString(delay));
+            control.setAttribute("transparentColorIndex", "0");
+
+            if (first){
+                first = false;
+
+                IIOMetadataNode extension = new IIOMetadataNode("ApplicationExtension");
+                extension.setAttribute("applicationID", "NETSCAPE");
+                extension.setAttribute("authenticationCode", "2.0");
+                extension.setUserObject(new byte[]{1, 0, 0});
+
+                child(root, "ApplicationExtensions").appendChild(extension);
+            }
+
+            metadata.setFromTree(format, root);
+        }
+
+        private static IIOMetadataNode child(IIOMetadataNode parent, String name){
+            for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()){
+                if (node.getNodeName().equals(name)){
+                    return (IIOMetadataNode)node;
+                }
+            }
+
+            IIOMetadataNode node = new IIOMetadataNode(name);
+            parent.appendChild(node);
+            return node;
+        }
+    }
+}
@@ -0,0 +1,768 @@
+package com.gregei.potato8.core.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The bit packed chip-8 display.
+ *
+ * Every bitplane holds its rows back to back, one long per 64 pixels with the leftmost pixel in the most significant
+ * bit: one long per row at the 64x32 low resolution and two at the 128x64 high resolution of the extended modes.
+ * Sprites are XOR'd in with one or two word operations per row, clears are fills and scrolls are array copies or
+ * word shifts, so no display operation touches single pixels. Whole sprites, clears and sideways scrolls run on the
+ * {@link FrameKernels}. The value of a pixel combines one bit from every
+ * plane, plane 0 in bit 0.
+ *
+ * Every change is numbered: the version goes up by one each time a sprite, clear or scroll changes pixels, and the
+ * rows and columns it touched are kept for the last {@link #HISTORY_SIZE} versions. A consumer remembers the version
+ * it last showed and asks for the region dirtied since, as a mask of rows and a mask of columns whose set bits bound
+ * it.
+ */
+public class FrameBuffer {
+    /**
+     * The width and height of the display in pixels at low resolution, the only resolution of chip-8.
+     */
+    public static final int WIDTH = 64, HEIGHT = 32;
+
+    /**
+     * The width and height of the display in pixels at high resolution.
+     */
+    public static final int HIGH_WIDTH = 128, HIGH_HEIGHT = 64;
+
+    /**
+     * The most bitplanes a display can have.
+     */
+    public static final int MAX_PLANES = 4;
+
+    /**
+     * The size of the display section of a chip-8 save state, one long per row.
+     */
+    public static final int STATE_SIZE = HEIGHT * Long.BYTES;
+
+    /**
+     * The number of versions whose dirty region is kept, older versions report the whole display as dirty.
+     */
+    public static final int HISTORY_SIZE = 256;
+
+    /**
+     * The dirty row mask of the whole display, bit y set for row y.
+     */
+    public static final long ALL_ROWS = -1L;
+
+    /**
+     * The dirty column mask of the whole display, laid out like a row.
+     */
+    public static final long ALL_COLUMNS = -1L;
+
+    /**
+     * The RGB color of every pixel value: black and white for plane 0 alone, and two more for the second plane.
+     */
+    private static final int[] PALETTE = {0x000000, 0xFFFFFF, 0xFF6600, 0x662200};
+
+    /**
+     * The identity palette, expands pixels to their values.
+     */
+    private static final int[] VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+
+    private static final FrameKernels KERNELS = FrameKernels.get();
+
+    /**
+     * The packed rows of every plane, each array sized for the highest supported resolution.
+     */
+    private final long[][] planes;
+
+    /**
+     * True if the display can switch to high resolution.
+     */
+    private final boolean highResolutionSupported;
+
+    /**
+     * The current resolution and the number of longs per row.
+     */
+    private int width = WIDTH, height = HEIGHT, words = 1;
+
+    /**
+     * The planes drawn, cleared and scrolled, bit p set for plane p.
+     */
+    private int selectedPlanes = 1;
+
+    /**
+     * The rows and columns dirtied by each of the last versions, indexed by version modulo the history size. Every
+     * version keeps two column words, the right one only used at high resolution.
+     */
+    private final long[] historyRows = new long[HISTORY_SIZE];
+    private final long[] historyColumns = new long[HISTORY_SIZE * 2];
+
+    /**
+     * The rows and columns changed since the last commit.
+     */
+    private long pendingRows;
+    private long pendingLeftColumns, pendingRightColumns;
+
+    /**
+     * The columns a clear found set pixels in, one entry per word.
+     */
+    private final long[] clearedColumns = new long[2];
+
+    /**
+     * The rows of a sprite shifted into place, laid out like the rows it covers.
+     */
+    private final long[] sprite;
+
+    /**
+     * The number of committed changes.
+     */
+    private long version;
+
+    /**
+     * Creates the one plane, low resolution display of chip-8.
+     */
+    public FrameBuffer(){
+        this(1, false);
+    }
+
+    /**
+     * Creates a display.
+     *
+     * @param planeCount the number of bitplanes, 1 to {@link #MAX_PLANES}.
+     * @param highResolution true if the display can switch to high resolution.
+     */
+    public FrameBuffer(int planeCount, boolean highResolution){
+        if (planeCount < 1 || planeCount > MAX_PLANES){
+            throw new IllegalArgumentException("Plane count must be from 1 to " + MAX_PLANES);
+        }
+
+        int capacity = highResolution ? HIGH_HEIGHT * 2 : HEIGHT;
+
+        planes = new long[planeCount][capacity];
+        sprite = new long[capacity];
+        highResolutionSupported = highResolution;
+    }
+
+    /**
+     * Clears every pixel of the selected planes and commits the change.
+     *
+     * @return true if any pixel was set.
+     */
+    public boolean clear(){
+        for (int p = 0; p < planes.length; ++p){
+            if ((selectedPlanes & (1 << p)) != 0){
+                clearPlane(planes[p]);
+            }
+        }
+
+        return commit();
+    }
+
+    /**
+     * Returns to low resolution with only plane 0 selected and clears every plane.
+     *
+     * @return true if the display changed.
+     */
+    public boolean reset(){
+        selectedPlanes = 1;
+
+        if (width != WIDTH){
+            return setHighResolution(false);
+        }
+
+        for (long[] plane : planes){
+            clearPlane(plane);
+        }
+
+        return commit();
+    }
+
+    /**
+     * Zeroes a plane, marking the rows and columns that held set pixels.
+     */
+    private void clearPlane(long[] plane){
+        clearedColumns[0] = 0;
+        clearedColumns[1] = 0;
+
+        pendingRows |= KERNELS.clear(plane, height, words, clearedColumns);
+        pendingLeftColumns |= clearedColumns[0];
+        pendingRightColumns |= clearedColumns[1];
+    }
+
+    /**
+     * Switches between the 64x32 and 128x64 resolutions, clearing every plane. The change is committed even if the
+     * display was blank, so consumers see the resolution change.
+     *
+     * @param highResolution true for 128x64, false for 64x32.
+     * @return true if the resolution or any pixel changed.
+     */
+    public boolean setHighResolution(boolean highResolution){
+        if (highResolution && !highResolutionSupported){
+            throw new IllegalStateException("The display does not support high resolution");
+        }
+
+        int newWidth = highResolution ? HIGH_WIDTH : WIDTH;
+
+        if (newWidth == width){
+            return clearAll();
+        }
+
+        for (long[] plane : planes){
+            Arrays.fill(plane, 0L);
+        }
+
+        width = newWidth;
+        height = highResolution ? HIGH_HEIGHT : HEIGHT;
+        words = width / Long.SIZE;
+
+        markAll();
+        return commit();
+    }
+
+    private boolean clearAll(){
+        int selected = selectedPlanes;
+
+        selectedPlanes = (1 << planes.length) - 1;
+        boolean changed = clear();
+        selectedPlanes = selected;
+
+        return changed;
+    }
+
+    /**
+     * Selects the planes drawn, cleared and scrolled.
+     *
+     * @param mask bit p set to select plane p, bits of planes the display does not have are ignored.
+     */
+    public void selectPlanes(int mask){
+        selectedPlanes = mask & ((1 << planes.length) - 1);
+    }
+
+    /**
+     * XORs one 8 pixel sprite row onto plane 0. Pixels past the right or bottom edge are clipped. Changed pixels
+     * are pending until {@link #commit()}.
+     *
+     * @param x the x coordinate of the leftmost sprite pixel.
+     * @param y the row to draw on.
+     * @param data the sprite byte, the most significant bit is the leftmost pixel.
+     * @return true if a set pixel was erased.
+     */
+    public boolean xorRow(int x, int y, int data){
+        return xorRow(0, x, y, (long)(data & 0xFF) << 56);
+    }
+
+    /**
+     * XORs up to 64 sprite pixels onto one row of a plane, as one word operation or two when the sprite straddles
+     * a word boundary. Pixels past the right or bottom edge are clipped. Changed pixels are pending until
+     * {@link #commit()}.
+     *
+     * @param plane the plane to draw on.
+     * @param x the x coordinate of the leftmost sprite pixel.
+     * @param y the row to draw on.
+     * @param pattern the sprite pixels, the most significant bit is the leftmost pixel.
+     * @return true if a set pixel was erased.
+     */
+    public boolean xorRow(int plane, int x, int y, long pattern){
+        if (x >= width || y >= height){
+            return false;
+        }
+
+        long[] rows = planes[plane];
+        int word = x >>> 6;
+        int index = y * words + word;
+        int shift = x & 63;
+
+        long bits = pattern >>> shift;
+        long row = rows[index];
+        rows[index] = row ^ bits;
+
+        boolean erased = (row & bits) != 0;
+        long spill = 0;
+
+        if (shift != 0 && word + 1 < words){
+            spill = pattern << (Long.SIZE - shift);
+
+            long next = rows[index + 1];
+            rows[index + 1] = next ^ spill;
+            erased |= (next & spill) != 0;
+        }
+
+        // Any set sprite bit flips a pixel, an empty sprite row changes nothing.
+        if ((bits | spill) != 0){
+            pendingRows |= 1L << y;
+            markColumns(word, bits);
+            pendingRightColumns |= spill;
+        }
+
+        return erased;
+    }
+
+    /**
+     * XORs a sprite up to 64 pixels wide onto consecutive rows of a plane. Its rows are shifted into place in a
+     * scratch area laid out like the rows they cover, which is XOR'd in with one kernel call. Pixels past the right
+     * or bottom edge are clipped. Changed pixels are pending until {@link #commit()}.
+     *
+     * @param plane the plane to draw on.
+     * @param x the x coordinate of the leftmost sprite pixel.
+     * @param y the row to draw the first sprite row on.
+     * @param patterns the sprite rows, the most significant bit is the leftmost pixel.
+     * @param count the number of sprite rows.
+     * @return true if a set pixel was erased.
+     */
+    public boolean xorRows(int plane, int x, int y, long[] patterns, int count){
+        if (x >= width || y >= height){
+            return false;
+        }
+
+        int lines = Math.min(count, height - y);
+        int word = x >>> 6;
+        int shift = x & 63;
+        boolean spills = shift != 0 && word + 1 < words;
+        long rows = 0, columns = 0, spilled = 0;
+
+        for (int line = 0; line < lines; ++line){
+            long bits = patterns[line] >>> shift;
+            long spill = spills ? patterns[line] << (Long.SIZE - shift) : 0;
+            int index = line * words;
+
+            if (words == 2){
+                sprite[index + word] = bits;
+                sprite[index + 1 - word] = spill;
+            }
+            else{
+                sprite[index] = bits;
+            }
+
+            // Any set sprite bit flips a pixel, an empty sprite row changes nothing.
+            rows |= (bits | spill) == 0 ? 0 : 1L << (y + line);
+            columns |= bits;
+            spilled |= spill;
+        }
+
+        boolean erased = KERNELS.xor(planes[plane], y * words, sprite, 0, lines * words);
+
+        pendingRows |= rows;
+        markColumns(word, columns);
+        pendingRightColumns |= spilled;
+        return erased;
+    }
+
+    /**
+     * Scrolls the selected planes down, rows scrolled in are blank.
+     *
+     * @param rows the number of rows to scroll by.
+     * @return true if the display changed.
+     */
+    public boolean scrollDown(int rows){
+        rows = Math.min(rows, height);
+
+        for (int p = 0; p < planes.length; ++p){
+            if ((selectedPlanes & (1 << p)) != 0){
+                long[] plane = planes[p];
+
+                System.arraycopy(plane, 0, plane, rows * words, (height - rows) * words);
+                Arrays.fill(plane, 0, rows * words, 0L);
+            }
+        }
+
+        return scrolled(rows);
+    }
+
+    /**
+     * Scrolls the selected planes up, rows scrolled in are blank.
+     *
+     * @param rows the number of rows to scroll by.
+     * @return true if the display changed.
+     */
+    public boolean scrollUp(int rows){
+        rows = Math.min(rows, height);
+
+        for (int p = 0; p < planes.length; ++p){
+            if ((selectedPlanes & (1 << p)) != 0){
+                long[] plane = planes[p];
+
+                System.arraycopy(plane, rows * words, plane, 0, (height - rows) * words);
+                Arrays.fill(plane, (height - rows) * words, height * words, 0L);
+            }
+        }
+
+        return scrolled(rows);
+    }
+
+    /**
+     * Scrolls the selected planes right, columns scrolled in are blank.
+     *
+     * @param columns the number of columns to scroll by, from 0 to 63.
+     * @return true if the display changed.
+     */
+    public boolean scrollRight(int columns){
+        for (int p = 0; p < planes.length; ++p){
+            if ((selectedPlanes & (1 << p)) != 0){
+                KERNELS.shiftRight(planes[p], height, words, columns);
+            }
+        }
+
+        return scrolled(columns);
+    }
+
+    /**
+     * Scrolls the selected planes left, columns scrolled in are blank.
+     *
+     * @param columns the number of columns to scroll by, from 0 to 63.
+     * @return true if the display changed.
+     */
+    public boolean scrollLeft(int columns){
+        for (int p = 0; p < planes.length; ++p){
+            if ((selectedPlanes & (1 << p)) != 0){
+                KERNELS.shiftLeft(planes[p], height, words, columns);
+            }
+        }
+
+        return scrolled(columns);
+    }
+
+    /**
+     * Marks the whole display dirty after a scroll of the selected planes and commits it.
+     */
+    private boolean scrolled(int distance){
+        if (distance == 0 || selectedPlanes == 0){
+            return false;
+        }
+
+        markAll();
+        return commit();
+    }
+
+    private void markAll(){
+        pendingRows |= height == Long.SIZE ? ALL_ROWS : (1L << height) - 1;
+        pendingLeftColumns = ALL_COLUMNS;
+        pendingRightColumns = words == 2 ? ALL_COLUMNS : 0;
+    }
+
+    private void markColumns(int word, long bits){
+        if (word == 0){
+            pendingLeftColumns |= bits;
+        }
+        else{
+            pendingRightColumns |= bits;
+        }
+    }
+
+    /**
+     * Ends a change: if any pixel changed since the last commit the version goes up and the dirtied region is kept.
+     *
+     * @return true if the display changed.
+     */
+    public boolean commit(){
+        if (pendingRows == 0){
+            return false;
+        }
+
+        int slot = (int)(++version & (HISTORY_SIZE - 1));
+        historyRows[slot] = pendingRows;
+        historyColumns[slot * 2] = pendingLeftColumns;
+        historyColumns[slot * 2 + 1] = pendingRightColumns;
+
+        pendingRows = 0;
+        pendingLeftColumns = 0;
+        pendingRightColumns = 0;
+        return true;
+    }
+
+    /**
+     * Returns the number of committed changes, it only ever goes up.
+     *
+     * @return the version of the display.
+     */
+    public long getVersion(){
+        return version;
+    }
+
+    /**
+     * Returns the rows changed after a version.
+     *
+     * @param since the version last seen, {@link Long#MIN_VALUE} for none.
+     * @return the dirty rows, bit y set for row y, or {@link #ALL_ROWS} if the version is too old to tell.
+     */
+    public long getDirtyRows(long since){
+        if (since < version - HISTORY_SIZE){
+            return ALL_ROWS;
+        }
+
+        long dirty = 0;
+
+        for (long v = since + 1; v <= version; ++v){
+            dirty |= historyRows[(int)(v & (HISTORY_SIZE - 1))];
+        }
+
+        return dirty;
+    }
+
+    /**
+     * Returns the columns of the left 64 pixels changed after a version, in any row.
+     *
+     * @param since the version last seen, {@link Long#MIN_VALUE} for none.
+     * @return the dirty columns laid out like a row, or {@link #ALL_COLUMNS} if the version is too old to tell.
+     */
+    public long getDirtyColumns(long since){
+        return getDirtyColumns(since, 0);
+    }
+
+    /**
+     * Returns the columns of one word of a row changed after a version, in any row.
+     *
+     * @param since the version last seen, {@link Long#MIN_VALUE} for none.
+     * @param word 0 for the left 64 pixels, 1 for the right 64 at high resolution.
+     * @return the dirty columns laid out like the word, or {@link #ALL_COLUMNS} if the version is too old to tell.
+     */
+    public long getDirtyColumns(long since, int word){
+        if (since < version - HISTORY_SIZE){
+            return ALL_COLUMNS;
+        }
+
+        long dirty = 0;
+
+        for (long v = since + 1; v <= version; ++v){
+            dirty |= historyColumns[(int)(v & (HISTORY_SIZE - 1)) * 2 + word];
+        }
+
+        return dirty;
+    }
+
+    /**
+     * Returns a pixel of plane 0.
+     *
+     * @param x the x coordinate of the pixel.
+     * @param y the y coordinate of the pixel.
+     * @return 1 if the pixel is set, otherwise 0.
+     */
+    public int getPixel(int x, int y){
+        return (int)(planes[0][y * words + (x >>> 6)] >>> (63 - (x & 63))) & 1;
+    }
+
+    /**
+     * Returns the value of a pixel across every plane.
+     *
+     * @param x the x coordinate of the pixel.
+     * @param y the y coordinate of the pixel.
+     * @return the pixel value, bit p set if the pixel is set in plane p.
+     */
+    public int getPixelValue(int x, int y){
+        int index = y * words + (x >>> 6);
+        int shift = 63 - (x & 63);
+        int value = 0;
+
+        for (int p = 0; p < planes.length; ++p){
+            value |= ((int)(planes[p][index] >>> shift) & 1) << p;
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the RGB color a pixel value is shown in.
+     *
+     * @param value the pixel value, see {@link #getPixelValue}.
+     * @return the color, black for 0 and white for 1.
+     */
+    public static int getColor(int value){
+        return PALETTE[value & (PALETTE.length - 1)];
+    }
+
+    /**
+     * Returns the first packed word of a plane 0 row, the whole row at low resolution.
+     *
+     * @param y the row to return.
+     * @return the row, the leftmost pixel in the most significant bit.
+     */
+    public long getRow(int y){
+        return planes[0][y * words];
+    }
+
+    /**
+     * Returns the packed rows backing plane 0, writes to the array are visible to the emulator.
+     *
+     * @return the array holding {@link #getWordsPerRow()} longs per row.
+     */
+    public long[] getRows(){
+        return planes[0];
+    }
+
+    /**
+     * Returns the packed rows backing a plane, writes to the array are visible to the emulator.
+     *
+     * @param plane the plane to return.
+     * @return the array holding {@link #getWordsPerRow()} longs per row.
+     */
+    public long[] getPlane(int plane){
+        return planes[plane];
+    }
+
+    /**
+     * Returns the packed rows backing every plane, writes to the arrays are visible to the emulator.
+     *
+     * @return one array per plane, each holding {@link #getWordsPerRow()} longs per row.
+     */
+    public long[][] getPlanes(){
+        return planes;
+    }
+
+    /**
+     * Returns the number of bitplanes.
+     *
+     * @return the plane count.
+     */
+    public int getPlaneCount(){
+        return planes.length;
+    }
+
+    /**
+     * Returns the planes drawn, cleared and scrolled.
+     *
+     * @return the selected planes, bit p set for plane p.
+     */
+    public int getSelectedPlanes(){
+        return selectedPlanes;
+    }
+
+    /**
+     * Returns the current width.
+     *
+     * @return the width in pixels.
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * Returns the current height.
+     *
+     * @return the height in pixels.
+     */
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * Returns the number of longs packing each row.
+     *
+     * @return 1 at low resolution, 2 at high resolution.
+     */
+    public int getWordsPerRow(){
+        return words;
+    }
+
+    /**
+     * Returns true if the display can switch to the 128x64 resolution.
+     *
+     * @return true for the displays of the extended modes.
+     */
+    public boolean isHighResolutionSupported(){
+        return highResolutionSupported;
+    }
+
+    /**
+     * Returns true if the display is at the 128x64 resolution.
+     *
+     * @return true at high resolution.
+     */
+    public boolean isHighResolution(){
+        return width == HIGH_WIDTH;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the display contents, used to compare final frames between runs.
+     *
+     * @return the hash of every row of every plane.
+     */
+    public long hash(){
+        long hash = 0xCBF29CE484222325L;
+
+        for (long[] plane : planes){
+            for (int i = 0; i < height * words; ++i){
+                hash = (hash ^ plane[i]) * 0x100000001B3L;
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Expands the display into one int per pixel, row by row, each the pixel value: 1 for a set pixel and 0 for a
+     * clear one on a one plane display.
+     *
+     * @param pixels the array to expand into, must hold at least width * height ints.
+     * @return the passed array.
+     */
+    public int[] toPixels(int[] pixels){
+        for (int index = 0; index < height * words; ++index){
+            KERNELS.expand(planes, planes.length, index, 0, Long.SIZE, VALUES, pixels, index * Long.SIZE);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Returns the size of the display section of a save state.
+     *
+     * @param planeCount the number of bitplanes.
+     * @param highResolution true if the display can switch to high resolution.
+     * @return the section size in bytes.
+     */
+    public static int stateSize(int planeCount, boolean highResolution){
+        if (!highResolution){
+            return planeCount * STATE_SIZE;
+        }
+
+        return 2 + planeCount * HIGH_HEIGHT * 2 * Long.BYTES;
+    }
+
+    /**
+     * Returns the size of the display section of a save state.
+     *
+     * @return the section size in bytes.
+     */
+    public int getStateSize(){
+        return stateSize(planes.length, highResolutionSupported);
+    }
+
+    /**
+     * Writes the packed rows to a save state. Displays that can switch resolution first write the resolution and
+     * the selected planes, then every plane at high resolution size.
+     *
+     * @param buffer the buffer to write {@link #getStateSize()} bytes to.
+     */
+    public void saveState(ByteBuffer buffer){
+        if (highResolutionSupported){
+            buffer.put((byte)(isHighResolution() ? 1 : 0));
+            buffer.put((byte)selectedPlanes);
+        }
+
+        for (long[] plane : planes){
+            buffer.asLongBuffer().put(plane);
+            buffer.position(buffer.position() + plane.length * Long.BYTES);
+        }
+    }
+
+    /**
+     * Reads the packed rows from a save state, committed as a change of the whole display.
+     *
+     * @param buffer the buffer to read {@link #getStateSize()} bytes from.
+     */
+    public void loadState(ByteBuffer buffer){
+        if (highResolutionSupported){
+            boolean highResolution = buffer.get() != 0;
+
+            width = highResolution ? HIGH_WIDTH : WIDTH;
+            height = highResolution ? HIGH_HEIGHT : HEIGHT;
+            words = width / Long.SIZE;
+            selectPlanes(buffer.get());
+        }
+
+        for (long[] plane : planes){
+            buffer.asLongBuffer().get(plane);
+            buffer.position(buffer.position() + plane.length * Long.BYTES);
+        }
+
+        pendingRows = ALL_ROWS;
+        pendingLeftColumns = ALL_COLUMNS;
+        pendingRightColumns = ALL_COLUMNS;
+        commit();
+    }
+}
@@ -0,0 +1,120 @@
+package com.gregei.potato8.core.graphics;
+
+/**
+ * The bulk operations on packed display rows: clearing, XOR composing, scrolling sideways and expanding pixels to
+ * colors.
+ *
+ * Rows are laid out as in {@link FrameBuffer}, one or two longs per row with the leftmost pixel in the most
+ * significant bit. {@link #get()} returns kernels built on the incubating vector API when the
+ * jdk.incubator.vector module is loaded, started with --add-modules jdk.incubator.vector, and plain scalar kernels
+ * otherwise. Both give the same results.
+ */
+public abstract class FrameKernels {
+    /**
+     * The name of the class holding the vector kernels, loaded by name so this class links without the module.
+     */
+    private static final String VECTOR_KERNELS = FrameKernels.class.getPackageName() + ".VectorFrameKernels";
+
+    private static final FrameKernels SCALAR = new ScalarFrameKernels();
+
+    private static final FrameKernels BEST = create();
+
+    private static FrameKernels create(){
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()){
+            return SCALAR;
+        }
+
+        try {
+            return (FrameKernels)Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // The vector shapes of this cpu are too small to help, the scalar kernels are used.
+            return SCALAR;
+        }
+    }
+
+    /**
+     * Returns the fastest kernels available.
+     *
+     * @return the vector kernels if the vector module is loaded, otherwise the scalar kernels.
+     */
+    public static FrameKernels get(){
+        return BEST;
+    }
+
+    /**
+     * Returns the scalar kernels, available on every runtime.
+     *
+     * @return the scalar kernels.
+     */
+    public static FrameKernels scalar(){
+        return SCALAR;
+    }
+
+    /**
+     * Returns a short description of the implementation.
+     *
+     * @return "scalar", or "vector" and the vector size.
+     */
+    public abstract String getName();
+
+    /**
+     * Zeroes the rows, reporting which rows and columns held set pixels.
+     *
+     * @param rows the packed rows.
+     * @param height the number of rows, at most 64.
+     * @param words the number of longs per row, 1 or 2.
+     * @param columns the set bits of every word of every row are OR'd into the entry of the word.
+     * @return the rows that held set pixels, bit y set for row y.
+     */
+    public abstract long clear(long[] rows, int height, int words, long[] columns);
+
+    /**
+     * XORs a run of source words onto the target.
+     *
+     * @param target the words composed onto.
+     * @param targetOffset the index of the first target word.
+     * @param source the words composed.
+     * @param sourceOffset the index of the first source word.
+     * @param length the number of words.
+     * @return true if a bit set in both was cleared.
+     */
+    public abstract boolean xor(long[] target, int targetOffset, long[] source, int sourceOffset, int length);
+
+    /**
+     * Shifts every row left, carrying bits from the right word of a row into the left one. Columns shifted in are
+     * blank.
+     *
+     * @param rows the packed rows.
+     * @param height the number of rows.
+     * @param words the number of longs per row, 1 or 2.
+     * @param columns the number of columns to shift by, from 0 to 63.
+     */
+    public abstract void shiftLeft(long[] rows, int height, int words, int columns);
+
+    /**
+     * Shifts every row right, carrying bits from the left word of a row into the right one. Columns shifted in are
+     * blank.
+     *
+     * @param rows the packed rows.
+     * @param height the number of rows.
+     * @param words the number of longs per row, 1 or 2.
+     * @param columns the number of columns to shift by, from 0 to 63.
+     */
+    public abstract void shiftRight(long[] rows, int height, int words, int columns);
+
+    /**
+     * Expands pixels of one word into colors. The value of a pixel combines the bit of every plane, plane 0 in bit
+     * 0, and indexes the palette.
+     *
+     * @param planes the packed rows of every plane.
+     * @param planeCount the number of planes to combine, from 1 to {@link FrameBuffer#MAX_PLANES}.
+     * @param index the index of the word in every plane.
+     * @param from the first pixel of the word to expand, from 0 to 63.
+     * @param to the pixel after the last one to expand, from 1 to 64.
+     * @param palette the color of every pixel value, at least 1 &lt;&lt; planeCount entries.
+     * @param pixels the array to expand into, pixel x of the word goes to pixels[offset + x].
+     * @param offset the index of pixel 0 of the word in the array.
+     */
+    public abstract void expand(long[][] planes, int planeCount, int index, int from, int to, int[] palette,
+                                int[] pixels, int offset);
+}
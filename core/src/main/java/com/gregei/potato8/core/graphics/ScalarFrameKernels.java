@@ -0,0 +1,104 @@
+package com.gregei.potato8.core.graphics;
+
+import java.util.Arrays;
+
+/**
+ * The frame kernels as plain word operations, without a branch per pixel.
+ */
+final class ScalarFrameKernels extends FrameKernels {
+    @Override
+    public String getName(){
+        return "scalar";
+    }
+
+    @Override
+    public long clear(long[] rows, int height, int words, long[] columns){
+        long dirty = 0;
+
+        for (int y = 0; y < height; ++y){
+            for (int w = 0; w < words; ++w){
+                long row = rows[y * words + w];
+
+                columns[w] |= row;
+                // The sign bit of row | -row is set for any non zero row.
+                dirty |= ((row | -row) >>> 63) << y;
+            }
+        }
+
+        Arrays.fill(rows, 0, height * words, 0L);
+        return dirty;
+    }
+
+    @Override
+    public boolean xor(long[] target, int targetOffset, long[] source, int sourceOffset, int length){
+        long erased = 0;
+
+        for (int i = 0; i < length; ++i){
+            long row = target[targetOffset + i];
+            long bits = source[sourceOffset + i];
+
+            erased |= row & bits;
+            target[targetOffset + i] = row ^ bits;
+        }
+
+        return erased != 0;
+    }
+
+    @Override
+    public void shiftLeft(long[] rows, int height, int words, int columns){
+        if (columns == 0){
+            return;
+        }
+
+        for (int index = 0; index < height * words; index += words){
+            if (words == 2){
+                rows[index] = rows[index] << columns | rows[index + 1] >>> -columns;
+                rows[index + 1] <<= columns;
+            }
+            else{
+                rows[index] <<= columns;
+            }
+        }
+    }
+
+    @Override
+    public void shiftRight(long[] rows, int height, int words, int columns){
+        if (columns == 0){
+            return;
+        }
+
+        for (int index = 0; index < height * words; index += words){
+            if (words == 2){
+                rows[index + 1] = rows[index + 1] >>> columns | rows[index] << -columns;
+            }
+
+            rows[index] >>>= columns;
+        }
+    }
+
+    @Override
+    public void expand(long[][] planes, int planeCount, int index, int from, int to, int[] palette, int[] pixels,
+                       int offset){
+        if (planeCount == 1){
+            long row = planes[0][index];
+            int off = palette[0], difference = palette[0] ^ palette[1];
+
+            for (int x = from; x < to; ++x){
+                // -1 for a set pixel and 0 for a clear one, selecting the difference to the clear color.
+                pixels[offset + x] = off ^ difference & -(int)(row >>> (63 - x) & 1);
+            }
+
+            return;
+        }
+
+        for (int x = from; x < to; ++x){
+            int value = 0;
+
+            for (int p = 0; p < planeCount; ++p){
+                value |= (int)(planes[p][index] >>> (63 - x) & 1) << p;
+            }
+
+            pixels[offset + x] = palette[value];
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.gregei.potato8.core.graphics;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The frame kernels on the preferred vector size of the cpu, only loaded by {@link FrameKernels#get()} when the
+ * jdk.incubator.vector module is present. Words that do not fill a whole vector go through the scalar kernels.
+ *
+ * Pixels are expanded a vector of lanes at a time: the bits of the pixels are broadcast to every lane and shifted
+ * left by the lane number, so the sign bit of each lane holds its pixel. At high resolution the two words of a row
+ * sit in neighbouring lanes, so scrolls carry bits between them with a shuffle that swaps every pair of lanes.
+ */
+final class VectorFrameKernels extends FrameKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+    /**
+     * The lanes holding the left word of a row at high resolution.
+     */
+    private static final VectorMask<Long> LEFT_WORDS = VectorMask.fromLong(LONGS, 0x5555555555555555L);
+
+    /**
+     * Swaps the two words of every row at high resolution.
+     */
+    private static final VectorShuffle<Long> SWAP_WORDS = VectorShuffle.fromOp(LONGS, lane -> lane ^ 1);
+
+    /**
+     * The lane numbers, the shift that moves the pixel of a lane into its sign bit.
+     */
+    private static final IntVector LANES = IntVector.zero(INTS).addIndex(1);
+
+    private final FrameKernels scalar = FrameKernels.scalar();
+
+    VectorFrameKernels(){
+        // Narrower vectors than a row pair or a palette of four colors gain nothing over the scalar kernels.
+        if (LONGS.length() < 2 || INTS.length() < 4){
+            throw new UnsupportedOperationException("Vectors of " + INTS.vectorBitSize() + " bits are too small");
+        }
+    }
+
+    @Override
+    public String getName(){
+        return "vector " + INTS.vectorBitSize() + " bit";
+    }
+
+    @Override
+    public long clear(long[] rows, int height, int words, long[] columns){
+        int length = height * words;
+        int end = LONGS.loopBound(length);
+        LongVector zero = LongVector.zero(LONGS);
+        LongVector set = zero;
+        long dirty = 0;
+
+        for (int i = 0; i < end; i += LONGS.length()){
+            LongVector row = LongVector.fromArray(LONGS, rows, i);
+            long lanes = row.compare(VectorOperators.NE, 0).toLong();
+
+            set = set.or(row);
+            dirty |= (words == 2 ? pairs(lanes) : lanes) << (i / words);
+            zero.intoArray(rows, i);
+        }
+
+        if (words == 2){
+            columns[0] |= set.reduceLanes(VectorOperators.OR, LEFT_WORDS);
+            columns[1] |= set.reduceLanes(VectorOperators.OR, LEFT_WORDS.not());
+        }
+        else{
+            columns[0] |= set.reduceLanes(VectorOperators.OR);
+        }
+
+        if (end < length){
+            // The rows before the loop bound read as zero now, so the scalar kernel only reports the rest.
+            long[] tail = new long[words];
+            long rest = scalar.clear(rows, height, words, tail);
+
+            dirty |= rest;
+
+            for (int w = 0; w < words; ++w){
+                columns[w] |= tail[w];
+            }
+        }
+
+        return dirty;
+    }
+
+    /**
+     * Combines the lane bits of the two words of every row into one bit per row.
+     */
+    private static long pairs(long lanes){
+        long x = (lanes | lanes >>> 1) & 0x5555555555555555L;
+
+        x = (x | x >>> 1) & 0x3333333333333333L;
+        x = (x | x >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | x >>> 4) & 0x00FF00FF00FF00FFL;
+        x = (x | x >>> 8) & 0x0000FFFF0000FFFFL;
+        return (x | x >>> 16) & 0x00000000FFFFFFFFL;
+    }
+
+    @Override
+    public boolean xor(long[] target, int targetOffset, long[] source, int sourceOffset, int length){
+        int end = LONGS.loopBound(length);
+        LongVector erased = LongVector.zero(LONGS);
+
+        for (int i = 0; i < end; i += LONGS.length()){
+            LongVector row = LongVector.fromArray(LONGS, target, targetOffset + i);
+            LongVector bits = LongVector.fromArray(LONGS, source, sourceOffset + i);
+
+            erased = erased.or(row.and(bits));
+            row.lanewise(VectorOperators.XOR, bits).intoArray(target, targetOffset + i);
+        }
+
+        boolean tail = scalar.xor(target, targetOffset + end, source, sourceOffset + end, length - end);
+        return tail || erased.reduceLanes(VectorOperators.OR) != 0;
+    }
+
+    @Override
+    public void shiftLeft(long[] rows, int height, int words, int columns){
+        if (columns == 0){
+            return;
+        }
+
+        int length = height * words;
+        int end = LONGS.loopBound(length);
+        LongVector zero = LongVector.zero(LONGS);
+
+        for (int i = 0; i < end; i += LONGS.length()){
+            LongVector row = LongVector.fromArray(LONGS, rows, i);
+            LongVector shifted = row.lanewise(VectorOperators.LSHL, columns);
+
+            if (words == 2){
+                // The right word of a row carries its leftmost bits into the left word.
+                LongVector carry = row.rearrange(SWAP_WORDS).lanewise(VectorOperators.LSHR, Long.SIZE - columns);
+                shifted = shifted.or(zero.blend(carry, LEFT_WORDS));
+            }
+
+            shifted.intoArray(rows, i);
+        }
+
+        shiftTail(rows, height, words, columns, end, true);
+    }
+
+    @Override
+    public void shiftRight(long[] rows, int height, int words, int columns){
+        if (columns == 0){
+            return;
+        }
+
+        int length = height * words;
+        int end = LONGS.loopBound(length);
+        LongVector zero = LongVector.zero(LONGS);
+
+        for (int i = 0; i < end; i += LONGS.length()){
+            LongVector row = LongVector.fromArray(LONGS, rows, i);
+            LongVector shifted = row.lanewise(VectorOperators.LSHR, columns);
+
+            if (words == 2){
+                // The left word of a row carries its rightmost bits into the right word.
+                LongVector carry = row.rearrange(SWAP_WORDS).lanewise(VectorOperators.LSHL, Long.SIZE - columns);
+                shifted = shifted.or(zero.blend(carry, LEFT_WORDS.not()));
+            }
+
+            shifted.intoArray(rows, i);
+        }
+
+        shiftTail(rows, height, words, columns, end, false);
+    }
+
+    /**
+     * Shifts the rows past the last whole vector with the scalar kernels.
+     */
+    private void shiftTail(long[] rows, int height, int words, int columns, int end, boolean left){
+        int first = end / words;
+
+        if (first == height){
+            return;
+        }
+
+        long[] tail = new long[(height - first) * words];
+        System.arraycopy(rows, end, tail, 0, tail.length);
+
+        if (left){
+            scalar.shiftLeft(tail, height - first, words, columns);
+        }
+        else{
+            scalar.shiftRight(tail, height - first, words, columns);
+        }
+
+        System.arraycopy(tail, 0, rows, end, tail.length);
+    }
+
+    @Override
+    public void expand(long[][] planes, int planeCount, int index, int from, int to, int[] palette, int[] pixels,
+                       int offset){
+        int lanes = INTS.length();
+        int colors = 1 << planeCount;
+
+        if (lanes > Integer.SIZE || colors > lanes){
+            scalar.expand(planes, planeCount, index, from, to, palette, pixels, offset);
+            return;
+        }
+
+        int x = from;
+
+        if (planeCount == 1){
+            long row = planes[0][index];
+            IntVector off = IntVector.broadcast(INTS, palette[0]);
+            IntVector on = IntVector.broadcast(INTS, palette[1]);
+
+            for (; x + lanes <= to; x += lanes){
+                // The top bits of the int are the pixels from x on.
+                int bits = (int)(row << x >>> 32);
+                VectorMask<Integer> set = IntVector.broadcast(INTS, bits).lanewise(VectorOperators.LSHL, LANES)
+                        .compare(VectorOperators.LT, 0);
+
+                off.blend(on, set).intoArray(pixels, offset + x);
+            }
+        }
+        else{
+            IntVector colorVector = IntVector.fromArray(INTS, palette, 0, INTS.indexInRange(0, colors));
+
+            for (; x + lanes <= to; x += lanes){
+                IntVector value = IntVector.zero(INTS);
+
+                for (int p = 0; p < planeCount; ++p){
+                    int bits = (int)(planes[p][index] << x >>> 32);
+                    IntVector bit = IntVector.broadcast(INTS, bits).lanewise(VectorOperators.LSHL, LANES)
+                            .lanewise(VectorOperators.LSHR, 31);
+
+                    value = value.or(bit.lanewise(VectorOperators.LSHL, p));
+                }
+
+                colorVector.rearrange(value.toShuffle()).intoArray(pixels, offset + x);
+            }
+        }
+
+        if (x < to){
+            scalar.expand(planes, planeCount, index, x, to, palette, pixels, offset);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.gregei.potato8.core.input;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.cpu.XorShiftRandom;
+import com.gregei.potato8.core.timing.FrameListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * A recording of every key transition of a run, stamped with the cycle it was applied at, together with everything
+ * else needed to repeat the run exactly: the rom hash, the random seed and the instructions per frame. The state hash
+ * at the end of the recording lets a replay check it reached the same state.
+ *
+ * A movie is recorded from a fresh reset by {@link #start}, with key events arriving through
+ * {@link Chip8#queueKey}. The instructions per frame must stay fixed while recording, timer ticks are replayed
+ * every that many cycles.
+ *
+ * The file is big endian: magic, version, seed, instructions per frame, rom hash, event count, then one long per
+ * event (cycle in the upper bits, pressed in bit 4, key in bits 0-3), then the end cycle and the final state hash.
+ */
+public class InputMovie {
+    /**
+     * Identifies a movie file, "P8MV".
+     */
+    public static final int MAGIC = 0x50384D56;
+
+    /**
+     * The file format version.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The seed of the random source.
+     */
+    private final long seed;
+
+    /**
+     * The number of cycles run per frame.
+     */
+    private final int instructionsPerFrame;
+
+    /**
+     * The FNV-1a hash of the rom the movie was recorded with.
+     */
+    private final long romHash;
+
+    /**
+     * The encoded key events in the order they were applied.
+     */
+    private long[] events = new long[256];
+
+    /**
+     * The number of events recorded.
+     */
+    private int eventCount;
+
+    /**
+     * The cycle count and state hash at the end of the recording.
+     */
+    private long endCycle, finalHash;
+
+    /**
+     * Creates an empty movie.
+     *
+     * @param seed the seed of the random source.
+     * @param instructionsPerFrame the number of cycles run per frame.
+     * @param romHash the hash of the rom, see {@link #hashRom}.
+     */
+    public InputMovie(long seed, int instructionsPerFrame, long romHash){
+        this.seed = seed;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.romHash = romHash;
+    }
+
+    /**
+     * Loads a rom, seeds the random source and starts recording every key event applied from now on.
+     *
+     * @param chip8 the emulator to record.
+     * @param rom the bytes of the rom.
+     * @param seed the seed of the random source.
+     * @param instructionsPerFrame the number of cycles the caller runs per frame.
+     * @return the movie being recorded, or null if the rom does not fit in memory.
+     */
+    public static InputMovie start(Chip8 chip8, byte[] rom, long seed, int instructionsPerFrame){
+        if (!chip8.loadGame(rom)){
+            return null;
+        }
+
+        InputMovie movie = new InputMovie(seed, instructionsPerFrame, hashRom(rom));
+
+        chip8.setRandom(new XorShiftRandom(seed));
+        chip8.setMovie(movie);
+        chip8.setCpuRunning(true);
+
+        return movie;
+    }
+
+    /**
+     * Stops recording and stores the end cycle and state hash.
+     *
+     * @param chip8 the emulator that was recorded.
+     */
+    public void finish(Chip8 chip8){
+        chip8.setMovie(null);
+
+        endCycle = chip8.getCycleCount();
+        finalHash = chip8.getStateHash();
+    }
+
+    /**
+     * Appends a key event, called when the event is applied.
+     *
+     * @param cycle the cycle count the event was applied at.
+     * @param key the key.
+     * @param pressed true if the key was pressed, false if released.
+     */
+    public void add(long cycle, int key, boolean pressed){
+        if (eventCount == events.length){
+            events = Arrays.copyOf(events, eventCount * 2);
+        }
+
+        events[eventCount++] = (cycle << 8) | ((pressed ? 1L : 0L) << 4) | (key & 0xF);
+    }
+
+    /**
+     * Replays the movie headless as fast as the host allows, applying every key event at the cycle it was recorded
+     * at and ticking the timers once per frame.
+     *
+     * @param chip8 the emulator to replay on, it is reset first.
+     * @param rom the bytes of the rom.
+     * @return true if the run ended in the recorded state, false if it diverged or the rom is not the recorded one.
+     */
+    public boolean replay(Chip8 chip8, byte[] rom){
+        return replay(chip8, rom, null);
+    }
+
+    /**
+     * Replays the movie headless as fast as the host allows, calling a listener after every frame.
+     *
+     * @param chip8 the emulator to replay on, it is reset first.
+     * @param rom the bytes of the rom.
+     * @param listener called after every frame, or null.
+     * @return true if the run ended in the recorded state, false if it diverged or the rom is not the recorded one.
+     */
+    public boolean replay(Chip8 chip8, byte[] rom, FrameListener listener){
+        if (hashRom(rom) != romHash || !chip8.loadGame(rom)){
+            return false;
+        }
+
+        chip8.setRandom(new XorShiftRandom(seed));
+        chip8.setCpuRunning(true);
+
+        int next = 0;
+
+        while (chip8.getCycleCount() < endCycle){
+            long cycle = chip8.getCycleCount();
+
+            while (next < eventCount && events[next] >>> 8 <= cycle){
+                long event = events[next++];
+                chip8.setKey((int)(event & 0xF), (event & 0x10) != 0);
+            }
+
+            if (chip8.runFrame(instructionsPerFrame) == 0){
+                break;
+            }
+
+            if (listener != null){
+                listener.onFrame(chip8);
+            }
+        }
+
+        return chip8.getCycleCount() == endCycle && chip8.getStateHash() == finalHash;
+    }
+
+    /**
+     * Writes the movie to a file.
+     *
+     * @param path the string path of the movie file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(Paths.get(path))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seed);
+            out.writeInt(instructionsPerFrame);
+            out.writeLong(romHash);
+            out.writeInt(eventCount);
+
+            for (int i = 0; i < eventCount; ++i){
+                out.writeLong(events[i]);
+            }
+
+            out.writeLong(endCycle);
+            out.writeLong(finalHash);
+        }
+    }
+
+    /**
+     * Reads a movie from a file.
+     *
+     * @param path the string path of the movie file.
+     * @return the movie.
+     * @throws IOException if the file cannot be read or is not a movie of this version.
+     */
+    public static InputMovie load(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(Paths.get(path))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("Not a movie file: " + path);
+            }
+
+            InputMovie movie = new InputMovie(in.readLong(), in.readInt(), in.readLong());
+            int eventCount = in.readInt();
+
+            if (eventCount < 0){
+                throw new IOException("Corrupt movie file: " + path);
+            }
+
+            movie.events = new long[Math.max(eventCount, 1)];
+            movie.eventCount = eventCount;
+
+            for (int i = 0; i < eventCount; ++i){
+                movie.events[i] = in.readLong();
+            }
+
+            movie.endCycle = in.readLong();
+            movie.finalHash = in.readLong();
+
+            return movie;
+        }
+    }
+
+    /**
+     * Hashes a rom with 64 bit FNV-1a.
+     *
+     * @param rom the bytes of the rom.
+     * @return the hash.
+     */
+    public static long hashRom(byte[] rom){
+        long hash = 0xCBF29CE484222325L;
+
+        for (byte b : rom){
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Returns the number of key events recorded.
+     *
+     * @return the event count.
+     */
+    public int getEventCount(){
+        return eventCount;
+    }
+
+    /**
+     * Returns the cycle count at the end of the recording.
+     *
+     * @return the number of cycles a replay runs.
+     */
+    public long getEndCycle(){
+        return endCycle;
+    }
+
+    /**
+     * Returns the number of cycles run per frame.
+     *
+     * @return the instructions per frame.
+     */
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+}
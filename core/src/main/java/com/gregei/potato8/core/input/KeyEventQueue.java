@@ -0,0 +1,111 @@
+package com.gregei.potato8.core.input;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single producer, single consumer ring of key events. The producer (usually the AWT event thread) offers events
+ * and the emulation thread drains them at frame boundaries, so presses take effect at a defined point in emulated
+ * time. Neither side locks or allocates; the ring indices are published with ordered writes.
+ */
+public class KeyEventQueue {
+    /**
+     * The encoded events, each holding the cycle stamp in the upper bits, the pressed flag in bit 4 and the key in
+     * bits 0-3.
+     */
+    private final long[] events;
+
+    /**
+     * The capacity minus one, used to wrap indices.
+     */
+    private final int mask;
+
+    /**
+     * The index of the next event to read, only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The index of the next event to write, only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The producer's cached copy of head, refreshed only when the ring looks full.
+     */
+    private long cachedHead;
+
+    /**
+     * Creates a queue holding at least the passed number of events.
+     *
+     * @param capacity the minimum capacity, rounded up to a power of two.
+     */
+    public KeyEventQueue(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        events = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an event, called only from the producer thread.
+     *
+     * @param key the chip-8 key, 0 to F.
+     * @param pressed true for a press, false for a release.
+     * @param cycle the emulated cycle count the producer last saw, kept with the event.
+     * @return true if the event was queued, false if the ring is full.
+     */
+    public boolean offer(int key, boolean pressed, long cycle){
+        long index = tail.get();
+
+        if (index - cachedHead >= events.length){
+            cachedHead = head.get();
+
+            if (index - cachedHead >= events.length){
+                return false;
+            }
+        }
+
+        events[(int)index & mask] = (cycle << 8) | (pressed ? 0x10 : 0) | (key & 0xF);
+        tail.lazySet(index + 1);
+
+        return true;
+    }
+
+    /**
+     * Passes every queued event to the sink in order, called only from the consumer thread.
+     *
+     * @param sink receives the key changes.
+     * @return the number of events drained.
+     */
+    public int drain(KeySink sink){
+        long index = head.get();
+        long end = tail.get();
+
+        for (long i = index; i < end; ++i){
+            long event = events[(int)i & mask];
+            sink.setKey((int)event & 0xF, (event & 0x10) != 0, event >>> 8);
+        }
+
+        head.lazySet(end);
+        return (int)(end - index);
+    }
+
+    /**
+     * @return true if no events are queued, may be stale when called from the producer.
+     */
+    public boolean isEmpty(){
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Receives drained key events.
+     */
+    public interface KeySink {
+        /**
+         * @param key the chip-8 key, 0 to F.
+         * @param pressed true for a press, false for a release.
+         * @param cycle the cycle stamp the event was queued with.
+         */
+        void setKey(int key, boolean pressed, long cycle);
+    }
+}
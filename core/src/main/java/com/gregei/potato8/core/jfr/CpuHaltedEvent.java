@@ -0,0 +1,25 @@
+package com.gregei.potato8.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The cpu halted on an opcode it does not implement.
+ */
+@Name("com.gregei.potato8.CpuHalted")
+@Label("CPU Halted")
+@Category("Potato-8")
+@Description("The cpu stopped on an unimplemented opcode")
+@StackTrace(false)
+public class CpuHaltedEvent extends Event {
+    @Label("Opcode")
+    public int opcode;
+
+    @Label("Program Counter")
+    @Description("The address of the opcode")
+    public int pc;
+}
@@ -0,0 +1,29 @@
+package com.gregei.potato8.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * One emulated frame: input polling, the frame's instructions and a timer tick. Raise the threshold in the recording
+ * settings to keep only slow frames.
+ */
+@Name("com.gregei.potato8.Frame")
+@Label("Frame")
+@Category("Potato-8")
+@Description("One emulated 60 Hz frame")
+@StackTrace(false)
+@Threshold("0 ms")
+public class FrameEvent extends Event {
+    @Label("Instructions")
+    @Description("The number of instructions run in the frame")
+    public int instructions;
+
+    @Label("Cycle Count")
+    @Description("The number of cycles run since reset at the end of the frame")
+    public long cycleCount;
+}
@@ -0,0 +1,24 @@
+package com.gregei.potato8.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The pacer fell so far behind that it dropped its backlog of frames instead of catching up.
+ */
+@Name("com.gregei.potato8.FramesDropped")
+@Label("Frames Dropped")
+@Category("Potato-8")
+@Description("The frame pacer dropped its backlog after falling behind")
+@StackTrace(false)
+public class FramesDroppedEvent extends Event {
+    @Label("Lateness")
+    @Description("How far behind the frame deadline the pacer was")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lateness;
+}
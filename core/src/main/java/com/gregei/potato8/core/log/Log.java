@@ -0,0 +1,199 @@
+package com.gregei.potato8.core.log;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prints console messages from a thread of its own, so the emulation threads never wait on the console.
+ *
+ * A message is queued as its format and arguments and only formatted on the log thread. Warnings come from the
+ * emulation threads and never block: they are limited to a burst of {@link #BURST} and {@link #RATE} a second after
+ * it, and those over the limit or not fitting the queue are dropped and counted. Information is the output of the
+ * command line tools and is never dropped, the caller waits for room instead. Queued messages are printed before the
+ * virtual machine exits.
+ */
+public final class Log {
+    /**
+     * The most messages waiting to be printed.
+     */
+    private static final int QUEUE_SIZE = 1024;
+
+    /**
+     * The warnings printed a second once the burst is used up.
+     */
+    private static final int RATE = 10;
+
+    /**
+     * The warnings printed at once before the rate applies.
+     */
+    private static final int BURST = 50;
+
+    private static final long NANOS_PER_WARNING = TimeUnit.SECONDS.toNanos(1) / RATE;
+
+    private static final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /**
+     * The number of messages ever queued and printed, the second only advanced by the log thread.
+     */
+    private static final AtomicLong queued = new AtomicLong();
+    private static volatile long printed;
+
+    /**
+     * The number of warnings dropped.
+     */
+    private static final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The time the warning allowance was last used up, one more warning is allowed every {@link #RATE}th of a second
+     * after it. Guarded by the class.
+     */
+    private static long allowanceEmpty = System.nanoTime() - BURST * NANOS_PER_WARNING;
+
+    static {
+        Thread thread = new Thread(Log::print, "potato8-log");
+        thread.setDaemon(true);
+        thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "potato8-log-flush"));
+    }
+
+    private Log(){
+    }
+
+    /**
+     * Queues a warning without ever blocking, dropped if over the rate limit or the queue is full.
+     *
+     * @param format the {@link String#format} format, printed as is without arguments.
+     * @param args the arguments of the format.
+     */
+    public static void warn(String format, Object... args){
+        if (!takeAllowance() || !queue.offer(new Message(format, args))){
+            dropped.incrementAndGet();
+            return;
+        }
+
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Queues information, waiting for room if the queue is full.
+     *
+     * @param format the {@link String#format} format, printed as is without arguments.
+     * @param args the arguments of the format.
+     */
+    public static void info(String format, Object... args){
+        Message message = new Message(format, args);
+        boolean interrupted = false;
+
+        while (true){
+            try {
+                queue.put(message);
+                break;
+            } catch (InterruptedException e) {
+                // Information is never dropped, the interrupt is kept for the caller.
+                interrupted = true;
+            }
+        }
+
+        queued.incrementAndGet();
+
+        if (interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until every message queued before the call is printed.
+     */
+    public static void flush(){
+        long target = queued.get();
+
+        while (printed < target){
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Returns the number of warnings dropped.
+     *
+     * @return the dropped warning count.
+     */
+    public static long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Takes one warning from the allowance, which refills at the rate up to the burst.
+     */
+    private static synchronized boolean takeAllowance(){
+        long now = System.nanoTime();
+
+        // An allowance left unused for a while is capped at the burst.
+        allowanceEmpty = Math.max(allowanceEmpty, now - BURST * NANOS_PER_WARNING);
+
+        if (now - allowanceEmpty < NANOS_PER_WARNING){
+            return false;
+        }
+
+        allowanceEmpty += NANOS_PER_WARNING;
+        return true;
+    }
+
+    /**
+     * The log thread loop, printing messages as they are queued and reporting dropped warnings.
+     */
+    private static void print(){
+        long reported = 0;
+
+        while (true){
+            Message message;
+
+            try {
+                message = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            PrintStream out = System.out;
+            long drops = dropped.get();
+
+            if (drops != reported){
+                out.println("Log: " + (drops - reported) + " warnings dropped");
+                reported = drops;
+            }
+
+            if (message == null){
+                continue;
+            }
+
+            try {
+                out.println(message.args.length == 0 ? message.format : String.format(message.format, message.args));
+            } catch (RuntimeException e) {
+                out.println("Log Error! " + e.getMessage() + ": " + message.format);
+            }
+
+            if (queue.isEmpty()){
+                out.flush();
+            }
+
+            printed++;
+        }
+    }
+
+    /**
+     * A message waiting to be formatted.
+     */
+    private static final class Message {
+        final String format;
+        final Object[] args;
+
+        Message(String format, Object[] args){
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
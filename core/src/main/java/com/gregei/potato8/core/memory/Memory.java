@@ -1,52 +1,264 @@
 package com.gregei.potato8.core.memory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 public class Memory {
     /**
-     * The array holding memory aka ram of the emulator.
-     */
-    private char[] memory = new char[4096];
-
-    /**
-     * The array containing the font of the emulator.
-     */
-    private char[] font_set = new char[]{
-            0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
-            0x20, 0x60, 0x20, 0x20, 0x70, // 1
-            0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
-            0xF0, 0x10, 0xF0, 0x10, 0xF0, // 3
-            0x90, 0x90, 0xF0, 0x10, 0x10, // 4
-            0xF0, 0x80, 0xF0, 0x10, 0xF0, // 5
-            0xF0, 0x80, 0xF0, 0x90, 0xF0, // 6
-            0xF0, 0x10, 0x20, 0x40, 0x40, // 7
-            0xF0, 0x90, 0xF0, 0x90, 0xF0, // 8
-            0xF0, 0x90, 0xF0, 0x10, 0xF0, // 9
-            0xF0, 0x90, 0xF0, 0x90, 0x90, // A
-            0xE0, 0x90, 0xE0, 0x90, 0xE0, // B
-            0xF0, 0x80, 0x80, 0x80, 0xF0, // C
-            0xE0, 0x90, 0x90, 0x90, 0xE0, // D
-            0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
-            0xF0, 0x80, 0xF0, 0x80, 0x80  // F
+     * The size of chip-8 memory in bytes, the extended modes can have more.
+     */
+    public static final int SIZE = 4096;
+
+    /**
+     * Masks an address to 12 bits, so accesses past the end of chip-8 memory wrap around to the start.
+     */
+    public static final int ADDRESS_MASK = SIZE - 1;
+
+    /**
+     * The address programs are loaded at.
+     */
+    public static final int PROGRAM_START = 0x200;
+
+    /**
+     * The size of the memory section of a chip-8 save state, one byte per address.
+     */
+    public static final int STATE_SIZE = SIZE;
+
+    /**
+     * The address the large font is installed at, right after the small one.
+     */
+    public static final int LARGE_FONT_START = 0x50;
+
+    /**
+     * The font of the emulator, installed at address 0.
+     */
+    private static final byte[] FONT_SET = new byte[]{
+            (byte)0xF0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xF0, // 0
+            (byte)0x20, (byte)0x60, (byte)0x20, (byte)0x20, (byte)0x70, // 1
+            (byte)0xF0, (byte)0x10, (byte)0xF0, (byte)0x80, (byte)0xF0, // 2
+            (byte)0xF0, (byte)0x10, (byte)0xF0, (byte)0x10, (byte)0xF0, // 3
+            (byte)0x90, (byte)0x90, (byte)0xF0, (byte)0x10, (byte)0x10, // 4
+            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x10, (byte)0xF0, // 5
+            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x90, (byte)0xF0, // 6
+            (byte)0xF0, (byte)0x10, (byte)0x20, (byte)0x40, (byte)0x40, // 7
+            (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x90, (byte)0xF0, // 8
+            (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x10, (byte)0xF0, // 9
+            (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x90, (byte)0x90, // A
+            (byte)0xE0, (byte)0x90, (byte)0xE0, (byte)0x90, (byte)0xE0, // B
+            (byte)0xF0, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0xF0, // C
+            (byte)0xE0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xE0, // D
+            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x80, (byte)0xF0, // E
+            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x80, (byte)0x80  // F
+    };
+
+    /**
+     * The 8x10 font of the extended modes, installed at {@link #LARGE_FONT_START}.
+     */
+    private static final byte[] LARGE_FONT_SET = new byte[]{
+            (byte)0x3C, (byte)0x7E, (byte)0xE7, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xE7, (byte)0x7E, (byte)0x3C, // 0
+            (byte)0x18, (byte)0x38, (byte)0x58, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x3C, // 1
+            (byte)0x3E, (byte)0x7F, (byte)0xC3, (byte)0x06, (byte)0x0C, (byte)0x18, (byte)0x30, (byte)0x60, (byte)0xFF, (byte)0xFF, // 2
+            (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0x03, (byte)0x0E, (byte)0x0E, (byte)0x03, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 3
+            (byte)0x06, (byte)0x0E, (byte)0x1E, (byte)0x36, (byte)0x66, (byte)0xC6, (byte)0xFF, (byte)0xFF, (byte)0x06, (byte)0x06, // 4
+            (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xFC, (byte)0xFE, (byte)0x03, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 5
+            (byte)0x3E, (byte)0x7C, (byte)0xC0, (byte)0xC0, (byte)0xFC, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 6
+            (byte)0xFF, (byte)0xFF, (byte)0x03, (byte)0x06, (byte)0x0C, (byte)0x18, (byte)0x30, (byte)0x60, (byte)0x60, (byte)0x60, // 7
+            (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0xC3, (byte)0x7E, (byte)0x7E, (byte)0xC3, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 8
+            (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0xC3, (byte)0x7F, (byte)0x3F, (byte)0x03, (byte)0x03, (byte)0x3E, (byte)0x7C, // 9
+            (byte)0x18, (byte)0x3C, (byte)0x66, (byte)0xC3, (byte)0xC3, (byte)0xFF, (byte)0xFF, (byte)0xC3, (byte)0xC3, (byte)0xC3, // A
+            (byte)0xFC, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0xFE, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0xFE, (byte)0xFC, // B
+            (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0xC0, (byte)0xC0, (byte)0xC0, (byte)0xC0, (byte)0xC3, (byte)0x7E, (byte)0x3C, // C
+            (byte)0xFC, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xFE, (byte)0xFC, // D
+            (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xFC, (byte)0xFC, (byte)0xC0, (byte)0xC0, (byte)0xFF, (byte)0xFF, // E
+            (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xFC, (byte)0xFC, (byte)0xC0, (byte)0xC0, (byte)0xC0, (byte)0xC0  // F
     };
 
     /**
-     * Resets the memory and loads font data.
+     * The array holding memory aka ram of the emulator, one byte per address.
+     */
+    private final byte[] memory;
+
+    /**
+     * Masks an address to the size of this memory.
+     */
+    private final int addressMask;
+
+    /**
+     * The number of bytes at the start of memory holding fonts.
+     */
+    private final int fontEnd;
+
+    /**
+     * True if the font may have been overwritten since it was installed.
+     */
+    private boolean fontDirty;
+
+    /**
+     * Creates the 4 KB memory of chip-8.
+     */
+    public Memory(){
+        this(SIZE, false);
+    }
+
+    /**
+     * Creates a memory.
+     *
+     * @param size the size in bytes, a power of two of at least 4 KB.
+     * @param largeFont true to install the 8x10 font of the extended modes after the small font.
+     */
+    public Memory(int size, boolean largeFont){
+        if (size < SIZE || Integer.bitCount(size) != 1){
+            throw new IllegalArgumentException("Memory size must be a power of two of at least " + SIZE);
+        }
+
+        memory = new byte[size];
+        addressMask = size - 1;
+        fontEnd = largeFont ? LARGE_FONT_START + LARGE_FONT_SET.length : FONT_SET.length;
+
+        installFont();
+    }
+
+    /**
+     * Resets the memory, clearing everything above the font. The font is only reinstalled if it was written.
      */
     public void reset(){
-        Arrays.fill(memory, (char)0);
+        Arrays.fill(memory, fontEnd, memory.length, (byte)0);
+
+        if (fontDirty){
+            installFont();
+            fontDirty = false;
+        }
+    }
+
+    private void installFont(){
+        Arrays.fill(memory, 0, fontEnd, (byte)0);
+        System.arraycopy(FONT_SET, 0, memory, 0, FONT_SET.length);
 
-        for (int i = 0; i < 80; ++i){
-            memory[i] = font_set[i];
+        if (fontEnd > FONT_SET.length){
+            System.arraycopy(LARGE_FONT_SET, 0, memory, LARGE_FONT_START, LARGE_FONT_SET.length);
         }
     }
 
     /**
-     * Resets the memory.
+     * Reads a byte.
+     *
+     * @param address the address, wrapped to the size of memory.
+     * @return the byte, from 0 to 255.
+     */
+    public int read(int address){
+        return memory[address & addressMask] & 0xFF;
+    }
+
+    /**
+     * Reads a big endian 16 bit word, such as an opcode.
+     *
+     * @param address the address of the high byte, both bytes wrapped to the size of memory.
+     * @return the word, from 0 to 0xFFFF.
+     */
+    public int readWord(int address){
+        return ((memory[address & addressMask] & 0xFF) << 8) | (memory[(address + 1) & addressMask] & 0xFF);
+    }
+
+    /**
+     * Writes a byte.
+     *
+     * @param address the address, wrapped to the size of memory.
+     * @param value the byte, only the low 8 bits are stored.
+     */
+    public void write(int address, int value){
+        address &= addressMask;
+        memory[address] = (byte)value;
+
+        if (address < fontEnd){
+            fontDirty = true;
+        }
+    }
+
+    /**
+     * Copies a rom to the program start address.
+     *
+     * @param rom the bytes of the rom.
+     * @return true if the rom was loaded, false if it does not fit in memory.
+     */
+    public boolean loadRom(byte[] rom){
+        if (rom.length > memory.length - PROGRAM_START){
+            return false;
+        }
+
+        System.arraycopy(rom, 0, memory, PROGRAM_START, rom.length);
+        return true;
+    }
+
+    /**
+     * Maps a rom file and copies it to the program start address in one bulk copy.
+     *
+     * @param path the path of the rom file.
+     * @return true if the rom was loaded, false if it does not fit in memory.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public boolean loadRom(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size > memory.length - PROGRAM_START){
+                return false;
+            }
+
+            MappedByteBuffer rom = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            rom.get(memory, PROGRAM_START, (int)size);
+
+            return true;
+        }
+    }
+
+    /**
+     * Writes every byte of memory to a save state.
+     *
+     * @param buffer the buffer to write {@link #getStateSize()} bytes to.
+     */
+    public void saveState(ByteBuffer buffer){
+        buffer.put(memory);
+    }
+
+    /**
+     * Reads every byte of memory from a save state.
+     *
+     * @param buffer the buffer to read {@link #getStateSize()} bytes from.
+     */
+    public void loadState(ByteBuffer buffer){
+        buffer.get(memory);
+        fontDirty = true;
+    }
+
+    /**
+     * Returns the size of memory.
+     *
+     * @return the number of addressable bytes.
+     */
+    public int size(){
+        return memory.length;
+    }
+
+    /**
+     * Returns the mask wrapping addresses to the size of memory.
+     *
+     * @return the size minus one.
+     */
+    public int getAddressMask(){
+        return addressMask;
+    }
+
+    /**
+     * Returns the size of the memory section of a save state.
      *
-     * @return the instance of memory of the array.
+     * @return one byte per address.
      */
-    public char[] getMemory() {
-        return memory;
+    public int getStateSize(){
+        return memory.length;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,340 @@
+package com.gregei.potato8.core.profile;
+
+import com.gregei.potato8.core.memory.Memory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts executions per program counter address and per opcode class, the targets of backward branches (loop heads)
+ * and the instructions spent in each subroutine, found by following 2nnn and 00EE. Instructions stand in for time:
+ * every chip-8 instruction takes one cycle.
+ *
+ * Straight line instructions only cost one counter increment, everything else is worked out when the flow changes
+ * or when the report is written. Opcode classes are read from memory at report time, so code rewritten while
+ * profiling is counted as its latest contents.
+ *
+ * Attach with {@link com.gregei.potato8.core.Chip8#setProfiler}, which swaps in a profiling engine.
+ */
+public class PcProfiler {
+    /**
+     * The deepest call stack followed, deeper calls are counted against the deepest subroutine tracked.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * The names of the opcode classes, indexed by the high nibble.
+     */
+    private static final String[] CLASS_NAMES = {
+            "0nnn SYS/CLS/RET", "1nnn JP", "2nnn CALL", "3xkk SE", "4xkk SNE", "5xy0 SE", "6xkk LD", "7xkk ADD",
+            "8xyN ALU", "9xy0 SNE", "Annn LD I", "Bnnn JP V0", "Cxkk RND", "Dxyn DRW", "ExNN SKP", "FxNN MISC"
+    };
+
+    /**
+     * The number of executions of each address.
+     */
+    private final long[] counts = new long[Memory.SIZE];
+
+    /**
+     * The number of backward branches landing on each address.
+     */
+    private final long[] backEdges = new long[Memory.SIZE];
+
+    /**
+     * The instructions executed directly in each subroutine, indexed by entry address and added when it returns.
+     * The main program is entered at {@link Memory#PROGRAM_START}.
+     */
+    private final long[] exclusive = new long[Memory.SIZE];
+
+    /**
+     * The instructions executed in each subroutine including its callees, added when it returns.
+     */
+    private final long[] inclusive = new long[Memory.SIZE];
+
+    /**
+     * The number of calls to each subroutine.
+     */
+    private final long[] calls = new long[Memory.SIZE];
+
+    /**
+     * For each active subroutine below the running one: its entry address, the total when it made the call, and
+     * the instructions spent in its callees so far.
+     */
+    private final int[] stackEntries = new int[MAX_DEPTH];
+    private final long[] stackTotals = new long[MAX_DEPTH];
+    private final long[] stackCallees = new long[MAX_DEPTH];
+
+    /**
+     * The total when the running subroutine was entered, and the instructions spent in its callees so far.
+     */
+    private long entryTotal, calleeTotal;
+
+    /**
+     * The number of active subroutines, calls past {@link #MAX_DEPTH} are counted but not followed.
+     */
+    private int depth, untracked;
+
+    /**
+     * The entry address of the running subroutine.
+     */
+    private int current = Memory.PROGRAM_START;
+
+    /**
+     * The number of instructions executed, brought up to date whenever the flow changes and after every run.
+     */
+    private long total;
+
+    /**
+     * The memory being profiled, read to classify the counted opcodes.
+     */
+    private Memory memory;
+
+    /**
+     * Sets the memory being profiled, called by the profiling engine.
+     *
+     * @param memory the memory the counted opcodes are read from.
+     */
+    public void attach(Memory memory){
+        this.memory = memory;
+    }
+
+    /**
+     * Records one executed instruction, called by the profiling engine after it ran.
+     *
+     * @param pc the address of the instruction.
+     * @param opcode the instruction.
+     * @param nextPc the program counter after the instruction.
+     * @param executed the number of instructions executed including this one.
+     */
+    public void record(int pc, int opcode, int nextPc, long executed){
+        counts[pc & Memory.ADDRESS_MASK]++;
+
+        // Calls, returns, jumps and skips all change the flow, straight line code needs nothing else.
+        if (nextPc != pc + 2){
+            total = executed;
+            branch(pc & Memory.ADDRESS_MASK, opcode, nextPc & Memory.ADDRESS_MASK);
+        }
+    }
+
+    /**
+     * Brings the instruction total up to date, called by the profiling engine after every run.
+     *
+     * @param executed the number of instructions executed.
+     */
+    public void advance(long executed){
+        total = executed;
+    }
+
+    private void branch(int pc, int opcode, int nextPc){
+        if ((opcode & 0xF000) == 0x2000){
+            enter(nextPc);
+        }
+        else if (opcode == 0x00EE){
+            exit();
+        }
+        else if (nextPc <= pc){
+            backEdges[nextPc]++;
+        }
+    }
+
+    private void enter(int entry){
+        calls[entry]++;
+
+        if (depth == MAX_DEPTH){
+            untracked++;
+            return;
+        }
+
+        stackEntries[depth] = current;
+        stackTotals[depth] = entryTotal;
+        stackCallees[depth] = calleeTotal;
+        depth++;
+
+        current = entry;
+        entryTotal = total;
+        calleeTotal = 0;
+    }
+
+    private void exit(){
+        if (untracked > 0){
+            untracked--;
+            return;
+        }
+
+        if (depth == 0){
+            return;
+        }
+
+        long spent = total - entryTotal;
+        inclusive[current] += spent;
+        exclusive[current] += spent - calleeTotal;
+
+        depth--;
+        current = stackEntries[depth];
+        entryTotal = stackTotals[depth];
+        calleeTotal = stackCallees[depth] + spent;
+    }
+
+    /**
+     * Ends every active subroutine, called when the emulator is reset. Counts are kept.
+     */
+    public void resetCallStack(){
+        closeActivations(inclusive, exclusive);
+        clearCallStack();
+    }
+
+    private void clearCallStack(){
+        depth = 0;
+        untracked = 0;
+        current = Memory.PROGRAM_START;
+        entryTotal = total;
+        calleeTotal = 0;
+    }
+
+    /**
+     * Adds the instructions spent so far by every active subroutine, as if they all returned now.
+     */
+    private void closeActivations(long[] inclusive, long[] exclusive){
+        int entry = current;
+        long entered = entryTotal, callees = calleeTotal;
+
+        for (int level = depth; level >= 0; --level){
+            long spent = total - entered;
+            inclusive[entry] += spent;
+            exclusive[entry] += spent - callees;
+
+            if (level > 0){
+                entry = stackEntries[level - 1];
+                entered = stackTotals[level - 1];
+                callees = stackCallees[level - 1] + spent;
+            }
+        }
+    }
+
+    /**
+     * Clears every count.
+     */
+    public void clear(){
+        Arrays.fill(counts, 0);
+        Arrays.fill(backEdges, 0);
+        Arrays.fill(exclusive, 0);
+        Arrays.fill(inclusive, 0);
+        Arrays.fill(calls, 0);
+        total = 0;
+
+        clearCallStack();
+    }
+
+    /**
+     * Writes the hottest addresses, loop heads and subroutines and the opcode class mix.
+     *
+     * @param out the writer to print to.
+     * @param limit the number of entries in each top list.
+     */
+    public void writeReport(Writer out, int limit){
+        PrintWriter report = new PrintWriter(out);
+
+        report.printf("Instructions: %d%n", total);
+
+        long[] classCounts = new long[16];
+
+        if (memory != null){
+            for (int address = 0; address < counts.length; ++address){
+                classCounts[memory.readWord(address) >>> 12] += counts[address];
+            }
+        }
+
+        report.printf("%nOpcode classes:%n");
+        for (int i = 0; i < classCounts.length; ++i){
+            if (classCounts[i] > 0){
+                report.printf("  %-18s %14d %6.2f%%%n", CLASS_NAMES[i], classCounts[i], percent(classCounts[i]));
+            }
+        }
+
+        report.printf("%nHottest addresses:%n");
+        for (int address : top(counts, limit)){
+            report.printf("  %03X %14d %6.2f%%%n", address, counts[address], percent(counts[address]));
+        }
+
+        report.printf("%nHottest loop heads (backward branch targets):%n");
+        for (int address : top(backEdges, limit)){
+            report.printf("  %03X %14d iterations%n", address, backEdges[address]);
+        }
+
+        // Subroutines still running have not been added yet.
+        long[] inclusive = this.inclusive.clone();
+        long[] exclusive = this.exclusive.clone();
+        closeActivations(inclusive, exclusive);
+
+        report.printf("%nSubroutines by inclusive instructions:%n");
+        report.printf("  %-4s %10s %14s %8s %14s %8s%n", "", "calls", "inclusive", "", "exclusive", "");
+        for (int address : top(inclusive, limit)){
+            report.printf("  %-4s %10d %14d %7.2f%% %14d %7.2f%%%n",
+                    address == Memory.PROGRAM_START ? "main" : String.format("%03X", address), calls[address],
+                    inclusive[address], percent(inclusive[address]), exclusive[address],
+                    percent(exclusive[address]));
+        }
+
+        report.flush();
+    }
+
+    /**
+     * Writes the execution count of every address, one "address,count" line per address with the address in hex.
+     *
+     * @param path the string path of the heatmap file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeHeatmap(String path) throws IOException {
+        try (PrintWriter heatmap = new PrintWriter(Files.newBufferedWriter(Paths.get(path)))) {
+            heatmap.println("address,count");
+
+            for (int address = 0; address < counts.length; ++address){
+                heatmap.printf("%03X,%d%n", address, counts[address]);
+            }
+        }
+    }
+
+    /**
+     * Returns the execution count of every address.
+     *
+     * @return a copy of the 4096 counts.
+     */
+    public long[] getHeatmap(){
+        return counts.clone();
+    }
+
+    /**
+     * Returns the number of instructions recorded.
+     *
+     * @return the total.
+     */
+    public long getTotal(){
+        return total;
+    }
+
+    private double percent(long count){
+        return total == 0 ? 0 : count * 100.0 / total;
+    }
+
+    /**
+     * Returns the indexes of the largest non zero values, largest first.
+     */
+    private static List<Integer> top(long[] values, int limit){
+        List<Integer> indexes = new ArrayList<>();
+
+        for (int i = 0; i < values.length; ++i){
+            if (values[i] > 0){
+                indexes.add(i);
+            }
+        }
+
+        indexes.sort((a, b) -> Long.compare(values[b], values[a]));
+        return indexes.subList(0, Math.min(limit, indexes.size()));
+    }
+}
@@ -0,0 +1,126 @@
+package com.gregei.potato8.core.state;
+
+/**
+ * Run length encodes the XOR of a byte array against a base, the delta format shared by rewind checkpoints and
+ * streamed frames.
+ *
+ * The encoding is a sequence of pairs of a zero run length and a literal run, both lengths as varints, followed by
+ * the literal bytes. Literal runs absorb zero runs shorter than a pair header. An unchanged array encodes to nothing,
+ * and decoding XORs the delta onto the base, so applying it a second time undoes it.
+ */
+public final class DeltaCodec {
+    private DeltaCodec(){
+    }
+
+    /**
+     * Returns the largest an encoding of an array can get.
+     *
+     * @param length the length of the arrays encoded.
+     * @return the size the output buffer needs.
+     */
+    public static int maxEncodedSize(int length){
+        return length * 2 + 16;
+    }
+
+    /**
+     * Encodes the XOR of an array against a base.
+     *
+     * @param current the array to encode.
+     * @param base the array to XOR against, the same length as current, or null to encode against zeros.
+     * @param out the buffer to encode into, at least {@link #maxEncodedSize} bytes past the offset.
+     * @param offset the offset in the buffer to start at.
+     * @return the encoded length.
+     */
+    public static int encode(byte[] current, byte[] base, byte[] out, int offset){
+        int length = current.length;
+        int position = offset;
+        int i = 0;
+
+        while (i < length){
+            int zeroStart = i;
+
+            while (i < length && diff(current, base, i) == 0){
+                i++;
+            }
+
+            if (i == length){
+                break;
+            }
+
+            int literalStart = i;
+            int zeros = 0;
+
+            while (i < length && zeros < 4){
+                zeros = diff(current, base, i) == 0 ? zeros + 1 : 0;
+                i++;
+            }
+
+            if (zeros > 0){
+                i -= zeros;
+            }
+
+            position = putVarint(out, position, literalStart - zeroStart);
+            position = putVarint(out, position, i - literalStart);
+
+            for (int j = literalStart; j < i; ++j){
+                out[position++] = diff(current, base, j);
+            }
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * XORs an encoded delta onto an array.
+     *
+     * @param in the buffer holding the delta.
+     * @param offset the offset of the delta in the buffer.
+     * @param length the encoded length.
+     * @param state the array to apply the delta to.
+     * @throws IndexOutOfBoundsException if the delta is corrupt or was encoded from a longer array.
+     */
+    public static void decode(byte[] in, int offset, int length, byte[] state){
+        int end = offset + length;
+        int i = 0;
+
+        while (offset < end){
+            int zeros = 0, literals = 0;
+
+            for (int shift = 0; ; shift += 7){
+                int b = in[offset++];
+                zeros |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+
+            for (int shift = 0; ; shift += 7){
+                int b = in[offset++];
+                literals |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+
+            i += zeros;
+
+            if (literals > end - offset || i + literals > state.length || i < 0){
+                throw new IndexOutOfBoundsException("Corrupt delta");
+            }
+
+            for (int j = 0; j < literals; ++j){
+                state[i++] ^= in[offset++];
+            }
+        }
+    }
+
+    private static byte diff(byte[] current, byte[] base, int i){
+        return base == null ? current[i] : (byte)(current[i] ^ base[i]);
+    }
+
+    private static int putVarint(byte[] out, int position, int value){
+        while (value >= 0x80){
+            out[position++] = (byte)(value | 0x80);
+            value >>>= 7;
+        }
+
+        out[position++] = (byte)value;
+        return position;
+    }
+}
@@ -0,0 +1,323 @@
+package com.gregei.potato8.core.state;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.timing.FrameListener;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Records a save state every few frames into a fixed size ring so the emulator can be stepped back in time.
+ *
+ * Checkpoints are stored XOR'd against the previous checkpoint and run length encoded, so a frame that only
+ * changed a few registers and display rows costs a few dozen bytes. Every {@link #KEYFRAME_INTERVAL} checkpoints
+ * one is stored against zeros instead, and the oldest checkpoint kept is always such a keyframe. All storage is
+ * allocated up front: once the ring is full the oldest checkpoints are dropped. Only the state buffers are
+ * reallocated, when the emulator switches to a cpu mode with a different save state size.
+ *
+ * Not thread safe, recording and stepping back must happen on the emulation thread.
+ */
+public class RewindBuffer implements FrameListener {
+    /**
+     * The number of checkpoints between keyframes.
+     */
+    public static final int KEYFRAME_INTERVAL = 60;
+
+    /**
+     * The default number of frames between checkpoints, ten checkpoints a second.
+     */
+    public static final int DEFAULT_FRAME_INTERVAL = 6;
+
+    /**
+     * The default number of checkpoints kept, 60 seconds of history at the default interval.
+     */
+    public static final int DEFAULT_CAPACITY = 600;
+
+    /**
+     * The default size of the encoded checkpoint storage in bytes.
+     */
+    public static final int DEFAULT_ARENA_SIZE = 768 * 1024;
+
+    /**
+     * The largest a single encoded chip-8 checkpoint can get.
+     */
+    private static final int MAX_ENCODED_SIZE = DeltaCodec.maxEncodedSize(SaveState.SIZE);
+
+    /**
+     * The number of frames between checkpoints.
+     */
+    private final int frameInterval;
+
+    /**
+     * The encoded checkpoints, allocated front to back and wrapping around.
+     */
+    private final byte[] arena;
+
+    /**
+     * The arena offset, encoded length and keyframe flag of every checkpoint, indexed by ring slot.
+     */
+    private final int[] offsets, lengths;
+    private final boolean[] keyframes;
+
+    /**
+     * The decoded newest checkpoint, the base the next checkpoint is encoded against.
+     */
+    private byte[] state = new byte[SaveState.SIZE];
+
+    /**
+     * The state being captured.
+     */
+    private byte[] capture = new byte[SaveState.SIZE];
+
+    /**
+     * The checkpoint being encoded.
+     */
+    private byte[] encoded = new byte[MAX_ENCODED_SIZE];
+
+    /**
+     * The slot of the oldest checkpoint and the number of checkpoints kept.
+     */
+    private int head, count;
+
+    /**
+     * The arena offset the next checkpoint is written at.
+     */
+    private int writeOffset;
+
+    /**
+     * The number of checkpoints since the newest keyframe.
+     */
+    private int sinceKeyframe;
+
+    /**
+     * The number of frames since the last checkpoint.
+     */
+    private int frames;
+
+    /**
+     * Creates a buffer holding 60 seconds of history in under 1 MB.
+     */
+    public RewindBuffer(){
+        this(DEFAULT_FRAME_INTERVAL, DEFAULT_CAPACITY, DEFAULT_ARENA_SIZE);
+    }
+
+    /**
+     * Creates a buffer.
+     *
+     * @param frameInterval the number of frames between checkpoints.
+     * @param capacity the most checkpoints kept.
+     * @param arenaSize the size in bytes of the encoded checkpoint storage.
+     */
+    public RewindBuffer(int frameInterval, int capacity, int arenaSize){
+        if (frameInterval < 1 || capacity < 1 || arenaSize < MAX_ENCODED_SIZE * 2){
+            throw new IllegalArgumentException("Rewind buffer too small");
+        }
+
+        this.frameInterval = frameInterval;
+
+        arena = new byte[arenaSize];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        keyframes = new boolean[capacity];
+    }
+
+    /**
+     * Records a checkpoint every frame interval.
+     */
+    @Override
+    public void onFrame(Chip8 chip8){
+        if (++frames >= frameInterval){
+            record(chip8);
+        }
+    }
+
+    /**
+     * Records a checkpoint of the current emulator state.
+     *
+     * @param chip8 the emulator to record.
+     */
+    public void record(Chip8 chip8){
+        frames = 0;
+
+        if (chip8.getStateSize() != capture.length){
+            resize(chip8.getStateSize());
+        }
+
+        chip8.saveState(ByteBuffer.wrap(capture));
+
+        boolean keyframe = count == 0 || sinceKeyframe >= KEYFRAME_INTERVAL - 1;
+        int length = DeltaCodec.encode(capture, keyframe ? null : state, encoded, 0);
+        int offset = allocate(length);
+
+        // Dropping old checkpoints to make room can take the base of a delta with them.
+        if (count == 0 && !keyframe){
+            keyframe = true;
+            length = DeltaCodec.encode(capture, null, encoded, 0);
+            offset = allocate(length);
+        }
+
+        System.arraycopy(encoded, 0, arena, offset, length);
+
+        int slot = slot(count++);
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        keyframes[slot] = keyframe;
+
+        writeOffset = offset + length;
+        sinceKeyframe = keyframe ? 0 : sinceKeyframe + 1;
+
+        byte[] previous = state;
+        state = capture;
+        capture = previous;
+    }
+
+    /**
+     * Restores the newest checkpoint and drops it, so repeated calls walk further back.
+     *
+     * @param chip8 the emulator to restore.
+     * @return true if a checkpoint was restored, false if there is no history left.
+     */
+    public boolean stepBack(Chip8 chip8){
+        if (count == 0){
+            return false;
+        }
+
+        chip8.loadState(ByteBuffer.wrap(state));
+        frames = 0;
+
+        int slot = slot(--count);
+        writeOffset = offsets[slot];
+
+        if (count == 0){
+            return true;
+        }
+
+        if (keyframes[slot]){
+            rebuild();
+        }
+        else{
+            // XOR is its own inverse, undoing the newest delta gives the checkpoint before it.
+            DeltaCodec.decode(arena, offsets[slot], lengths[slot], state);
+            sinceKeyframe--;
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops every checkpoint.
+     */
+    public void clear(){
+        head = 0;
+        count = 0;
+        writeOffset = 0;
+        sinceKeyframe = 0;
+        frames = 0;
+    }
+
+    /**
+     * Drops every checkpoint and sizes the state buffers for another save state size.
+     */
+    private void resize(int stateSize){
+        int maxEncodedSize = DeltaCodec.maxEncodedSize(stateSize);
+
+        if (arena.length < maxEncodedSize * 2){
+            throw new IllegalStateException("Rewind buffer too small for " + stateSize + " byte states");
+        }
+
+        clear();
+        state = new byte[stateSize];
+        capture = new byte[stateSize];
+        encoded = new byte[maxEncodedSize];
+    }
+
+    /**
+     * Returns the number of checkpoints kept.
+     *
+     * @return the number of times {@link #stepBack} can succeed.
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * Returns the number of arena bytes holding checkpoints.
+     *
+     * @return the encoded size of every checkpoint kept.
+     */
+    public int getUsedBytes(){
+        int used = 0;
+
+        for (int i = 0; i < count; ++i){
+            used += lengths[slot(i)];
+        }
+
+        return used;
+    }
+
+    /**
+     * Finds room for an encoded checkpoint, dropping the oldest checkpoints it would overwrite.
+     *
+     * @return the arena offset to write at.
+     */
+    private int allocate(int length){
+        if (count == offsets.length){
+            dropOldest();
+        }
+
+        int offset = writeOffset;
+
+        if (offset + length > arena.length){
+            // Skip the tail, the checkpoints still in it are older than those at the start.
+            while (count > 0 && offsets[head] >= offset){
+                dropOldest();
+            }
+
+            offset = 0;
+        }
+
+        while (count > 0 && offsets[head] < offset + length && offsets[head] + lengths[head] > offset){
+            dropOldest();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Drops the oldest checkpoint, then any deltas left without their keyframe.
+     */
+    private void dropOldest(){
+        do {
+            head = slot(1);
+            count--;
+        } while (count > 0 && !keyframes[head]);
+
+        if (count == 0){
+            sinceKeyframe = 0;
+        }
+    }
+
+    /**
+     * Decodes the newest checkpoint into the state by replaying from its keyframe.
+     */
+    private void rebuild(){
+        int keyframe = count - 1;
+
+        while (!keyframes[slot(keyframe)]){
+            keyframe--;
+        }
+
+        Arrays.fill(state, (byte)0);
+
+        for (int i = keyframe; i < count; ++i){
+            int slot = slot(i);
+            DeltaCodec.decode(arena, offsets[slot], lengths[slot], state);
+        }
+
+        sinceKeyframe = count - 1 - keyframe;
+    }
+
+    private int slot(int index){
+        return (head + index) % offsets.length;
+    }
+}
@@ -0,0 +1,130 @@
+package com.gregei.potato8.core.state;
+
+import com.gregei.potato8.core.cpu.CPU;
+import com.gregei.potato8.core.cpu.CpuMode;
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.memory.Memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The layout of a save state, a fixed size big endian record:
+ *
+ *     header      magic (4), version (2), cpu mode ordinal (2)
+ *     cycles      cycle count since reset (8)
+ *     cpu         see {@link CPU#saveState}
+ *     memory      every byte of ram
+ *     display     see {@link FrameBuffer#saveState}
+ *
+ * Every section has a fixed size for a cpu mode, so a reader can check the whole record up front and then read it
+ * without bounds checks of its own. The mode field holds the {@link CpuMode} ordinal, a state only loads into an
+ * emulator of the same mode.
+ */
+public final class SaveState {
+    /**
+     * Identifies a save state, "P8SS".
+     */
+    public static final int MAGIC = 0x50385353;
+
+    /**
+     * The layout version, bumped whenever the layout changes.
+     */
+    public static final short VERSION = 2;
+
+    /**
+     * The size of the magic, version and cpu mode fields.
+     */
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of a whole chip-8 save state in bytes, see {@link #size(CpuMode)} for the other modes.
+     */
+    public static final int SIZE = HEADER_SIZE + Long.BYTES + CPU.STATE_SIZE + Memory.STATE_SIZE
+            + FrameBuffer.STATE_SIZE;
+
+    private SaveState(){
+    }
+
+    /**
+     * Returns the size of a whole save state of a cpu mode.
+     *
+     * @param mode the machine the state is of.
+     * @return the size in bytes, {@link #SIZE} for chip-8.
+     */
+    public static int size(CpuMode mode){
+        return HEADER_SIZE + Long.BYTES + CPU.stateSize(mode) + mode.getMemorySize()
+                + FrameBuffer.stateSize(mode.getPlanes(), mode.isExtended());
+    }
+
+    /**
+     * Writes the header of a save state.
+     *
+     * @param buffer the buffer to write to.
+     * @param mode the machine the state is of.
+     */
+    public static void writeHeader(ByteBuffer buffer, CpuMode mode){
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short)mode.ordinal());
+    }
+
+    /**
+     * Reads and checks the header of a save state.
+     *
+     * @param buffer the buffer to read from.
+     * @param mode the machine the state must be of.
+     * @return true if the buffer holds a whole save state of this version and mode.
+     */
+    public static boolean readHeader(ByteBuffer buffer, CpuMode mode){
+        if (buffer.remaining() < size(mode)){
+            return false;
+        }
+
+        boolean valid = buffer.getInt() == MAGIC && buffer.getShort() == VERSION;
+
+        return buffer.getShort() == mode.ordinal() && valid;
+    }
+
+    /**
+     * Maps a save state file for writing, creating it or resizing it to the save state size. An existing file is
+     * overwritten in place rather than truncated, so its pages are reused.
+     *
+     * @param path the file to write.
+     * @param size the size of the save state, see {@link #size(CpuMode)}.
+     * @return the mapped buffer, positioned at the start of the file.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public static MappedByteBuffer mapForWrite(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() > size){
+                channel.truncate(size);
+            }
+
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Maps a save state file for reading.
+     *
+     * @param path the file to read.
+     * @param size the size of the save state, see {@link #size(CpuMode)}.
+     * @return the mapped buffer, or null if the file is not the size of a save state.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public static MappedByteBuffer mapForRead(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() != size){
+                return null;
+            }
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+}
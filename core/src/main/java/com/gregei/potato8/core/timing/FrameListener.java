@@ -0,0 +1,12 @@
+package com.gregei.potato8.core.timing;
+
+import com.gregei.potato8.core.Chip8;
+
+public interface FrameListener {
+    /**
+     * Called on the pacing thread after every emulated frame.
+     *
+     * @param chip8 the emulator that ran the frame.
+     */
+    void onFrame(Chip8 chip8);
+}
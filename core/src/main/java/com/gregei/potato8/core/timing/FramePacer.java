@@ -0,0 +1,327 @@
+package com.gregei.potato8.core.timing;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.jfr.FramesDroppedEvent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a Chip8 at a fixed 60 Hz frame rate. Every frame runs a configurable number of instructions and ticks the
+ * delay and sound timers once, then parks until the next frame deadline. Deadlines advance by exactly one frame
+ * period so sleep overshoot does not accumulate as drift. While the cpu is halted, or idle waiting for input with
+ * its timers stopped, the thread parks until {@link #wake()} is called.
+ *
+ * The speed can be raised to a multiple of real time, or to {@link #UNLIMITED} to run frames back to back. Every
+ * frame still ticks the timers, so emulated time stays consistent at any speed. Presentation is decoupled from
+ * emulation: the presenter runs once the display interval has passed, or every Nth frame if a frame skip is set,
+ * so fast forwarding is not limited by rendering.
+ */
+public class FramePacer implements Runnable {
+    /**
+     * The number of frames per second, which is also the timer rate.
+     */
+    public static final int FRAME_RATE = 60;
+
+    /**
+     * The default number of instructions per frame, 600 instructions per second.
+     */
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 10;
+
+    /**
+     * The speed that runs frames back to back as fast as the host allows.
+     */
+    public static final double UNLIMITED = 0;
+
+    /**
+     * The length of one frame in nanoseconds.
+     */
+    private static final long FRAME_NANOS = 1_000_000_000L / FRAME_RATE;
+
+    /**
+     * The least wall clock time between presented frames, a quarter frame short of the display interval so frames
+     * paced at real time are never skipped for starting a little early.
+     */
+    private static final long DISPLAY_NANOS = FRAME_NANOS * 3 / 4;
+
+    /**
+     * The wall clock time the effective speed is measured over.
+     */
+    private static final long SPEED_WINDOW_NANOS = 1_000_000_000L;
+
+    /**
+     * How far behind the pacer may fall before it drops the backlog instead of running frames back to back.
+     */
+    private static final long MAX_BACKLOG_NANOS = 5 * FRAME_NANOS;
+
+    /**
+     * The emulator being paced.
+     */
+    private final Chip8 chip8;
+
+    /**
+     * Called after every frame.
+     */
+    private final FrameListener listener;
+
+    /**
+     * Called when a frame should be shown, or null.
+     */
+    private volatile FrameListener presenter;
+
+    /**
+     * The lateness of every frame.
+     */
+    private final JitterStats jitter = new JitterStats();
+
+    /**
+     * The multiple of real time frames run at, or {@link #UNLIMITED}.
+     */
+    private volatile double speed = 1;
+
+    /**
+     * The number of frames between presented frames, or 0 to present once the display interval has passed.
+     */
+    private volatile int frameSkip;
+
+    /**
+     * The speed frames actually ran at over the last measurement window, as a multiple of real time.
+     */
+    private volatile double effectiveSpeed = 1;
+
+    /**
+     * The start time and number of frames of the current measurement window.
+     */
+    private long windowStart, windowFrames;
+
+    /**
+     * The time of the last presented frame and the number of frames run since.
+     */
+    private long lastPresent, framesSincePresent;
+
+    /**
+     * The number of instructions run per frame.
+     */
+    private volatile int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    /**
+     * Flag to represent if the pacer loop is running.
+     */
+    private volatile boolean running;
+
+    /**
+     * The thread running the pacer loop.
+     */
+    private volatile Thread thread;
+
+    public FramePacer(Chip8 chip8, FrameListener listener){
+        this.chip8 = chip8;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the pacer loop on the calling thread until {@link #stop()} is called or the thread is interrupted.
+     */
+    @Override
+    public void run(){
+        thread = Thread.currentThread();
+        running = true;
+
+        long deadline = System.nanoTime();
+        windowStart = deadline;
+        lastPresent = deadline;
+
+        while (running && !Thread.currentThread().isInterrupted()){
+            if (!chip8.isCpuRunning()){
+                LockSupport.park(this);
+                deadline = restartWindow();
+                continue;
+            }
+
+            if (chip8.isWaitingForInput()){
+                // Frames would only count cycles, run the next one once woken by a key event.
+                LockSupport.park(this);
+                deadline = restartWindow();
+            }
+
+            chip8.runFrame(instructionsPerFrame);
+            listener.onFrame(chip8);
+
+            long now = System.nanoTime();
+            measure(now);
+            present(now);
+
+            double speed = this.speed;
+
+            if (speed <= UNLIMITED){
+                deadline = now;
+                continue;
+            }
+
+            deadline += (long)(FRAME_NANOS / speed);
+
+            long lateness = now - deadline;
+
+            if (lateness > MAX_BACKLOG_NANOS){
+                FramesDroppedEvent event = new FramesDroppedEvent();
+
+                if (event.shouldCommit()){
+                    event.lateness = lateness;
+                    event.commit();
+                }
+
+                deadline = System.nanoTime();
+                continue;
+            }
+
+            long remaining;
+
+            while (running && (remaining = deadline - System.nanoTime()) > 0){
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            jitter.record(System.nanoTime() - deadline);
+        }
+
+        running = false;
+        thread = null;
+    }
+
+    /**
+     * Starts a new speed measurement window after the thread was parked.
+     *
+     * @return the current time, the deadline of the next frame.
+     */
+    private long restartWindow(){
+        long now = System.nanoTime();
+
+        windowStart = now;
+        windowFrames = 0;
+
+        return now;
+    }
+
+    /**
+     * Counts a frame and updates the effective speed once the measurement window is over.
+     */
+    private void measure(long now){
+        windowFrames++;
+
+        long elapsed = now - windowStart;
+
+        if (elapsed >= SPEED_WINDOW_NANOS){
+            effectiveSpeed = windowFrames * (double)FRAME_NANOS / elapsed;
+            windowStart = now;
+            windowFrames = 0;
+        }
+    }
+
+    /**
+     * Calls the presenter if the frame skip or the display interval says this frame should be shown.
+     */
+    private void present(long now){
+        FrameListener presenter = this.presenter;
+        int frameSkip = this.frameSkip;
+
+        framesSincePresent++;
+
+        if (presenter == null
+                || (frameSkip > 0 ? framesSincePresent < frameSkip : now - lastPresent < DISPLAY_NANOS)){
+            return;
+        }
+
+        presenter.onFrame(chip8);
+
+        lastPresent = now;
+        framesSincePresent = 0;
+    }
+
+    /**
+     * Stops the pacer loop after the current frame.
+     */
+    public void stop(){
+        running = false;
+        wake();
+    }
+
+    /**
+     * Unparks the pacer thread, call after resuming a halted cpu and after queueing key events.
+     */
+    public void wake(){
+        Thread current = thread;
+
+        if (current != null){
+            LockSupport.unpark(current);
+        }
+    }
+
+    /**
+     * Sets the number of instructions run per frame.
+     *
+     * @param instructionsPerFrame the number of instructions, at least 1.
+     */
+    public void setInstructionsPerFrame(int instructionsPerFrame){
+        this.instructionsPerFrame = Math.max(instructionsPerFrame, 1);
+    }
+
+    /**
+     * Sets the listener called when a frame should be shown, on the pacing thread after the frame listener.
+     *
+     * @param presenter the presenter, or null to present nothing.
+     */
+    public void setPresenter(FrameListener presenter){
+        this.presenter = presenter;
+    }
+
+    /**
+     * Sets the speed frames run at.
+     *
+     * @param speed the multiple of real time, or {@link #UNLIMITED} to run as fast as the host allows.
+     */
+    public void setSpeed(double speed){
+        this.speed = Math.max(speed, UNLIMITED);
+    }
+
+    /**
+     * @return the multiple of real time frames run at, or {@link #UNLIMITED}.
+     */
+    public double getSpeed(){
+        return speed;
+    }
+
+    /**
+     * Sets how often frames are presented.
+     *
+     * @param frameSkip present every this many frames, or 0 to present once the display interval has passed.
+     */
+    public void setFrameSkip(int frameSkip){
+        this.frameSkip = Math.max(frameSkip, 0);
+    }
+
+    /**
+     * @return the speed frames actually ran at over the last second, as a multiple of real time.
+     */
+    public double getEffectiveSpeed(){
+        return effectiveSpeed;
+    }
+
+    /**
+     * @return the number of instructions run per frame.
+     */
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+
+    /**
+     * @return the lateness statistics of the frames run so far.
+     */
+    public JitterStats getJitter(){
+        return jitter;
+    }
+
+    /**
+     * @return true if the pacer loop is running.
+     */
+    public boolean isRunning(){
+        return running;
+    }
+}
@@ -0,0 +1,74 @@
+package com.gregei.potato8.core.timing;
+
+/**
+ * Running statistics of how late each frame started relative to its deadline. Updated only by the pacing thread,
+ * other threads may read slightly stale values.
+ */
+public class JitterStats {
+    private long count;
+    private long maxNanos;
+    private double meanNanos;
+    private double sumOfSquares;
+
+    /**
+     * Records the lateness of one frame.
+     *
+     * @param latenessNanos how long after its deadline the frame started, in nanoseconds.
+     */
+    public void record(long latenessNanos){
+        ++count;
+
+        // Welford's online algorithm, stable without keeping samples.
+        double delta = latenessNanos - meanNanos;
+        meanNanos += delta / count;
+        sumOfSquares += delta * (latenessNanos - meanNanos);
+
+        if (latenessNanos > maxNanos){
+            maxNanos = latenessNanos;
+        }
+    }
+
+    /**
+     * Clears every recorded frame.
+     */
+    public void reset(){
+        count = 0;
+        maxNanos = 0;
+        meanNanos = 0;
+        sumOfSquares = 0;
+    }
+
+    /**
+     * @return the number of frames recorded.
+     */
+    public long getCount(){
+        return count;
+    }
+
+    /**
+     * @return the mean lateness, in nanoseconds.
+     */
+    public double getMeanNanos(){
+        return meanNanos;
+    }
+
+    /**
+     * @return the largest lateness, in nanoseconds.
+     */
+    public long getMaxNanos(){
+        return maxNanos;
+    }
+
+    /**
+     * @return the standard deviation of the lateness, in nanoseconds.
+     */
+    public double getStandardDeviationNanos(){
+        return count > 1 ? Math.sqrt(sumOfSquares / (count - 1)) : 0;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%d frames, jitter mean %.1fus, stddev %.1fus, max %.1fus", count, meanNanos / 1e3,
+                getStandardDeviationNanos() / 1e3, maxNanos / 1e3);
+    }
+}
@@ -0,0 +1,169 @@
+package com.gregei.potato8.core.trace;
+
+import com.gregei.potato8.core.log.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A flight recorder of the last executed instructions, kept in a preallocated ring and dumped as text when the cpu
+ * halts or on demand.
+ *
+ * Every instruction is one long in the ring: its address and opcode, and the values of the x and y registers it
+ * names and of I after it ran. Recording is a shift, an or and a store, without allocation, so the trace can stay
+ * attached. Only the emulation thread may record and dump.
+ *
+ * Attach with {@link com.gregei.potato8.core.Chip8#setTrace}, which swaps in a tracing engine.
+ */
+public class InstructionTrace {
+    /**
+     * The number of instructions kept by default.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final long[] entries;
+    private final int mask;
+
+    /**
+     * The number of instructions ever recorded.
+     */
+    private long total;
+
+    /**
+     * The file the trace is dumped to when the cpu halts, or null.
+     */
+    private Path haltDump;
+
+    public InstructionTrace(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a trace.
+     *
+     * @param capacity the number of instructions kept, a power of two.
+     */
+    public InstructionTrace(int capacity){
+        if (Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+
+        entries = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Records an executed instruction, overwriting the oldest once the ring is full.
+     *
+     * @param pc the address of the instruction.
+     * @param opcode the opcode.
+     * @param vx the value of the register named by the x nibble after the instruction ran.
+     * @param vy the value of the register named by the y nibble after the instruction ran.
+     * @param i the value of I after the instruction ran.
+     */
+    public void record(int pc, int opcode, int vx, int vy, int i){
+        entries[(int)total & mask] = (long)(pc & 0xFFFF) << 48 | (long)(opcode & 0xFFFF) << 32
+                | (long)(i & 0xFFFF) << 16 | (vx & 0xFF) << 8 | vy & 0xFF;
+        total++;
+    }
+
+    /**
+     * Forgets every recorded instruction.
+     */
+    public void clear(){
+        total = 0;
+    }
+
+    /**
+     * Sets the file the trace is dumped to when the cpu halts on an opcode it cannot execute.
+     *
+     * @param file the dump file, replaced on every halt, or null to not dump on halt.
+     */
+    public void setHaltDump(Path file){
+        haltDump = file;
+    }
+
+    /**
+     * Called by the tracing engine when the cpu halted, dumps the trace to the halt dump file if one is set.
+     *
+     * @param pc the address of the instruction the cpu halted on.
+     * @param opcode the opcode the cpu halted on.
+     */
+    public void onHalt(int pc, int opcode){
+        if (haltDump == null){
+            return;
+        }
+
+        try {
+            dump(haltDump);
+            Log.warn("Cpu halted on %04X at %04X, the last %d instructions are in %s", opcode, pc, getSize(),
+                    haltDump);
+        } catch (IOException e) {
+            Log.warn("Trace Error! %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the trace to a file, oldest instruction first.
+     *
+     * @param file the dump file, replaced if it exists.
+     * @throws IOException if the file cannot be written.
+     */
+    public void dump(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            dump(writer);
+        }
+    }
+
+    /**
+     * Writes the trace as text, oldest instruction first, one line per instruction numbered from the first ever
+     * recorded.
+     *
+     * @param writer the writer to write to, not closed.
+     * @throws IOException if the writer fails.
+     */
+    public void dump(Writer writer) throws IOException {
+        writer.write("# instruction  pc    opcode  Vx      Vy      I (registers after the instruction)\n");
+
+        for (long n = total - getSize(); n < total; ++n){
+            long entry = entries[(int)n & mask];
+            int opcode = (int)(entry >>> 32) & 0xFFFF;
+
+            writer.write(String.format("%13d  %04X  %04X    V%X=%02X   V%X=%02X   I=%04X\n", n + 1, entry >>> 48,
+                    opcode, opcode >>> 8 & 0xF, entry >>> 8 & 0xFF, opcode >>> 4 & 0xF, entry & 0xFF,
+                    entry >>> 16 & 0xFFFF));
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Returns the number of instructions held.
+     *
+     * @return the instruction count, at most the capacity.
+     */
+    public int getSize(){
+        return (int)Math.min(total, entries.length);
+    }
+
+    /**
+     * Returns the number of instructions ever recorded.
+     *
+     * @return the recorded instruction count.
+     */
+    public long getTotal(){
+        return total;
+    }
+
+    /**
+     * Returns the number of instructions kept.
+     *
+     * @return the capacity.
+     */
+    public int getCapacity(){
+        return entries.length;
+    }
+}
@@ -0,0 +1,216 @@
+package com.gregei.potato8.core.cpu;
+
+import com.gregei.potato8.core.Chip8;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the same programs on every engine and checks they end every frame in exactly the same register, memory and
+ * display state as the interpreter, compared through {@link Chip8#getStateHash()}.
+ *
+ * The programs are random instructions of each mode, seeded so a failure can be replayed, with jumps and calls kept
+ * inside the program so loops get hot enough to be compiled and I pointing into the program so stores rewrite code
+ * that was already decoded or compiled. A hand written loop rewriting its own instruction covers the same on purpose.
+ */
+public class EngineEquivalenceTest {
+    /**
+     * The number of random programs run per mode.
+     */
+    private static final int PROGRAMS = 300;
+
+    /**
+     * The number of frames every program runs for and the cycles in each.
+     */
+    private static final int FRAMES = 120, INSTRUCTIONS_PER_FRAME = 50;
+
+    /**
+     * The size of a random program in bytes.
+     */
+    private static final int PROGRAM_SIZE = 512;
+
+    /**
+     * The instructions of every mode, operands filled in at random.
+     */
+    private static final int[] OPCODES = {
+            0x00E0, 0x00EE, 0x1000, 0x2000, 0x3000, 0x4000, 0x5000, 0x6000, 0x7000, 0x8000, 0x8001, 0x8002, 0x8003,
+            0x8004, 0x8005, 0x8006, 0x8007, 0x800E, 0x9000, 0xA000, 0xB000, 0xC000, 0xD000, 0xE09E, 0xE0A1, 0xF007,
+            0xF00A, 0xF015, 0xF018, 0xF01E, 0xF029, 0xF033, 0xF055, 0xF065
+    };
+
+    /**
+     * The instructions only the extended modes have, operands filled in at random.
+     */
+    private static final int[] EXTENDED_OPCODES = {
+            0x00C0, 0x00FB, 0x00FC, 0x00FE, 0x00FF, 0xF030, 0xF075, 0xF085
+    };
+
+    /**
+     * The instructions only XO-CHIP has, operands filled in at random.
+     */
+    private static final int[] XO_OPCODES = {
+            0x00D0, 0x5002, 0x5003, 0xF000, 0xF001, 0xF002, 0xF03A
+    };
+
+    private static final EngineType[] ENGINES = {EngineType.PREDECODED, EngineType.RECOMPILER};
+
+    @Test
+    public void randomChip8Programs(){
+        runRandomPrograms(CpuMode.CHIP8);
+    }
+
+    @Test
+    public void randomSchipPrograms(){
+        runRandomPrograms(CpuMode.SCHIP);
+    }
+
+    @Test
+    public void randomXoChipPrograms(){
+        runRandomPrograms(CpuMode.XOCHIP);
+    }
+
+    @Test
+    public void selfModifyingLoop(){
+        byte[] rom = assemble(
+                0x6000, 0x6100,
+                0x7101,                 // 204: V1 += the byte rewritten below
+                0x7001,
+                0xA205, 0xF055,         // store V0 over the operand of 204
+                0x1204);
+
+        for (CpuMode mode : CpuMode.values()){
+            assertSameStates(mode, rom, 0, "self modifying loop");
+        }
+    }
+
+    private static void runRandomPrograms(CpuMode mode){
+        for (long seed = 0; seed < PROGRAMS; ++seed){
+            assertSameStates(mode, randomProgram(mode, seed), seed, "program " + seed);
+        }
+    }
+
+    /**
+     * Runs a rom on the interpreter and on every other engine, failing at the first frame a state differs.
+     */
+    private static void assertSameStates(CpuMode mode, byte[] rom, long seed, String name){
+        String[] expected = run(mode, EngineType.INTERPRETER, rom, seed);
+
+        for (EngineType engine : ENGINES){
+            String[] actual = run(mode, engine, rom, seed);
+
+            for (int frame = 0; frame < FRAMES; ++frame){
+                assertEquals(mode + " " + name + " on " + engine + ", frame " + frame, expected[frame],
+                        actual[frame]);
+            }
+        }
+    }
+
+    /**
+     * Runs a rom with a seeded random source, pressing a key half way, and hashes the state after every frame. A frame
+     * that throws, like a call overflowing the stack, ends the run with the exception in place of its hash, so every
+     * engine has to fail the same way in the same frame.
+     */
+    private static String[] run(CpuMode mode, EngineType engine, byte[] rom, long seed){
+        Chip8 chip8 = new Chip8(mode);
+        chip8.setEngine(engine);
+        chip8.loadGame(rom);
+        chip8.setRandom(new XorShiftRandom(seed));
+        chip8.setCpuRunning(true);
+
+        String[] hashes = new String[FRAMES];
+
+        for (int frame = 0; frame < FRAMES; ++frame){
+            chip8.setKey(3, frame >= FRAMES / 2);
+
+            try {
+                chip8.runFrame(INSTRUCTIONS_PER_FRAME);
+            } catch (RuntimeException e) {
+                hashes[frame] = e.getClass().getSimpleName();
+                break;
+            }
+
+            hashes[frame] = Long.toHexString(chip8.getStateHash());
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Builds a program of random instructions of a mode, with jump, call and I targets inside the program.
+     */
+    private static byte[] randomProgram(CpuMode mode, long seed){
+        Random random = new Random(seed);
+        int[] program = new int[PROGRAM_SIZE / 2];
+
+        for (int i = 0; i < program.length; ++i){
+            int[] opcodes = OPCODES;
+
+            if (mode.isXo() && random.nextInt(8) == 0){
+                opcodes = XO_OPCODES;
+            }
+            else if (mode.isExtended() && random.nextInt(8) == 0){
+                opcodes = EXTENDED_OPCODES;
+            }
+
+            program[i] = operands(opcodes[random.nextInt(opcodes.length)], random);
+        }
+
+        return assemble(program);
+    }
+
+    /**
+     * Fills in the operands of an opcode.
+     */
+    private static int operands(int opcode, Random random){
+        int x = random.nextInt(16) << 8, y = random.nextInt(16) << 4;
+
+        switch (opcode & 0xF000){
+            case 0x0000:
+                // 00Cn and 00Dn scroll by n rows, the rest take no operands.
+                return (opcode & 0xFFE0) == 0x00C0 ? opcode | random.nextInt(16) : opcode;
+
+            case 0x1000:
+            case 0x2000:
+                return opcode | 0x200 + random.nextInt(PROGRAM_SIZE / 2) * 2;
+
+            case 0xA000:
+                // I lands in the program half of the time, so stores rewrite code.
+                return opcode | 0x200 + random.nextInt(PROGRAM_SIZE * 2);
+
+            case 0xB000:
+                return opcode | 0x200 + random.nextInt(0x80) * 2;
+
+            case 0x3000:
+            case 0x4000:
+            case 0x6000:
+            case 0x7000:
+            case 0xC000:
+                return opcode | x | random.nextInt(256);
+
+            case 0x5000:
+            case 0x8000:
+            case 0x9000:
+                return opcode | x | y;
+
+            case 0xD000:
+                return opcode | x | y | random.nextInt(16);
+
+            default:
+                // F001 selects planes 0 to 3, F000 takes the next word as its address.
+                return opcode == 0xF001 ? opcode | random.nextInt(4) << 8 : opcode == 0xF000 ? opcode : opcode | x;
+        }
+    }
+
+    private static byte[] assemble(int... opcodes){
+        byte[] rom = new byte[opcodes.length * 2];
+
+        for (int i = 0; i < opcodes.length; ++i){
+            rom[i * 2] = (byte)(opcodes[i] >>> 8);
+            rom[i * 2 + 1] = (byte)opcodes[i];
+        }
+
+        return rom;
+    }
+}
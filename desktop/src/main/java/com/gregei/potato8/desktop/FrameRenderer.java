@@ -0,0 +1,199 @@
+package com.gregei.potato8.desktop;
+
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.graphics.FrameKernels;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+public class FrameRenderer {
+  /**
+   * The color of every pixel value.
+   */
+  private static final int[] PALETTE = new int[1 << FrameBuffer.MAX_PLANES];
+
+  static {
+    for (int value = 0; value < PALETTE.length; ++value) {
+      PALETTE[value] = FrameBuffer.getColor(value);
+    }
+  }
+
+  /**
+   * The kernels expanding packed rows into pixels.
+   */
+  private final FrameKernels kernels;
+
+  /**
+   * The image the frame buffer is rendered into, reused for every frame until the resolution changes.
+   */
+  private BufferedImage image =
+      new BufferedImage(FrameBuffer.WIDTH, FrameBuffer.HEIGHT, BufferedImage.TYPE_INT_RGB);
+
+  /**
+   * The pixels backing the image, written directly instead of through setRGB.
+   */
+  private int[] imagePixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+  /**
+   * The frame buffer version the image shows.
+   */
+  private long version = Long.MIN_VALUE;
+
+  /**
+   * The rows and the columns between left and right converted by the last call, bit y set for row y.
+   */
+  private long changedRows;
+  private int changedLeft, changedRight;
+
+  /**
+   * Creates a renderer on the fastest kernels available.
+   */
+  public FrameRenderer() {
+    this(FrameKernels.get());
+  }
+
+  /**
+   * Creates a renderer.
+   *
+   * @param kernels the kernels expanding packed rows into pixels.
+   */
+  public FrameRenderer(FrameKernels kernels) {
+    this.kernels = kernels;
+  }
+
+  /**
+   * Converts the whole frame buffer into the image.
+   *
+   * @param frameBuffer the frame buffer to convert.
+   * @return the image, the same instance until the resolution changes.
+   */
+  public BufferedImage render(FrameBuffer frameBuffer) {
+    version = frameBuffer.getVersion();
+    resize(frameBuffer);
+
+    changedRows = FrameBuffer.ALL_ROWS;
+    changedLeft = 0;
+    changedRight = frameBuffer.getWidth();
+
+    for (int word = 0; word < frameBuffer.getWordsPerRow(); ++word) {
+      convert(frameBuffer, FrameBuffer.ALL_ROWS, word, 0, Long.SIZE);
+    }
+
+    return image;
+  }
+
+  /**
+   * Converts only the region of the frame buffer changed since the image was last converted.
+   *
+   * @param frameBuffer the frame buffer to convert.
+   * @return the image, the same instance until the resolution changes.
+   */
+  public BufferedImage update(FrameBuffer frameBuffer) {
+    long current = frameBuffer.getVersion();
+    changedRows = 0;
+
+    if (current == version) {
+      return image;
+    }
+
+    if (resize(frameBuffer)) {
+      return render(frameBuffer);
+    }
+
+    long rows = frameBuffer.getDirtyRows(version);
+    changedLeft = frameBuffer.getWidth();
+    changedRight = 0;
+
+    for (int word = 0; word < frameBuffer.getWordsPerRow(); ++word) {
+      long columns = frameBuffer.getDirtyColumns(version, word);
+
+      if (columns != 0) {
+        int from = Long.numberOfLeadingZeros(columns), to = Long.SIZE - Long.numberOfTrailingZeros(columns);
+
+        convert(frameBuffer, rows, word, from, to);
+        changedRows = rows;
+        changedLeft = Math.min(changedLeft, word * Long.SIZE + from);
+        changedRight = Math.max(changedRight, word * Long.SIZE + to);
+      }
+    }
+
+    version = current;
+    return image;
+  }
+
+  /**
+   * Recreates the image if the frame buffer changed resolution.
+   *
+   * @return true if the image was recreated.
+   */
+  private boolean resize(FrameBuffer frameBuffer) {
+    if (image.getWidth() == frameBuffer.getWidth()) {
+      return false;
+    }
+
+    image = new BufferedImage(frameBuffer.getWidth(), frameBuffer.getHeight(), BufferedImage.TYPE_INT_RGB);
+    imagePixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    return true;
+  }
+
+  /**
+   * Converts the passed rows of one word between two of its columns.
+   */
+  private void convert(FrameBuffer frameBuffer, long rows, int word, int from, int to) {
+    long[][] planes = frameBuffer.getPlanes();
+    int planeCount = frameBuffer.getPlaneCount();
+    int width = frameBuffer.getWidth();
+    int words = frameBuffer.getWordsPerRow();
+
+    for (int y = 0; y < frameBuffer.getHeight(); ++y) {
+      if ((rows >>> y & 1) != 0) {
+        kernels.expand(planes, planeCount, y * words + word, from, to, PALETTE, imagePixels,
+            y * width + word * Long.SIZE);
+      }
+    }
+  }
+
+  /**
+   * Returns the frame buffer version the image shows.
+   *
+   * @return the version converted last.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the rows of the image changed by the last call to {@link #render} or {@link #update}.
+   *
+   * @return the changed rows, bit y set for row y, 0 if nothing changed.
+   */
+  public long getChangedRows() {
+    return changedRows;
+  }
+
+  /**
+   * Returns the first column of the image changed by the last call to {@link #render} or {@link #update}.
+   *
+   * @return the leftmost changed column.
+   */
+  public int getChangedLeft() {
+    return changedLeft;
+  }
+
+  /**
+   * Returns the column after the last one changed by the last call to {@link #render} or {@link #update}.
+   *
+   * @return the column right of the changed region.
+   */
+  public int getChangedRight() {
+    return changedRight;
+  }
+
+  /**
+   * Returns the image the frame buffer is rendered into.
+   *
+   * @return the image.
+   */
+  public BufferedImage getImage() {
+    return image;
+  }
+}
@@ -0,0 +1,43 @@
+package com.gregei.potato8.desktop;
+
+import java.util.Arrays;
+
+public class KeyMap {
+  /**
+   * The keyboard keys laid out as the left hand 4x4 block, row by row. Their AWT key codes equal their characters.
+   */
+  private static final String KEYBOARD = "1234QWERASDFZXCV";
+
+  /**
+   * The chip-8 keypad keys in the same positions as the keyboard keys above.
+   */
+  private static final int[] KEYPAD = {
+      0x1, 0x2, 0x3, 0xC,
+      0x4, 0x5, 0x6, 0xD,
+      0x7, 0x8, 0x9, 0xE,
+      0xA, 0x0, 0xB, 0xF
+  };
+
+  /**
+   * The chip-8 key for each AWT key code, -1 for unmapped keys.
+   */
+  private final int[] table = new int[256];
+
+  public KeyMap() {
+    Arrays.fill(table, -1);
+
+    for (int i = 0; i < KEYBOARD.length(); ++i) {
+      table[KEYBOARD.charAt(i)] = KEYPAD[i];
+    }
+  }
+
+  /**
+   * Returns the chip-8 key mapped to an AWT key code.
+   *
+   * @param keyCode the key code from the key event.
+   * @return the chip-8 key, or -1 if the key is not mapped.
+   */
+  public int getKey(int keyCode) {
+    return keyCode >= 0 && keyCode < table.length ? table[keyCode] : -1;
+  }
+}
@@ -1,17 +1,23 @@
 package com.gregei.potato8.desktop;
 
 import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.audio.AudioOutput;
+import com.gregei.potato8.core.cpu.CpuMode;
+import com.gregei.potato8.core.export.FrameExporter;
+import com.gregei.potato8.core.input.InputMovie;
+import com.gregei.potato8.core.state.RewindBuffer;
+import com.gregei.potato8.core.timing.FramePacer;
+import com.gregei.potato8.core.trace.InstructionTrace;
+import com.gregei.potato8.desktop.jfr.PresentEvent;
+import com.gregei.potato8.desktop.jfr.RenderEvent;
 import com.gregei.potato8.desktop.views.MainView;
-import java.awt.AWTException;
-import java.awt.Color;
-import java.awt.Rectangle;
-import java.awt.Robot;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import javax.sound.sampled.LineUnavailableException;
 import javax.swing.WindowConstants;
 
 public class Potato8Desktop {
@@ -26,6 +32,16 @@ public class Potato8Desktop {
    */
   private int scale;
 
+  /**
+   * The directory screenshots are written to.
+   */
+  private final String SCREENSHOT_DIRECTORY = "screenshots";
+
+  /**
+   * The scale of exported GIFs.
+   */
+  private final int GIF_SCALE = 4;
+
   /**
    * The title of the emulator.
    */
@@ -41,25 +57,112 @@ public class Potato8Desktop {
    */
   private Chip8 chip8 = new Chip8();
 
+  /**
+   * Maps keyboard keys to the chip-8 keypad.
+   */
+  private final KeyMap keyMap = new KeyMap();
+
   /**
    * Instance of the MainView class
    */
   private MainView mainView;
 
+  /**
+   * Converts the frame buffer into an image, reused for every frame.
+   */
+  private final FrameRenderer renderer = new FrameRenderer();
+
+  /**
+   * Scales the converted image to the window, created with the window.
+   */
+  private Upscaler upscaler;
+
+  /**
+   * Plays the sound timer, silent if no sound card line could be opened.
+   */
+  private AudioOutput audio = AudioOutput.none();
+
+  /**
+   * Records the last instructions run, dumped next to the rom when the cpu halts or F8 is pressed.
+   */
+  private final InstructionTrace trace = new InstructionTrace();
+
   /**
    * The flag to represent if the emulator is running
    */
   private boolean emulatorRunning = false;
 
+  /**
+   * Runs the emulator at 60 frames per second.
+   */
+  private volatile FramePacer pacer;
+
+  /**
+   * The recent history of the emulator, stepped back through while backspace is held.
+   */
+  private final RewindBuffer rewind = new RewindBuffer();
+
+  /**
+   * The flag to represent if backspace is held, set on the event thread and read on the emulation thread.
+   */
+  private volatile boolean rewinding = false;
+
+  /**
+   * The flag to represent if tab is held, frames run as fast as possible while it is.
+   */
+  private volatile boolean fastForward = false;
+
+  /**
+   * The effective speed last shown in the title, rounded.
+   */
+  private long shownSpeed = 1;
+
+  /**
+   * The flags to represent if F12 or F6 was pressed, screenshots and GIF recording happen on the emulation thread.
+   */
+  private volatile boolean screenshotRequested = false, gifToggled = false;
+
+  /**
+   * Writes screenshots in the background, created on the first screenshot.
+   */
+  private FrameExporter screenshots;
+
+  /**
+   * Writes every frame to a GIF in the background while recording, otherwise null.
+   */
+  private FrameExporter gif;
+
+  /**
+   * The flag to represent if F5 was pressed, recording is toggled on the emulation thread.
+   */
+  private volatile boolean recordToggled = false;
+
+  /**
+   * The flag to represent if F7 was pressed, the upscaling filter is changed on the emulation thread.
+   */
+  private volatile boolean filterCycled = false;
+
+  /**
+   * The flag to represent if F8 was pressed, the trace is dumped on the emulation thread.
+   */
+  private volatile boolean traceRequested = false;
+
+  /**
+   * The input movie being recorded, or null.
+   */
+  private InputMovie movie;
+
   /**
    * Initialize the emulator.
    */
   private void init() {
     mainView = new MainView(WIDTH, HEIGHT, scale);
+    upscaler = new Upscaler(WIDTH * scale, HEIGHT * scale);
     mainView.setTitle(TITLE);
     mainView.setVisible(true);
     mainView.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
     mainView.getContentPane().setFocusable(true);
+    mainView.getContentPane().setFocusTraversalKeysEnabled(false);
     mainView.getContentPane().requestFocusInWindow();
 
     mainView.getContentPane().addKeyListener(new KeyListener() {
@@ -70,144 +173,73 @@ public class Potato8Desktop {
 
       @Override
       public void keyPressed(KeyEvent e) {
-        switch (e.getKeyCode()) {
-          case KeyEvent.VK_1:
-            chip8.setKey(0, true);
-            break;
-
-          case KeyEvent.VK_2:
-            chip8.setKey(1, true);
-            break;
-
-          case KeyEvent.VK_3:
-            chip8.setKey(2, true);
-            break;
-
-          case KeyEvent.VK_4:
-            chip8.setKey(3, true);
-            break;
-
-          case KeyEvent.VK_Q:
-            chip8.setKey(4, true);
-            break;
-
-          case KeyEvent.VK_W:
-            chip8.setKey(5, true);
-            break;
-
-          case KeyEvent.VK_E:
-            chip8.setKey(6, true);
-            break;
-
-          case KeyEvent.VK_R:
-            chip8.setKey(7, true);
-            break;
-
-          case KeyEvent.VK_A:
-            chip8.setKey(8, true);
-            capture();
-            break;
-
-          case KeyEvent.VK_S:
-            chip8.setKey(9, true);
-            break;
-
-          case KeyEvent.VK_D:
-            chip8.setKey(10, true);
-            break;
-
-          case KeyEvent.VK_F:
-            chip8.setKey(11, true);
-            break;
-
-          case KeyEvent.VK_Z:
-            chip8.setKey(12, true);
-            break;
-
-          case KeyEvent.VK_X:
-            chip8.setKey(13, true);
-            break;
-
-          case KeyEvent.VK_C:
-            chip8.setKey(14, true);
-            break;
-
-          case KeyEvent.VK_V:
-            chip8.setKey(15, true);
-            break;
+        int key = keyMap.getKey(e.getKeyCode());
+
+        if (key >= 0) {
+          chip8.queueKey(key, true);
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_F12) {
+          screenshotRequested = true;
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_F6) {
+          gifToggled = true;
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+          rewinding = true;
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_F5) {
+          recordToggled = true;
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_F7) {
+          filterCycled = true;
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_F8) {
+          traceRequested = true;
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_TAB) {
+          setFastForward(true);
         }
+
+        wakePacer();
       }
 
       @Override
       public void keyReleased(KeyEvent e) {
-        switch (e.getKeyCode()) {
-          case KeyEvent.VK_1:
-            chip8.setKey(0, false);
-            break;
-
-          case KeyEvent.VK_2:
-            chip8.setKey(1, false);
-            break;
-
-          case KeyEvent.VK_3:
-            chip8.setKey(2, false);
-            break;
-
-          case KeyEvent.VK_4:
-            chip8.setKey(3, false);
-            break;
-
-          case KeyEvent.VK_Q:
-            chip8.setKey(4, false);
-            break;
-
-          case KeyEvent.VK_W:
-            chip8.setKey(5, false);
-            break;
-
-          case KeyEvent.VK_E:
-            chip8.setKey(6, false);
-            break;
-
-          case KeyEvent.VK_R:
-            chip8.setKey(7, false);
-            break;
-
-          case KeyEvent.VK_A:
-            chip8.setKey(8, false);
-            break;
-
-          case KeyEvent.VK_S:
-            chip8.setKey(9, false);
-            break;
-
-          case KeyEvent.VK_D:
-            chip8.setKey(10, false);
-            break;
-
-          case KeyEvent.VK_F:
-            chip8.setKey(11, false);
-            break;
-
-          case KeyEvent.VK_Z:
-            chip8.setKey(12, false);
-            break;
-
-          case KeyEvent.VK_X:
-            chip8.setKey(13, false);
-            break;
-
-          case KeyEvent.VK_C:
-            chip8.setKey(14, false);
-            break;
-
-          case KeyEvent.VK_V:
-            chip8.setKey(15, false);
-            break;
+        int key = keyMap.getKey(e.getKeyCode());
+
+        if (key >= 0) {
+          chip8.queueKey(key, false);
         }
+
+        if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+          rewinding = false;
+        }
+
+        if (e.getKeyCode() == KeyEvent.VK_TAB) {
+          setFastForward(false);
+        }
+
+        wakePacer();
       }
     });
 
+    try {
+      audio = AudioOutput.line();
+    } catch (LineUnavailableException e) {
+      System.out.println("Audio Error! " + e.getMessage());
+    }
+
+    chip8.setAudio(audio);
+    trace.setHaltDump(Paths.get(romPath + ".trace"));
+    chip8.setTrace(trace);
+    chip8.setMode(CpuMode.forRom(romPath));
     chip8.setCpuRunning(chip8.loadGame(romPath));
 
     boolean loaded = chip8.loadGame(romPath);
@@ -235,21 +267,116 @@ public class Potato8Desktop {
 
     emulatorRunning = true;
 
-    while (emulatorRunning) {
-      if (chip8.isCpuRunning()) {
-        chip8.runCycle();
+    pacer = new FramePacer(chip8, emulator -> {
+      if (recordToggled) {
+        recordToggled = false;
+        toggleRecording();
+      }
+
+      if (screenshotRequested) {
+        screenshotRequested = false;
+        takeScreenshot(emulator);
+      }
+
+      if (gifToggled) {
+        gifToggled = false;
+        toggleGif();
+      }
+
+      if (traceRequested) {
+        traceRequested = false;
+        dumpTrace();
+      }
+
+      if (gif != null) {
+        gif.submit(emulator.getFrameBuffer());
       }
 
-      if (chip8.isDrawReady()) {
+      if (rewinding && movie == null) {
+        rewind.stepBack(emulator);
+      } else {
+        rewind.onFrame(emulator);
+      }
+    });
+    pacer.setInstructionsPerFrame(chip8.getMode().getInstructionsPerFrame());
+    pacer.setPresenter(emulator -> {
+      boolean filterChanged = filterCycled;
+
+      if (filterChanged) {
+        filterCycled = false;
+        upscaler.setFilter(upscaler.getFilter().next());
+        System.out.println("Upscaling Filter: " + upscaler.getFilter());
+      }
+
+      if (filterChanged || emulator.getFrameVersion() != renderer.getVersion()) {
         render();
-        chip8.setDraw(false);
       }
 
-      try {
-        Thread.sleep(1);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+      showSpeed();
+    });
+    pacer.run();
+  }
+
+  /**
+   * Restarts the rom and starts recording an input movie, or stops recording and saves the movie next to the rom.
+   * Rewinding is disabled while recording.
+   */
+  private void toggleRecording() {
+    String moviePath = romPath + ".p8m";
+
+    try {
+      if (movie == null) {
+        movie = InputMovie.start(chip8, Files.readAllBytes(Paths.get(romPath)), System.nanoTime(),
+            pacer.getInstructionsPerFrame());
+        rewind.clear();
+        System.out.println("Recording Input Movie!");
+      } else {
+        movie.finish(chip8);
+        movie.save(moviePath);
+        movie = null;
+        System.out.println("Input Movie Saved To " + moviePath);
       }
+    } catch (IOException e) {
+      movie = null;
+      chip8.setMovie(null);
+      System.out.println("Input Movie Error! " + e.getMessage());
+    }
+  }
+
+  /**
+   * Runs frames as fast as possible or back at real time.
+   *
+   * @param enabled true to fast forward
+   */
+  private void setFastForward(boolean enabled) {
+    FramePacer current = pacer;
+    fastForward = enabled;
+
+    if (current != null) {
+      current.setSpeed(enabled ? FramePacer.UNLIMITED : 1);
+    }
+  }
+
+  /**
+   * Shows the effective speed in the title while fast forwarding.
+   */
+  private void showSpeed() {
+    long speed = fastForward ? Math.round(pacer.getEffectiveSpeed()) : 1;
+
+    if (speed != shownSpeed) {
+      shownSpeed = speed;
+      mainView.setTitle(speed > 1 ? TITLE + " - " + speed + "x" : TITLE);
+    }
+  }
+
+  /**
+   * Wakes the game loop if it is parked waiting for input.
+   */
+  private void wakePacer() {
+    FramePacer current = pacer;
+
+    if (current != null) {
+      current.wake();
     }
   }
 
@@ -258,54 +385,79 @@ public class Potato8Desktop {
    */
   private void stopLoop() {
     emulatorRunning = false;
+
+    if (pacer != null) {
+      pacer.stop();
+    }
   }
 
   /**
-   * Renders the emulator frame buffer.
+   * Renders the changed region of the emulator frame buffer into the persistent image, scales that region to the
+   * window and presents the result.
    */
   private void render() {
-    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
-    int[] buffer = chip8.getFrameBuffer();
+    RenderEvent renderEvent = new RenderEvent();
+    renderEvent.begin();
+    BufferedImage frame = renderer.update(chip8.getFrameBuffer());
+    renderEvent.commit();
+
+    frame = upscaler.upscale(frame, renderer.getChangedRows(), renderer.getChangedLeft(),
+        renderer.getChangedRight());
+
+    PresentEvent presentEvent = new PresentEvent();
+    presentEvent.begin();
+    mainView.present(frame);
+    presentEvent.commit();
+  }
 
-    for (int y = 0; y < 32; ++y) {
-      for (int x = 0; x < 64; ++x) {
-        int color = buffer[(y * 64) + x];
+  /**
+   * Queues a screenshot of the current frame, written in the background as a PNG in the screenshots directory.
+   *
+   * @param emulator the emulator to capture, on the emulation thread.
+   */
+  private void takeScreenshot(Chip8 emulator) {
+    try {
+      if (screenshots == null) {
+        screenshots = FrameExporter.pngSequence(Paths.get(SCREENSHOT_DIRECTORY), "shot-" + System.currentTimeMillis(),
+            scale);
+      }
 
-        if (color == 1) {
-          image.setRGB(x, y, new Color(255, 255, 255, 255).getRGB());
-        } else {
-          image.setRGB(x, y, new Color(0, 0, 0, 255).getRGB());
-        }
+      if (screenshots.submit(emulator.getFrameBuffer())) {
+        System.out.println("Screenshot Taken!");
       }
+    } catch (IOException e) {
+      System.out.println("Screenshot Error! " + e.getMessage());
     }
-
-    mainView.repaint(image);
   }
 
-  public void capture() {
-    System.out.println("AYY");
+  /**
+   * Starts exporting every frame to an animated GIF next to the rom, or finishes the GIF in the background.
+   */
+  private void toggleGif() {
+    if (gif != null) {
+      gif.finish();
+      gif = null;
+      System.out.println("GIF Saved To " + romPath + ".gif");
+      return;
+    }
 
     try {
-      Thread.sleep(120);
-      Robot r = new Robot();
-
-      // It saves screenshot to desired path
-      String path = "Shot.jpg";
-
-      // Used to get ScreenSize and capture image
-
-      int xPosition = mainView.getContentPane().getX();
-      int yPosition = mainView.getContentPane().getY();
-
-      Rectangle capture = new Rectangle(xPosition, yPosition, mainView.getContentPane().getWidth(), mainView.getContentPane().getHeight());
-
-      BufferedImage Image = r.createScreenCapture(capture);
-
-      ImageIO.write(Image, "jpg", new File(path));
+      gif = FrameExporter.gif(Paths.get(romPath + ".gif"), GIF_SCALE, FramePacer.FRAME_RATE);
+      System.out.println("Recording GIF!");
+    } catch (IOException e) {
+      System.out.println("GIF Error! " + e.getMessage());
+    }
+  }
 
-      System.out.println("Screenshot saved");
-    } catch (AWTException | IOException | InterruptedException ex) {
-      System.out.println(ex);
+  /**
+   * Writes the instructions run last next to the rom.
+   */
+  private void dumpTrace() {
+    try {
+      trace.dump(Paths.get(romPath + ".trace"));
+      System.out.println("Trace Saved To " + romPath + ".trace");
+    } catch (IOException e) {
+      System.out.println("Trace Error! " + e.getMessage());
     }
   }
 
@@ -0,0 +1,443 @@
+package com.gregei.potato8.desktop;
+
+import com.gregei.potato8.desktop.jfr.UpscaleEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Scales the screen image up by a whole factor into a preallocated image sized for the window, so presenting it is
+ * a 1:1 copy.
+ *
+ * Only the changed region is scaled again, the rest of the image keeps the previous frame. Every source row is
+ * expanded into one image row per row of the filter's block, which is then copied to the image rows below it. The
+ * pixel art filters work out each block from the neighbouring pixels when the scale is a multiple of the block size,
+ * and nearest neighbour scales the blocks the rest of the way; at other scales they fall back to nearest neighbour.
+ * Large regions are split into bands of rows, the calling thread scaling the first and a thread of their own each of
+ * the others. The band threads start with the upscaler and park between frames, so handing them a frame allocates
+ * nothing.
+ */
+public class Upscaler implements AutoCloseable {
+  /**
+   * The way every source pixel is turned into a block of image pixels.
+   */
+  public enum Filter {
+    /**
+     * Every pixel becomes a square of its color.
+     */
+    NEAREST(1),
+
+    /**
+     * Scale2x: every pixel becomes 2x2 pixels, corners take the color of matching edge neighbours to round
+     * diagonals.
+     */
+    SCALE2X(2),
+
+    /**
+     * Scale3x: every pixel becomes 3x3 pixels, like Scale2x with edge pixels that follow the diagonals too.
+     */
+    SCALE3X(3);
+
+    private final int block;
+
+    Filter(int block) {
+      this.block = block;
+    }
+
+    /**
+     * Returns the size of the block the filter works out from the neighbours of a pixel.
+     *
+     * @return the block width and height in pixels.
+     */
+    public int getBlock() {
+      return block;
+    }
+
+    /**
+     * Returns the filter after this one, wrapping around.
+     *
+     * @return the next filter.
+     */
+    public Filter next() {
+      return values()[(ordinal() + 1) % values().length];
+    }
+  }
+
+  /**
+   * The most threads scaling bands besides the calling thread.
+   */
+  private static final int MAX_THREADS = 3;
+
+  /**
+   * The fewest image pixels worth a band of their own.
+   */
+  private static final long BAND_PIXELS = 1 << 16;
+
+  /**
+   * The size the image is scaled to fit.
+   */
+  private final int targetWidth, targetHeight;
+
+  /**
+   * The bands of a frame, reused for every frame. The first is scaled on the calling thread.
+   */
+  private final Band[] bands;
+
+  /**
+   * The number of bands of the frame still being scaled on band threads, the last one done unparks the caller.
+   */
+  private final AtomicInteger remaining = new AtomicInteger();
+
+  /**
+   * The thread waiting for the bands of the frame.
+   */
+  private volatile Thread caller;
+
+  /**
+   * True once closed, the band threads end.
+   */
+  private volatile boolean closed;
+
+  private Filter filter = Filter.NEAREST;
+
+  /**
+   * The scaled image and the pixels backing it.
+   */
+  private BufferedImage image;
+  private int[] target;
+
+  /**
+   * The pixels and size of the image scaled last.
+   */
+  private int[] source;
+  private int sourceWidth, sourceHeight;
+
+  /**
+   * The whole factor the image is scaled by, the block of the filter in use and the times a block pixel repeats.
+   */
+  private int scale, block, repeat;
+
+  /**
+   * True if the whole image is scaled next, after the filter changed.
+   */
+  private boolean stale = true;
+
+  /**
+   * Creates an upscaler using up to three threads besides the caller, fewer on machines with fewer cores.
+   *
+   * @param targetWidth the width of the window in pixels.
+   * @param targetHeight the height of the window in pixels.
+   */
+  public Upscaler(int targetWidth, int targetHeight) {
+    this(targetWidth, targetHeight, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_THREADS));
+  }
+
+  /**
+   * Creates an upscaler.
+   *
+   * @param targetWidth the width of the window in pixels.
+   * @param targetHeight the height of the window in pixels.
+   * @param threads the number of threads scaling bands besides the caller, 0 to scale on the calling thread only.
+   */
+  public Upscaler(int targetWidth, int targetHeight, int threads) {
+    this.targetWidth = targetWidth;
+    this.targetHeight = targetHeight;
+
+    threads = Math.max(threads, 0);
+    bands = new Band[threads + 1];
+
+    for (int i = 0; i < bands.length; ++i) {
+      bands[i] = new Band();
+    }
+
+    for (int i = 1; i < bands.length; ++i) {
+      bands[i].thread = new Thread(bands[i], "potato8-upscale-" + i);
+      bands[i].thread.setDaemon(true);
+      bands[i].thread.start();
+    }
+  }
+
+  /**
+   * Selects the filter, the next frame is scaled whole.
+   *
+   * @param filter the filter to scale with.
+   */
+  public void setFilter(Filter filter) {
+    this.filter = filter;
+    stale = true;
+  }
+
+  /**
+   * Returns the filter scaled with.
+   *
+   * @return the filter.
+   */
+  public Filter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Scales the changed region of the screen image into the scaled image. The whole image is scaled if the source
+   * image or its size changed since the last call.
+   *
+   * @param sourceImage the screen image, of type {@link BufferedImage#TYPE_INT_RGB}.
+   * @param rows the source rows changed, bit y set for row y.
+   * @param left the first source column changed.
+   * @param right the column after the last source column changed.
+   * @return the scaled image, the same instance until the source size changes.
+   */
+  public BufferedImage upscale(BufferedImage sourceImage, long rows, int left, int right) {
+    int[] pixels = ((DataBufferInt) sourceImage.getRaster().getDataBuffer()).getData();
+
+    if (stale || pixels != source || sourceImage.getWidth() != sourceWidth
+        || sourceImage.getHeight() != sourceHeight) {
+      resize(sourceImage, pixels);
+      rows = -1L;
+      left = 0;
+      right = sourceWidth;
+    }
+
+    long all = sourceHeight == Long.SIZE ? -1L : (1L << sourceHeight) - 1;
+
+    if (block > 1) {
+      // A block depends on the pixels around it, the changes reach one pixel further.
+      rows |= rows << 1 | rows >>> 1;
+      left = Math.max(left - 1, 0);
+      right = Math.min(right + 1, sourceWidth);
+    }
+
+    rows &= all;
+
+    if (rows == 0 || left >= right) {
+      return image;
+    }
+
+    UpscaleEvent event = new UpscaleEvent();
+    event.begin();
+
+    long written = (long) Long.bitCount(rows) * (right - left) * scale * scale;
+    int count = (int) Math.max(Math.min(bands.length, written / BAND_PIXELS), 1);
+    int first = Long.numberOfTrailingZeros(rows);
+    int end = Long.SIZE - Long.numberOfLeadingZeros(rows);
+
+    if (count == 1) {
+      scaleRows(rows, first, end, left, right);
+    } else {
+      caller = Thread.currentThread();
+      remaining.set(count - 1);
+
+      for (int i = 1; i < count; ++i) {
+        bands[i].start(rows, first + (end - first) * i / count, first + (end - first) * (i + 1) / count, left,
+            right);
+      }
+
+      scaleRows(rows, first, first + (end - first) / count, left, right);
+      awaitBands();
+    }
+
+    event.pixels = written;
+    event.bands = count;
+    event.commit();
+
+    return image;
+  }
+
+  /**
+   * Waits for every band of a frame, even if interrupted, since the image is still being written.
+   */
+  private void awaitBands() {
+    boolean interrupted = false;
+
+    while (remaining.get() != 0) {
+      LockSupport.park(this);
+
+      // Parking returns at once while interrupted, the interrupt is kept for after the frame.
+      interrupted |= Thread.interrupted();
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Picks the scale for a source image, recreating the scaled image if its size changed.
+   */
+  private void resize(BufferedImage sourceImage, int[] pixels) {
+    source = pixels;
+    sourceWidth = sourceImage.getWidth();
+    sourceHeight = sourceImage.getHeight();
+    scale = Math.max(Math.min(targetWidth / sourceWidth, targetHeight / sourceHeight), 1);
+    block = scale % filter.getBlock() == 0 ? filter.getBlock() : 1;
+    repeat = scale / block;
+    stale = false;
+
+    if (image == null || image.getWidth() != sourceWidth * scale || image.getHeight() != sourceHeight * scale) {
+      image = new BufferedImage(sourceWidth * scale, sourceHeight * scale, BufferedImage.TYPE_INT_RGB);
+      target = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+  }
+
+  /**
+   * Scales the changed rows of a range.
+   */
+  private void scaleRows(long rows, int from, int to, int left, int right) {
+    for (int y = from; y < to; ++y) {
+      if ((rows >>> y & 1) != 0) {
+        scaleRow(y, left, right);
+      }
+    }
+  }
+
+  /**
+   * Scales one source row between two columns, one image row per row of the block copied down to the rows the
+   * block pixels repeat over.
+   */
+  private void scaleRow(int y, int left, int right) {
+    int width = sourceWidth * scale;
+    int up = Math.max(y - 1, 0) * sourceWidth;
+    int row = y * sourceWidth;
+    int down = Math.min(y + 1, sourceHeight - 1) * sourceWidth;
+
+    for (int j = 0; j < block; ++j) {
+      int line = (y * scale + j * repeat) * width;
+
+      for (int x = left; x < right; ++x) {
+        int offset = line + x * scale;
+        int e = source[row + x];
+
+        if (block == 1) {
+          fill(offset, scale, e);
+          continue;
+        }
+
+        int l = Math.max(x - 1, 0), r = Math.min(x + 1, sourceWidth - 1);
+        int b = source[up + x], d = source[row + l], f = source[row + r], h = source[down + x];
+
+        if (b == h || d == f) {
+          fill(offset, scale, e);
+        } else if (block == 2) {
+          scale2x(offset, j, b, d, e, f, h);
+        } else {
+          scale3x(offset, j, source[up + l], b, source[up + r], d, e, f, source[down + l], h, source[down + r]);
+        }
+      }
+
+      for (int k = 1; k < repeat; ++k) {
+        System.arraycopy(target, line + left * scale, target, line + k * width + left * scale,
+            (right - left) * scale);
+      }
+    }
+  }
+
+  /**
+   * Writes one row of a Scale2x block, the neighbours named as in the reference: b above, d left, f right, h below.
+   */
+  private void scale2x(int offset, int j, int b, int d, int e, int f, int h) {
+    if (j == 0) {
+      fill(offset, repeat, d == b ? d : e);
+      fill(offset + repeat, repeat, b == f ? f : e);
+    } else {
+      fill(offset, repeat, d == h ? d : e);
+      fill(offset + repeat, repeat, h == f ? f : e);
+    }
+  }
+
+  /**
+   * Writes one row of a Scale3x block, the 3x3 neighbourhood named a to i row by row with e in the middle.
+   */
+  private void scale3x(int offset, int j, int a, int b, int c, int d, int e, int f, int g, int h, int i) {
+    if (j == 0) {
+      fill(offset, repeat, d == b ? d : e);
+      fill(offset + repeat, repeat, d == b && e != c || b == f && e != a ? b : e);
+      fill(offset + repeat * 2, repeat, b == f ? f : e);
+    } else if (j == 1) {
+      fill(offset, repeat, d == b && e != g || d == h && e != a ? d : e);
+      fill(offset + repeat, repeat, e);
+      fill(offset + repeat * 2, repeat, b == f && e != i || h == f && e != c ? f : e);
+    } else {
+      fill(offset, repeat, d == h ? d : e);
+      fill(offset + repeat, repeat, d == h && e != i || h == f && e != g ? h : e);
+      fill(offset + repeat * 2, repeat, h == f ? f : e);
+    }
+  }
+
+  private void fill(int offset, int length, int color) {
+    for (int k = 0; k < length; ++k) {
+      target[offset + k] = color;
+    }
+  }
+
+  /**
+   * Returns the scaled image.
+   *
+   * @return the image, or null before the first call to {@link #upscale}.
+   */
+  public BufferedImage getImage() {
+    return image;
+  }
+
+  /**
+   * Stops the threads scaling bands.
+   */
+  @Override
+  public void close() {
+    closed = true;
+
+    for (int i = 1; i < bands.length; ++i) {
+      LockSupport.unpark(bands[i].thread);
+    }
+  }
+
+  /**
+   * A range of rows, scaled on a thread of its own that parks until it is handed the rows of a frame.
+   */
+  private final class Band implements Runnable {
+    private long rows;
+    private int from, to, left, right;
+
+    /**
+     * The thread scaling the band, null for the first band scaled on the calling thread.
+     */
+    private Thread thread;
+
+    /**
+     * True from the time the band is handed rows until they are scaled, publishing the rows to the band thread.
+     */
+    private volatile boolean pending;
+
+    /**
+     * Hands the band the rows of a frame and wakes its thread.
+     */
+    void start(long rows, int from, int to, int left, int right) {
+      this.rows = rows;
+      this.from = from;
+      this.to = to;
+      this.left = left;
+      this.right = right;
+      pending = true;
+      LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+      while (!closed) {
+        if (!pending) {
+          LockSupport.park(this);
+          continue;
+        }
+
+        try {
+          scaleRows(rows, from, to, left, right);
+        } finally {
+          pending = false;
+
+          if (remaining.decrementAndGet() == 0) {
+            LockSupport.unpark(caller);
+          }
+        }
+      }
+    }
+  }
+}
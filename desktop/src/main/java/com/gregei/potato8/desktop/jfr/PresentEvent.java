@@ -0,0 +1,19 @@
+package com.gregei.potato8.desktop.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The screen image was drawn to the window and flipped.
+ */
+@Name("com.gregei.potato8.Present")
+@Label("Present")
+@Category("Potato-8")
+@Description("Drawing the screen image to the window and flipping the buffers")
+@StackTrace(false)
+public class PresentEvent extends Event {
+}
@@ -0,0 +1,19 @@
+package com.gregei.potato8.desktop.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The frame buffer was converted into the image presented on screen.
+ */
+@Name("com.gregei.potato8.Render")
+@Label("Render")
+@Category("Potato-8")
+@Description("Conversion of the frame buffer into the screen image")
+@StackTrace(false)
+public class RenderEvent extends Event {
+}
@@ -0,0 +1,26 @@
+package com.gregei.potato8.desktop.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The changed region of the screen image was scaled up to the window size.
+ */
+@Name("com.gregei.potato8.Upscale")
+@Label("Upscale")
+@Category("Potato-8")
+@Description("Scaling of the changed screen region to the window size")
+@StackTrace(false)
+public class UpscaleEvent extends Event {
+    @Label("Pixels")
+    @Description("The number of window pixels written")
+    public long pixels;
+
+    @Label("Bands")
+    @Description("The number of row bands the work was split into, one per thread")
+    public int bands;
+}
@@ -2,41 +2,65 @@ package com.gregei.potato8.desktop.views;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 
 public class MainView extends JFrame {
     /**
-     * JPanel to be drawn on
+     * Canvas to be drawn on, painted actively through its buffer strategy rather than by the event thread.
      */
-    private JPanel canvas;
+    private Canvas canvas;
 
     /**
-     * The image to be drawn
+     * The page flipping strategy backed by accelerated volatile images, created once the canvas is displayable.
      */
-    private BufferedImage image;
+    private BufferStrategy strategy;
 
     public MainView(int width, int height, int scale){
-        canvas = new JPanel(){
-            @Override
-            protected void paintComponent(Graphics g) {
-                super.paintComponent(g);
-
-                g.drawImage(image, 0, 0, width * scale, height * scale, null);
-            }
-        };
-
+        canvas = new Canvas();
+        canvas.setIgnoreRepaint(true);
+        canvas.setFocusable(false);
+        canvas.setBackground(Color.BLACK);
         canvas.setPreferredSize(new Dimension(width * scale, height * scale));
+
+        setIgnoreRepaint(true);
         getContentPane().add(canvas);
         pack();
     }
 
     /**
-     * Repaints the canvas panel with the passed image.
+     * Draws the passed image and flips it to the screen, retrying if the accelerated buffers were lost while drawing.
+     * An image the size of the canvas is copied 1:1, any other is scaled to fill it.
      *
      * @param image the image to be drawn
      */
-    public void repaint(BufferedImage image){
-        this.image = image;
-        canvas.repaint();
+    public void present(BufferedImage image){
+        if (strategy == null){
+            if (!canvas.isDisplayable()){
+                return;
+            }
+
+            canvas.createBufferStrategy(2);
+            strategy = canvas.getBufferStrategy();
+        }
+
+        do {
+            do {
+                Graphics g = strategy.getDrawGraphics();
+
+                if (image.getWidth() == canvas.getWidth() && image.getHeight() == canvas.getHeight()){
+                    g.drawImage(image, 0, 0, null);
+                }
+                else{
+                    g.drawImage(image, 0, 0, canvas.getWidth(), canvas.getHeight(), null);
+                }
+
+                g.dispose();
+            } while (strategy.contentsRestored());
+
+            strategy.show();
+        } while (strategy.contentsLost());
+
+        Toolkit.getDefaultToolkit().sync();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,57 @@
+package com.gregei.potato8.server;
+
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.state.DeltaCodec;
+
+/**
+ * The wire format spoken between the session server and its clients. Every message starts with a type byte, all
+ * numbers are big endian.
+ *
+ * Client to server:
+ * KEY, the key 0 to F, 1 for a press or 0 for a release.
+ *
+ * Server to client:
+ * HELLO, the int session id, sent once after connecting.
+ * FRAME, the int length of the rest, the long frame version, then the frame buffer state (32 big endian rows of 64
+ * pixels, see {@link FrameBuffer#saveState}) encoded by {@link DeltaCodec} against the previous FRAME sent on the
+ * connection, or against a blank display for the first.
+ */
+public final class Protocol {
+    /**
+     * The port the server listens on by default.
+     */
+    public static final int DEFAULT_PORT = 8808;
+
+    /**
+     * The message types.
+     */
+    public static final byte KEY = 1, HELLO = 2, FRAME = 3;
+
+    /**
+     * The size of a KEY message.
+     */
+    public static final int KEY_SIZE = 3;
+
+    /**
+     * The size of a HELLO message.
+     */
+    public static final int HELLO_SIZE = 5;
+
+    /**
+     * The size of a FRAME header: type, length and version.
+     */
+    public static final int FRAME_HEADER_SIZE = 13;
+
+    /**
+     * The size of the frame state a FRAME delta is encoded from.
+     */
+    public static final int FRAME_STATE_SIZE = FrameBuffer.STATE_SIZE;
+
+    /**
+     * The largest a FRAME message can get.
+     */
+    public static final int MAX_FRAME_SIZE = FRAME_HEADER_SIZE + DeltaCodec.maxEncodedSize(FRAME_STATE_SIZE);
+
+    private Protocol(){
+    }
+}
@@ -0,0 +1,145 @@
+package com.gregei.potato8.server;
+
+import com.gregei.potato8.core.cpu.EngineType;
+import com.gregei.potato8.core.timing.FramePacer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs a session server on the loopback interface, giving every connection its own emulator running the rom.
+ *
+ * Usage: ServerMain [--port N] [--engine TYPE] [--ipf N] [--threads N] [--stats SECONDS] ROM_PATH
+ *
+ * Every stats interval a line of totals is printed: open and active sessions, slices run and missed, the share of
+ * one core spent emulating, and the frames and bytes sent, followed by the sessions that used the most cpu.
+ */
+public class ServerMain {
+    /**
+     * The number of busiest sessions printed with the stats.
+     */
+    private static final int TOP_SESSIONS = 3;
+
+    public static void main(String[] args){
+        int port = Protocol.DEFAULT_PORT;
+        EngineType engine = EngineType.INTERPRETER;
+        int instructionsPerFrame = FramePacer.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int statsSeconds = 5;
+        String romPath = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i){
+                switch (args[i]){
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--engine":
+                        engine = EngineType.valueOf(args[++i].toUpperCase());
+                        break;
+
+                    case "--ipf":
+                        instructionsPerFrame = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--stats":
+                        statsSeconds = Integer.parseInt(args[++i]);
+                        break;
+
+                    default:
+                        romPath = args[i];
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            romPath = null;
+        }
+
+        if (romPath == null || statsSeconds < 1){
+            System.out.println("Usage: ServerMain [--port N] [--engine TYPE] [--ipf N] [--threads N] "
+                    + "[--stats SECONDS] ROM_PATH");
+            return;
+        }
+
+        SessionServer server;
+
+        try {
+            byte[] rom = Files.readAllBytes(Paths.get(romPath));
+
+            server = new SessionServer(rom, engine, instructionsPerFrame, threads);
+            server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            System.out.println("Server Error! " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        System.out.println("Listening on port " + server.getPort() + " with " + threads + " worker threads, "
+                + (Session.CPU_TIME ? "thread cpu time" : "wall time") + " accounting");
+
+        long cpuNanos = 0, slices = 0, frames = 0, bytes = 0;
+        long last = System.nanoTime();
+
+        while (true){
+            try {
+                Thread.sleep(statsSeconds * 1000L);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            long now = System.nanoTime();
+            double seconds = (now - last) / 1e9;
+            last = now;
+
+            List<Session> sessions = new ArrayList<>(server.getSessions());
+            int active = 0;
+
+            for (Session session : sessions){
+                if (!session.isWaiting()){
+                    active++;
+                }
+            }
+
+            long missed = 0;
+
+            for (Session session : sessions){
+                missed += session.getMissedSlices();
+            }
+
+            System.out.println(String.format("sessions %d active %d | %.0f slices/s missed %d | cpu %.1f%% | "
+                            + "%.0f frames/s %.1f KB/s", sessions.size(), active,
+                    (server.getSlices() - slices) / seconds, missed,
+                    (server.getCpuNanos() - cpuNanos) / seconds / 1e7,
+                    (server.getFramesSent() - frames) / seconds, (server.getBytesSent() - bytes) / seconds / 1024));
+
+            cpuNanos = server.getCpuNanos();
+            slices = server.getSlices();
+            frames = server.getFramesSent();
+            bytes = server.getBytesSent();
+
+            sessions.sort(Comparator.comparingLong(Session::getCpuNanos).reversed());
+
+            for (int i = 0; i < Math.min(TOP_SESSIONS, sessions.size()); ++i){
+                Session session = sessions.get(i);
+
+                System.out.println(String.format("  session %d: %.1f ms cpu, %d slices, %.2f us/slice, "
+                                + "%d frames %d bytes sent", session.getId(), session.getCpuNanos() / 1e6,
+                        session.getSlices(), session.getCpuNanos() / 1e3 / Math.max(session.getSlices(), 1),
+                        session.getFramesSent(), session.getBytesSent()));
+            }
+        }
+
+        server.close();
+    }
+}
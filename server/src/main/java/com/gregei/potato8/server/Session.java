@@ -0,0 +1,350 @@
+package com.gregei.potato8.server;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.state.DeltaCodec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One player connected to the server, owning an emulator and the state of its connection.
+ *
+ * The emulator only runs on the worker given a time slice by the server, at most one at a time. The connection is
+ * only touched by the server's network thread, which queues key events into the emulator and encodes the newest
+ * published frame whenever the socket can take it, so a slow client skips frames instead of queueing them.
+ *
+ * Accounting counters have a single writer each and can be read from any thread.
+ */
+public class Session implements Runnable {
+    /**
+     * Measures the cpu time of the calling thread, when the platform supports it.
+     */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * True if slices are timed in thread cpu time, false if in wall time.
+     */
+    static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+    /**
+     * The id sent to the client.
+     */
+    private final int id;
+
+    /**
+     * The server running the session.
+     */
+    private final SessionServer server;
+
+    /**
+     * The emulator of the session.
+     */
+    private final Chip8 chip8;
+
+    /**
+     * The connection to the client.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The registration of the connection, set once by the network thread.
+     */
+    SelectionKey key;
+
+    /**
+     * Received bytes not yet parsed, only touched by the network thread.
+     */
+    final ByteBuffer input = ByteBuffer.allocate(Protocol.KEY_SIZE * 32);
+
+    /**
+     * The message being sent, only touched by the network thread.
+     */
+    private final byte[] outputBytes = new byte[Protocol.MAX_FRAME_SIZE];
+    final ByteBuffer output = ByteBuffer.wrap(outputBytes);
+
+    /**
+     * The frame state last sent and the one being encoded, only touched by the network thread.
+     */
+    private byte[] sent = new byte[Protocol.FRAME_STATE_SIZE];
+    private byte[] encoding = new byte[Protocol.FRAME_STATE_SIZE];
+
+    /**
+     * The version of the frame last sent.
+     */
+    private long sentVersion;
+
+    /**
+     * The newest frame state published by the worker, guarded by itself.
+     */
+    private final byte[] published = new byte[Protocol.FRAME_STATE_SIZE];
+
+    /**
+     * The version of the newest frame published, guarded by the published state.
+     */
+    private long publishedVersion;
+
+    /**
+     * True while a time slice is queued or running, so a session never runs on two workers at once.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * True while the session is in the server's queue of frames to send.
+     */
+    final AtomicBoolean sendQueued = new AtomicBoolean();
+
+    /**
+     * True if the last slice left the emulator waiting for input or halted, it needs no slices until a key arrives.
+     */
+    private volatile boolean waiting;
+
+    /**
+     * True if a key event arrived since the last slice started.
+     */
+    private volatile boolean inputPending;
+
+    /**
+     * True once the connection is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The time spent running slices, in thread cpu nanoseconds if supported.
+     */
+    private volatile long cpuNanos;
+
+    /**
+     * The number of slices run, emulator cycles run, slices missed because the previous one had not finished, frames
+     * sent and bytes sent.
+     */
+    private volatile long slices, cycles, missedSlices, framesSent, bytesSent;
+
+    Session(int id, SessionServer server, Chip8 chip8, SocketChannel channel){
+        this.id = id;
+        this.server = server;
+        this.chip8 = chip8;
+        this.channel = channel;
+
+        output.put(Protocol.HELLO).putInt(id).flip();
+    }
+
+    /**
+     * Runs one time slice: queued key events are applied, then one frame runs and its display is published if it
+     * changed.
+     */
+    @Override
+    public void run(){
+        try {
+            long start = now();
+            inputPending = false;
+
+            chip8.runFrame(server.getInstructionsPerFrame());
+            waiting = chip8.isWaitingForInput() || !chip8.isCpuRunning();
+
+            long version = chip8.getFrameVersion();
+            boolean changed;
+
+            synchronized (published){
+                changed = version != publishedVersion;
+
+                if (changed){
+                    chip8.getFrameBuffer().saveState(ByteBuffer.wrap(published));
+                    publishedVersion = version;
+                }
+            }
+
+            long nanos = now() - start;
+
+            cycles = chip8.getCycleCount();
+            slices++;
+            cpuNanos += nanos;
+            server.addSlice(nanos);
+
+            if (changed){
+                server.queueSend(this);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Session " + id + " Error! " + e);
+            server.close(this);
+        } finally {
+            scheduled.set(false);
+        }
+    }
+
+    /**
+     * Claims the next time slice, called by the ticker.
+     *
+     * @return true if the session needs a slice and none is queued or running.
+     */
+    boolean schedule(){
+        if (closed || (waiting && !inputPending)){
+            return false;
+        }
+
+        if (!scheduled.compareAndSet(false, true)){
+            missedSlices++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Queues a key event for the next slice, called by the network thread.
+     *
+     * @param key the chip-8 key.
+     * @param pressed true for a press, false for a release.
+     */
+    void queueKey(int key, boolean pressed){
+        if (chip8.queueKey(key, pressed)){
+            inputPending = true;
+        }
+    }
+
+    /**
+     * Encodes the newest published frame into the output buffer as a FRAME message, called by the network thread
+     * once the previous message is sent.
+     *
+     * @return true if a frame was encoded, false if the client already has the newest.
+     */
+    boolean encodeFrame(){
+        long version;
+
+        synchronized (published){
+            if (publishedVersion == sentVersion){
+                return false;
+            }
+
+            System.arraycopy(published, 0, encoding, 0, published.length);
+            version = publishedVersion;
+        }
+
+        int length = DeltaCodec.encode(encoding, sent, outputBytes, Protocol.FRAME_HEADER_SIZE);
+
+        output.clear();
+        output.put(0, Protocol.FRAME).putInt(1, length + Long.BYTES).putLong(5, version);
+        output.limit(Protocol.FRAME_HEADER_SIZE + length);
+
+        byte[] previous = sent;
+        sent = encoding;
+        encoding = previous;
+        sentVersion = version;
+        framesSent++;
+
+        return true;
+    }
+
+    /**
+     * Counts bytes written to the connection, called by the network thread.
+     */
+    void addBytesSent(int bytes){
+        bytesSent += bytes;
+    }
+
+    /**
+     * Marks the session closed, no more slices are given to it.
+     */
+    void markClosed(){
+        closed = true;
+    }
+
+    private static long now(){
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Returns the id sent to the client.
+     *
+     * @return the session id.
+     */
+    public int getId(){
+        return id;
+    }
+
+    /**
+     * Returns the connection to the client.
+     *
+     * @return the socket channel.
+     */
+    public SocketChannel getChannel(){
+        return channel;
+    }
+
+    /**
+     * Returns true if the session needs no time slices until a key arrives.
+     *
+     * @return true if waiting for input or halted.
+     */
+    public boolean isWaiting(){
+        return waiting;
+    }
+
+    /**
+     * Returns true once the connection is closed.
+     *
+     * @return true if closed.
+     */
+    public boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Returns the time spent running the emulator, in thread cpu time if the platform supports it, otherwise in
+     * wall time.
+     *
+     * @return the nanoseconds spent in time slices.
+     */
+    public long getCpuNanos(){
+        return cpuNanos;
+    }
+
+    /**
+     * Returns the number of time slices run, one frame each.
+     *
+     * @return the slice count.
+     */
+    public long getSlices(){
+        return slices;
+    }
+
+    /**
+     * Returns the number of emulator cycles run.
+     *
+     * @return the cycle count at the end of the last slice.
+     */
+    public long getCycles(){
+        return cycles;
+    }
+
+    /**
+     * Returns the number of ticks the session needed a slice but the previous one had not finished, a sign the
+     * workers are overloaded.
+     *
+     * @return the missed slice count.
+     */
+    public long getMissedSlices(){
+        return missedSlices;
+    }
+
+    /**
+     * Returns the number of FRAME messages sent.
+     *
+     * @return the frame count.
+     */
+    public long getFramesSent(){
+        return framesSent;
+    }
+
+    /**
+     * Returns the number of bytes written to the connection.
+     *
+     * @return the byte count.
+     */
+    public long getBytesSent(){
+        return bytesSent;
+    }
+}
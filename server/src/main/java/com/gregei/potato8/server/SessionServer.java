@@ -0,0 +1,468 @@
+package com.gregei.potato8.server;
+
+import com.gregei.potato8.core.Chip8;
+import com.gregei.potato8.core.cpu.EngineType;
+import com.gregei.potato8.core.timing.FramePacer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hosts many player sessions in one process, each with its own emulator, and streams their displays to the clients.
+ *
+ * A ticker gives every session that needs it one time slice per 60 Hz frame, run on a fixed pool of worker threads.
+ * A slice is one emulator frame, so no session can hold a worker longer than a frame's worth of instructions, and
+ * the pool's queue serves slices in tick order. A session still running its previous slice when the next tick comes
+ * misses that tick rather than queueing a second one. Sessions waiting for input get no slices until a key arrives,
+ * so idle players cost nothing but their memory.
+ *
+ * All sockets are served by one non-blocking network thread: it accepts connections, applies key events and sends
+ * each client the newest frame of its session as a delta against the frame it sent before.
+ */
+public class SessionServer implements Closeable {
+    /**
+     * The rom every session runs.
+     */
+    private final byte[] rom;
+
+    /**
+     * The engine every session runs on.
+     */
+    private final EngineType engine;
+
+    /**
+     * The number of cycles run per slice.
+     */
+    private final int instructionsPerFrame;
+
+    /**
+     * The open sessions by id.
+     */
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Sessions with a published frame the network thread has not looked at yet.
+     */
+    private final ConcurrentLinkedQueue<Session> sendQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * True if the network thread was woken and has not yet drained the send queue, saves redundant wakeups.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /**
+     * The id given to the next session.
+     */
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * The threads running time slices.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The thread handing out time slices every frame.
+     */
+    private final ScheduledExecutorService ticker;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * The thread serving every socket.
+     */
+    private Thread networkThread;
+
+    /**
+     * Flag to represent if the server is running.
+     */
+    private volatile boolean running;
+
+    /**
+     * The number of ticks handed out.
+     */
+    private volatile long ticks;
+
+    /**
+     * The time spent in slices and the number of slices run by every session, closed ones included.
+     */
+    private final LongAdder cpuNanos = new LongAdder(), slices = new LongAdder();
+
+    /**
+     * The number of frames and bytes sent to every client, only written by the network thread.
+     */
+    private volatile long framesSent, bytesSent;
+
+    /**
+     * Creates a server, it listens once started.
+     *
+     * @param rom the bytes of the rom every session runs.
+     * @param engine the engine every session runs on.
+     * @param instructionsPerFrame the number of cycles run per slice.
+     * @param workerThreads the number of threads running slices.
+     * @throws IOException if the socket cannot be opened.
+     */
+    public SessionServer(byte[] rom, EngineType engine, int instructionsPerFrame, int workerThreads)
+            throws IOException {
+        this.rom = rom.clone();
+        this.engine = engine;
+        this.instructionsPerFrame = Math.max(instructionsPerFrame, 1);
+
+        workers = Executors.newFixedThreadPool(Math.max(workerThreads, 1), threadFactory("potato8-session-"));
+        ticker = Executors.newSingleThreadScheduledExecutor(threadFactory("potato8-ticker-"));
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+    }
+
+    /**
+     * Starts listening and handing out time slices.
+     *
+     * @param address the address to listen on.
+     * @throws IOException if the address cannot be bound.
+     */
+    public void start(InetSocketAddress address) throws IOException {
+        serverChannel.bind(address, 4096);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+
+        networkThread = new Thread(this::serve, "potato8-network");
+        networkThread.start();
+
+        long frameNanos = 1_000_000_000L / FramePacer.FRAME_RATE;
+        ticker.scheduleAtFixedRate(this::tick, frameNanos, frameNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the server and closes every connection.
+     */
+    @Override
+    public void close(){
+        running = false;
+
+        ticker.shutdownNow();
+        workers.shutdownNow();
+        selector.wakeup();
+
+        try {
+            if (networkThread != null){
+                networkThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Session session : sessions.values()){
+            close(session);
+        }
+
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("Server Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gives every session that needs it one time slice.
+     */
+    private void tick(){
+        for (Session session : sessions.values()){
+            if (session.schedule()){
+                workers.execute(session);
+            }
+        }
+
+        ticks++;
+    }
+
+    /**
+     * Queues a session whose slice published a new frame, called by the workers.
+     */
+    void queueSend(Session session){
+        if (session.sendQueued.compareAndSet(false, true)){
+            sendQueue.add(session);
+
+            if (wakeupPending.compareAndSet(false, true)){
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Counts a finished slice, called by the workers.
+     */
+    void addSlice(long nanos){
+        cpuNanos.add(nanos);
+        slices.increment();
+    }
+
+    /**
+     * Closes a session's connection, called from any thread.
+     */
+    void close(Session session){
+        session.markClosed();
+        sessions.remove(session.getId());
+
+        try {
+            session.getChannel().close();
+        } catch (IOException e) {
+            // The session is gone either way.
+        }
+    }
+
+    /**
+     * The network thread loop.
+     */
+    private void serve(){
+        while (running){
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.out.println("Server Error! " + e.getMessage());
+                break;
+            }
+
+            wakeupPending.set(false);
+
+            Session queued;
+
+            while ((queued = sendQueue.poll()) != null){
+                queued.sendQueued.set(false);
+
+                if (!queued.isClosed()){
+                    send(queued);
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while (keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()){
+                    continue;
+                }
+
+                if (key.isAcceptable()){
+                    accept();
+                    continue;
+                }
+
+                Session session = (Session)key.attachment();
+
+                if (key.isReadable()){
+                    receive(session);
+                }
+
+                if (key.isValid() && key.isWritable()){
+                    send(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts every pending connection and gives each a session.
+     */
+    private void accept(){
+        SocketChannel channel;
+
+        try {
+            while ((channel = serverChannel.accept()) != null){
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                Chip8 chip8 = new Chip8();
+                chip8.setEngine(engine);
+                chip8.loadGame(rom);
+                chip8.setCpuRunning(true);
+
+                Session session = new Session(nextId.incrementAndGet(), this, chip8, channel);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                sessions.put(session.getId(), session);
+
+                send(session);
+            }
+        } catch (IOException e) {
+            System.out.println("Accept Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads key events from a connection.
+     */
+    private void receive(Session session){
+        ByteBuffer input = session.input;
+
+        try {
+            if (session.getChannel().read(input) < 0){
+                close(session);
+                return;
+            }
+        } catch (IOException e) {
+            close(session);
+            return;
+        }
+
+        input.flip();
+
+        while (input.remaining() >= Protocol.KEY_SIZE){
+            if (input.get() != Protocol.KEY){
+                close(session);
+                return;
+            }
+
+            int key = input.get();
+            boolean pressed = input.get() != 0;
+
+            session.queueKey(key & 0xF, pressed);
+        }
+
+        input.compact();
+    }
+
+    /**
+     * Writes the pending message and then the newest frame, until both are sent or the socket is full.
+     */
+    private void send(Session session){
+        ByteBuffer output = session.output;
+
+        try {
+            while (true){
+                if (output.hasRemaining()){
+                    int written = session.getChannel().write(output);
+                    session.addBytesSent(written);
+                    bytesSent += written;
+
+                    if (output.hasRemaining()){
+                        setInterest(session.key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                if (!session.encodeFrame()){
+                    setInterest(session.key, SelectionKey.OP_READ);
+                    return;
+                }
+
+                framesSent++;
+            }
+        } catch (IOException | RuntimeException e) {
+            close(session);
+        }
+    }
+
+    private static void setInterest(SelectionKey key, int ops){
+        if (key.interestOps() != ops){
+            key.interestOps(ops);
+        }
+    }
+
+    private static ThreadFactory threadFactory(String prefix){
+        AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the local port, or -1 if not started.
+     */
+    public int getPort(){
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the open sessions, a live view.
+     *
+     * @return the sessions.
+     */
+    public Collection<Session> getSessions(){
+        return sessions.values();
+    }
+
+    /**
+     * Returns the number of ticks handed out since the server started.
+     *
+     * @return the tick count.
+     */
+    public long getTicks(){
+        return ticks;
+    }
+
+    /**
+     * Returns the time spent running slices by every session since the server started, see
+     * {@link Session#getCpuNanos}.
+     *
+     * @return the nanoseconds spent in slices.
+     */
+    public long getCpuNanos(){
+        return cpuNanos.sum();
+    }
+
+    /**
+     * Returns the number of slices run by every session since the server started.
+     *
+     * @return the slice count.
+     */
+    public long getSlices(){
+        return slices.sum();
+    }
+
+    /**
+     * Returns the number of frames sent to every client since the server started.
+     *
+     * @return the frame count.
+     */
+    public long getFramesSent(){
+        return framesSent;
+    }
+
+    /**
+     * Returns the number of bytes sent to every client since the server started.
+     *
+     * @return the byte count.
+     */
+    public long getBytesSent(){
+        return bytesSent;
+    }
+
+    /**
+     * Returns the number of cycles each session runs per slice.
+     *
+     * @return the instructions per frame.
+     */
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+}
@@ -0,0 +1,310 @@
+package com.gregei.potato8.server;
+
+import com.gregei.potato8.core.graphics.FrameBuffer;
+import com.gregei.potato8.core.state.DeltaCodec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A client for the session server that doubles as a load generator.
+ *
+ * Usage: TestClient [--port N] [--sessions N] [--active N] [--seconds N] [--show]
+ *
+ * Opens the given number of sessions from one thread and decodes every frame they receive. The first --active
+ * sessions press and release random keys ten times a second, the rest stay idle. Frames and bytes received are
+ * printed every second. With --show the display of the first session is printed as text every second.
+ */
+public class TestClient {
+    /**
+     * The time between random key events of the active sessions.
+     */
+    private static final long KEY_INTERVAL_NANOS = 100_000_000L;
+
+    /**
+     * One connection to the server with the display decoded from its frames.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer input = ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE * 4);
+        private final ByteBuffer output = ByteBuffer.allocate(Protocol.KEY_SIZE);
+        private final byte[] frame = new byte[Protocol.FRAME_STATE_SIZE];
+        private int id = -1;
+        private long version;
+        private int heldKey = -1;
+
+        private Connection(SocketChannel channel){
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * The number of frames and bytes received in total.
+     */
+    private static long frames, bytes;
+
+    public static void main(String[] args){
+        int port = Protocol.DEFAULT_PORT;
+        int count = 1, active = 0, seconds = 10;
+        boolean show = false;
+
+        try {
+            for (int i = 0; i < args.length; ++i){
+                switch (args[i]){
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--sessions":
+                        count = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--active":
+                        active = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--seconds":
+                        seconds = Integer.parseInt(args[++i]);
+                        break;
+
+                    case "--show":
+                        show = true;
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            count = 0;
+        }
+
+        if (count < 1){
+            System.out.println("Usage: TestClient [--port N] [--sessions N] [--active N] [--seconds N] [--show]");
+            return;
+        }
+
+        try {
+            run(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), count, active, seconds, show);
+        } catch (IOException e) {
+            System.out.println("Client Error! " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void run(InetSocketAddress address, int count, int active, int seconds, boolean show)
+            throws IOException {
+        Selector selector = Selector.open();
+        List<Connection> connections = new ArrayList<>(count);
+
+        long connectStart = System.nanoTime();
+
+        for (int i = 0; i < count; ++i){
+            SocketChannel channel = SocketChannel.open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+
+            Connection connection = new Connection(channel);
+            channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+
+        System.out.println(String.format("Opened %d sessions in %.0f ms", count,
+                (System.nanoTime() - connectStart) / 1e6));
+
+        Random random = new Random();
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long nextKeys = start, nextReport = start + 1_000_000_000L;
+        long reportedFrames = 0, reportedBytes = 0;
+
+        while (true){
+            long now = System.nanoTime();
+
+            if (now >= end){
+                break;
+            }
+
+            if (now >= nextKeys){
+                for (int i = 0; i < Math.min(active, connections.size()); ++i){
+                    pressRandomKey(connections.get(i), random);
+                }
+
+                nextKeys += KEY_INTERVAL_NANOS;
+            }
+
+            if (now >= nextReport){
+                System.out.println(String.format("%d sessions | %d frames/s %.1f KB/s | %.1f bytes/frame",
+                        connections.size(), frames - reportedFrames, (bytes - reportedBytes) / 1024.0,
+                        (bytes - reportedBytes) / (double)Math.max(frames - reportedFrames, 1)));
+
+                if (show && !connections.isEmpty()){
+                    print(connections.get(0));
+                }
+
+                reportedFrames = frames;
+                reportedBytes = bytes;
+                nextReport += 1_000_000_000L;
+            }
+
+            selector.select(Math.max(1, Math.min(nextKeys, nextReport) - now) / 1_000_000L + 1);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while (keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Connection connection = (Connection)key.attachment();
+
+                try {
+                    if (!receive(connection)){
+                        System.out.println("Session " + connection.id + " closed by the server");
+                        key.cancel();
+                        connection.channel.close();
+                        connections.remove(connection);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Session " + connection.id + " Error! " + e);
+                    key.cancel();
+                    connection.channel.close();
+                    connections.remove(connection);
+                }
+            }
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%d frames in %.1f s, %.0f frames/s, %.1f bytes/frame", frames, elapsed,
+                frames / elapsed, bytes / (double)Math.max(frames, 1)));
+
+        for (Connection connection : connections){
+            connection.channel.close();
+        }
+
+        selector.close();
+    }
+
+    /**
+     * Releases the key the connection held and presses a new one, or nothing if the socket is full.
+     */
+    private static void pressRandomKey(Connection connection, Random random){
+        try {
+            if (connection.heldKey >= 0){
+                if (!sendKey(connection, connection.heldKey, false)){
+                    return;
+                }
+
+                connection.heldKey = -1;
+            }
+
+            int key = random.nextInt(16);
+
+            if (sendKey(connection, key, true)){
+                connection.heldKey = key;
+            }
+        } catch (IOException e) {
+            // Reported when the read side fails.
+        }
+    }
+
+    private static boolean sendKey(Connection connection, int key, boolean pressed) throws IOException {
+        ByteBuffer output = connection.output;
+
+        output.clear();
+        output.put(Protocol.KEY).put((byte)key).put((byte)(pressed ? 1 : 0)).flip();
+
+        // A KEY message is smaller than any socket buffer, it is written whole or not at all.
+        return connection.channel.write(output) == Protocol.KEY_SIZE;
+    }
+
+    /**
+     * Reads and applies every whole message received.
+     *
+     * @return false if the server closed the connection.
+     */
+    private static boolean receive(Connection connection) throws IOException {
+        ByteBuffer input = connection.input;
+        int read = connection.channel.read(input);
+
+        if (read < 0){
+            return false;
+        }
+
+        bytes += read;
+        input.flip();
+
+        while (input.hasRemaining()){
+            int start = input.position();
+            byte type = input.get(start);
+
+            if (type == Protocol.HELLO){
+                if (input.remaining() < Protocol.HELLO_SIZE){
+                    break;
+                }
+
+                connection.id = input.getInt(start + 1);
+                input.position(start + Protocol.HELLO_SIZE);
+            }
+            else if (type == Protocol.FRAME){
+                if (input.remaining() < 5){
+                    break;
+                }
+
+                int length = input.getInt(start + 1);
+
+                if (length < Long.BYTES || length > Protocol.MAX_FRAME_SIZE){
+                    throw new IOException("Bad frame length " + length);
+                }
+
+                if (input.remaining() < 5 + length){
+                    break;
+                }
+
+                connection.version = input.getLong(start + 5);
+                DeltaCodec.decode(input.array(), start + Protocol.FRAME_HEADER_SIZE, length - Long.BYTES,
+                        connection.frame);
+
+                input.position(start + 5 + length);
+                frames++;
+            }
+            else{
+                throw new IOException("Unknown message type " + type);
+            }
+        }
+
+        input.compact();
+        return true;
+    }
+
+    /**
+     * Prints the display of a connection as text, a # per set pixel.
+     */
+    private static void print(Connection connection){
+        FrameBuffer frameBuffer = new FrameBuffer();
+        frameBuffer.loadState(ByteBuffer.wrap(connection.frame));
+
+        StringBuilder text = new StringBuilder();
+        text.append("Session ").append(connection.id).append(" frame ").append(connection.version).append('\n');
+
+        for (int y = 0; y < FrameBuffer.HEIGHT; ++y){
+            for (int x = 0; x < FrameBuffer.WIDTH; ++x){
+                text.append(frameBuffer.getPixel(x, y) != 0 ? '#' : '.');
+            }
+
+            text.append('\n');
+        }
+
+        System.out.print(text);
+    }
+}